@@ -0,0 +1,186 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.benchmark;
+
+import io.github.aomsweet.cyber.CyberServer;
+import io.github.aomsweet.cyber.Transport;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round-trips payloads through an HTTP CONNECT tunnel of the proxy to a local echo server.
+ * The throughput in bytes per second is {@code ops/s * payloadSize * 2}.
+ * <p>
+ * Usage: {@code java -jar cyber-benchmark/target/benchmarks.jar TransportBenchmark}
+ *
+ * @author aomsweet
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class TransportBenchmark {
+
+    @Param({"nio", "epoll", "io_uring"})
+    String transport;
+
+    @Param({"1024", "65536"})
+    int payloadSize;
+
+    EventLoopGroup echoEventLoopGroup;
+    Channel echoChannel;
+    CyberServer cyber;
+    InetSocketAddress proxyAddress;
+
+    @Setup
+    public void setup() throws Exception {
+        Transport transport = transport(this.transport);
+        if (!transport.isAvailable()) {
+            throw new IllegalStateException("The " + transport.name() + " transport is not available.");
+        }
+        echoEventLoopGroup = new NioEventLoopGroup(1);
+        echoChannel = new ServerBootstrap()
+            .group(echoEventLoopGroup)
+            .channel(NioServerSocketChannel.class)
+            .childOption(ChannelOption.TCP_NODELAY, true)
+            .childHandler(new EchoHandler())
+            .bind("127.0.0.1", 0).sync().channel();
+
+        cyber = new CyberServer.Builder()
+            .withTransport(transport)
+            .withWorkerEventLoopGroupSize(2)
+            .withAddress("127.0.0.1", 0)
+            .build();
+        Channel channel = cyber.start().toCompletableFuture().get();
+        proxyAddress = (InetSocketAddress) channel.localAddress();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        cyber.stop();
+        echoChannel.close().sync();
+        echoEventLoopGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    @Benchmark
+    public int roundTrip(Client client) throws IOException {
+        client.out.write(client.payload);
+        client.out.flush();
+        int read = 0;
+        while (read < client.payload.length) {
+            int n = client.in.read(client.buffer, 0, Math.min(client.buffer.length, client.payload.length - read));
+            if (n == -1) {
+                throw new IOException("Tunnel closed.");
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    static Transport transport(String name) {
+        switch (name) {
+            case "epoll":
+                return Transport.EPOLL;
+            case "io_uring":
+                return Transport.IO_URING;
+            default:
+                return Transport.NIO;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+        byte[] payload;
+        byte[] buffer;
+
+        @Setup
+        public void setup(TransportBenchmark benchmark) throws IOException {
+            payload = new byte[benchmark.payloadSize];
+            ThreadLocalRandom.current().nextBytes(payload);
+            buffer = new byte[65536];
+
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(benchmark.proxyAddress);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+
+            InetSocketAddress echoAddress = (InetSocketAddress) benchmark.echoChannel.localAddress();
+            String connect = "CONNECT 127.0.0.1:" + echoAddress.getPort() + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:" + echoAddress.getPort() + "\r\n\r\n";
+            out.write(connect.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            readResponseHead();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            socket.close();
+        }
+
+        private void readResponseHead() throws IOException {
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new IOException("Unexpected end of the tunnel response.");
+                }
+                matched = (b == '\r' && (matched & 1) == 0) || (b == '\n' && (matched & 1) == 1) ? matched + 1 : 0;
+            }
+        }
+    }
+
+    @ChannelHandler.Sharable
+    static class EchoHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ctx.write(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+            .include(TransportBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
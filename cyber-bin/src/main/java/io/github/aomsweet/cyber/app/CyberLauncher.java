@@ -20,10 +20,9 @@ import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
-import io.github.aomsweet.cyber.Credentials;
+import io.github.aomsweet.cyber.BalancedUpstreamProxyManager;
 import io.github.aomsweet.cyber.CyberServer;
 import io.github.aomsweet.cyber.UpstreamProxy;
-import io.github.aomsweet.cyber.UpstreamProxyManager;
 import io.github.aomsweet.cyber.app.logback.AnsiConsoleAppender;
 import io.github.aomsweet.cyber.app.logback.LogbackConfigurator;
 import io.github.aomsweet.cyber.http.HttpChannelContext;
@@ -32,6 +31,7 @@ import io.github.aomsweet.cyber.http.mitm.BouncyCastleSelfSignedMitmManager;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.ssl.SslProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sun.misc.Signal;
@@ -39,9 +39,6 @@ import sun.misc.Signal;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.util.ArrayDeque;
-import java.util.Queue;
 
 /**
  * @author aomsweet
@@ -66,20 +63,13 @@ public class CyberLauncher {
             // .withProxyAuthenticator(((username, password) -> "admin".equals(username) && "admin".equals(password)))
             // .withUpstreamProxy(() -> new HttpProxyHandler(new InetSocketAddress("localhost", 7890)))
             // .withUpstreamProxy(ProxyType.SOCKS5, "127.0.0.1", 7890)
-            .withUpstreamProxyManager(new UpstreamProxyManager() {
-                @Override
-                public Queue<? extends UpstreamProxy> lookupUpstreamProxies(Object requestObject, Credentials credentials, SocketAddress clientAddress, InetSocketAddress serverAddress) throws Exception {
-                    Queue<UpstreamProxy> queue = new ArrayDeque<>(1);
-                    queue.offer(new UpstreamProxy(UpstreamProxy.Protocol.HTTP, new InetSocketAddress("127.0.0.1", 7890)));
-                    return queue;
-                }
-
-                @Override
-                public void failConnectExceptionCaught(UpstreamProxy upstreamProxy, InetSocketAddress serverAddress, Throwable throwable) throws Exception {
-                    throwable.printStackTrace();
-                }
-            })
+            .withUpstreamProxyManager(new BalancedUpstreamProxyManager.Builder()
+                .withProxy(new UpstreamProxy(UpstreamProxy.Protocol.HTTP, new InetSocketAddress("127.0.0.1", 7890)))
+                .build())
             .withMitmManager(new BouncyCastleSelfSignedMitmManager())
+            .withSslProvider(SslProvider.OPENSSL)
+            .withHttp2Enabled(true)
+            .withUpstreamHttp2Enabled(true)
             .withHttpInterceptorManager(new DefaultHttpInterceptorManager()
                 .addInterceptor(new HttpInterceptor() {
                     @Override
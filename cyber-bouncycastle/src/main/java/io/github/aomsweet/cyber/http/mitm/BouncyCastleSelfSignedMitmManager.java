@@ -16,10 +16,13 @@
 package io.github.aomsweet.cyber.http.mitm;
 
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.util.NetUtil;
 import io.netty.util.internal.ThreadLocalRandom;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
 import org.bouncycastle.asn1.DERPrintableString;
+import org.bouncycastle.asn1.DERUTF8String;
 import org.bouncycastle.asn1.x500.AttributeTypeAndValue;
 import org.bouncycastle.asn1.x500.RDN;
 import org.bouncycastle.asn1.x500.X500Name;
@@ -34,71 +37,415 @@ import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.*;
+import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author aomsweet
  */
 public class BouncyCastleSelfSignedMitmManager extends SelfSignedMitmManager {
 
+    private final static InternalLogger logger = InternalLoggerFactory.getInstance(BouncyCastleSelfSignedMitmManager.class);
+
+    /**
+     * PKCS#9 signingTime.
+     */
+    private static final String SIGNING_TIME_OID = "1.2.840.113549.1.9.5";
+
+    private static final Set<String> PUBLIC_SECOND_LEVEL_SUFFIXES = new HashSet<>(Arrays.asList(
+        "ac.uk", "co.uk", "gov.uk", "ltd.uk", "me.uk", "net.uk", "org.uk", "plc.uk",
+        "com.cn", "edu.cn", "gov.cn", "net.cn", "org.cn",
+        "com.hk", "edu.hk", "gov.hk", "net.hk", "org.hk",
+        "com.tw", "edu.tw", "gov.tw", "net.tw", "org.tw",
+        "ac.jp", "co.jp", "go.jp", "ne.jp", "or.jp",
+        "ac.kr", "co.kr", "go.kr", "or.kr",
+        "com.au", "edu.au", "gov.au", "net.au", "org.au",
+        "ac.nz", "co.nz", "govt.nz", "net.nz", "org.nz",
+        "com.br", "gov.br", "net.br", "org.br",
+        "ac.in", "co.in", "gov.in", "net.in", "org.in",
+        "ac.za", "co.za", "gov.za", "org.za",
+        "com.sg", "edu.sg", "gov.sg", "net.sg", "org.sg",
+        "com.mx", "gob.mx", "org.mx",
+        "com.tr", "gov.tr", "org.tr",
+        "com.ar", "gob.ar", "org.ar",
+        "co.il", "org.il", "ac.il",
+        "com.ru", "org.ru", "net.ru"));
+
     private Date notBefore;
     private Date notAfter;
     private X500Name issuer;
-    private KeyPair keyPair;
+    private volatile KeyPair keyPair;
+    private volatile KeyAlgorithm keyAlgorithm;
+    private String signatureAlgorithm;
 
     int cnIndex;
 
-    Map<String, SslContext> sslContextCache = new ConcurrentHashMap<>();
+    /**
+     * Whether subdomains share one wildcard certificate.
+     */
+    boolean wildcardEnabled;
+
+    SslContextCache sslContextCache = new SslContextCache();
+    Map<String, CompletableFuture<SslContext>> pendingSslContexts = new ConcurrentHashMap<>();
+
+    /**
+     * Signs the certificates of {@link #asyncServerSslContext(String)} off the event loops.
+     */
+    Executor executor;
+
+    Path keyStorePath;
+    char[] keyStorePassword;
+    final AtomicBoolean keyStoreDirty = new AtomicBoolean();
+
+    /**
+     * Writes the key store on a low priority thread of its own, so that signing never waits for it.
+     */
+    Executor keyStoreExecutor;
 
     public BouncyCastleSelfSignedMitmManager() throws Exception {
+        this(KeyAlgorithm.EC_P256);
+    }
+
+    public BouncyCastleSelfSignedMitmManager(KeyAlgorithm keyAlgorithm) throws Exception {
         super();
+        this.keyAlgorithm = keyAlgorithm;
         init();
     }
 
     public BouncyCastleSelfSignedMitmManager(InputStream certInputStream, InputStream keyInputStream) throws Exception {
+        this(certInputStream, keyInputStream, KeyAlgorithm.EC_P256);
+    }
+
+    /**
+     * @param keyAlgorithm the algorithm of the server certificate keys. The certificates are signed with
+     *                     the algorithm that fits the issuer key, whatever its type.
+     */
+    public BouncyCastleSelfSignedMitmManager(InputStream certInputStream, InputStream keyInputStream,
+                                             KeyAlgorithm keyAlgorithm) throws Exception {
         super(certInputStream, keyInputStream);
+        this.keyAlgorithm = keyAlgorithm;
         init();
     }
 
-    public void init() throws NoSuchAlgorithmException {
-        KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("RSA");
-        keyPairGen.initialize(1024, new SecureRandom());
-        this.keyPair = keyPairGen.genKeyPair();
+    public void init() throws GeneralSecurityException {
+        this.keyPair = keyAlgorithm.generateKeyPair();
+        this.signatureAlgorithm = KeyAlgorithm.signatureAlgorithm(issuerPrivateKey);
         this.notBefore = issuerCertificate.getNotBefore();
         this.notAfter = issuerCertificate.getNotAfter();
         this.issuer = X500Name.getInstance(issuerCertificate.getSubjectX500Principal().getEncoded());
         this.cnIndex = getCnIndex0();
+        if (this.executor == null) {
+            this.executor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                daemonThreadFactory("Cyber mitm-", Thread.NORM_PRIORITY));
+        }
     }
 
+    /**
+     * Signs the certificate on the calling thread, unless another call for the same host is already
+     * signing it, whose result is awaited instead.
+     */
     @Override
     public SslContext serverSslContext(String host) throws Exception {
-        return sslContextCache.computeIfAbsent(host, key -> {
+        String name = certificateName(host);
+        SslContextCache.Entry entry = sslContextCache.get(name);
+        if (entry != null) {
+            return entry.getSslContext();
+        }
+        CompletableFuture<SslContext> newFuture = new CompletableFuture<>();
+        CompletableFuture<SslContext> future = pendingSslContexts.putIfAbsent(name, newFuture);
+        if (future != null) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+        try {
+            SslContext sslContext = newServerSslContext(name);
+            newFuture.complete(sslContext);
+            return sslContext;
+        } catch (Throwable e) {
+            newFuture.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingSslContexts.remove(name, newFuture);
+        }
+    }
+
+    private SslContext newServerSslContext(String host) throws Exception {
+        // Read once, the key pair may be switched while signing.
+        KeyPair keyPair = this.keyPair;
+        X509Certificate cert;
+        try {
+            cert = generateServerCert(host, keyPair);
+        } catch (Exception e) {
+            throw new CertRuntimeException("Failed to generate server certificate.", e);
+        }
+        PrivateKey privateKey = keyPair.getPrivate();
+        SslContext sslContext = newServerSslContext(privateKey, cert);
+        sslContextCache.put(host, new SslContextCache.Entry(sslContext, privateKey, cert, System.currentTimeMillis()));
+        scheduleSaveKeyStore();
+        return sslContext;
+    }
+
+    /**
+     * Concurrent calls for the same host share one future, so each certificate is signed only once.
+     */
+    @Override
+    public CompletableFuture<SslContext> asyncServerSslContext(String host) {
+        String name = certificateName(host);
+        SslContextCache.Entry entry = sslContextCache.get(name);
+        if (entry != null) {
+            return CompletableFuture.completedFuture(entry.getSslContext());
+        }
+        CompletableFuture<SslContext> future = pendingSslContexts.get(name);
+        if (future != null) {
+            return future;
+        }
+        CompletableFuture<SslContext> newFuture = new CompletableFuture<>();
+        if ((future = pendingSslContexts.putIfAbsent(name, newFuture)) != null) {
+            return future;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    newFuture.complete(newServerSslContext(name));
+                } catch (Throwable e) {
+                    newFuture.completeExceptionally(e);
+                } finally {
+                    pendingSslContexts.remove(name, newFuture);
+                }
+            });
+        } catch (Throwable e) {
+            pendingSslContexts.remove(name, newFuture);
+            newFuture.completeExceptionally(e);
+        }
+        return newFuture;
+    }
+
+    /**
+     * Rebuilds the cached contexts from their key material, e.g. those loaded from the key store
+     * before the provider was set.
+     */
+    @Override
+    protected void serverSslContextSettingsChanged() {
+        super.serverSslContextSettingsChanged();
+        if (sslContextCache == null) {
+            return;
+        }
+        for (Map.Entry<String, SslContextCache.Entry> entry : sslContextCache.snapshot().entrySet()) {
+            SslContextCache.Entry value = entry.getValue();
             try {
-                X509Certificate cert = generateServerCert(host);
-                return SslContextBuilder.forServer(keyPair.getPrivate(), cert).build();
+                SslContext sslContext = newServerSslContext(value.getPrivateKey(), value.getCertificate());
+                sslContextCache.put(entry.getKey(), new SslContextCache.Entry(sslContext,
+                    value.getPrivateKey(), value.getCertificate(), value.getCreationTime()));
             } catch (Exception e) {
-                throw new CertRuntimeException("Failed to generate server certificate.", e);
+                sslContextCache.invalidate(entry.getKey());
             }
-        });
+        }
+    }
+
+    /**
+     * The name of the certificate that serves the host, which is also its cache key. In the wildcard
+     * mode it is {@code *.} followed by the parent domain of the host, since a wildcard only matches a
+     * single label. A registrable domain maps to its own wildcard, whose certificate lists the domain
+     * itself too. IP addresses and single-label hosts keep an exact certificate.
+     */
+    protected String certificateName(String host) {
+        if (!wildcardEnabled || NetUtil.isValidIpV4Address(host) || NetUtil.isValidIpV6Address(host)) {
+            return host;
+        }
+        int index = host.indexOf('.');
+        if (index <= 0 || index == host.length() - 1) {
+            return host;
+        }
+        String parent = host.substring(index + 1);
+        if (parent.indexOf('.') <= 0 || isPublicSuffix(parent)) {
+            return "*." + host;
+        }
+        return "*." + parent;
+    }
+
+    /**
+     * Whether no wildcard may be issued directly under the domain. Only the common second-level
+     * registry suffixes are known, override it to plug in a full public suffix list.
+     */
+    protected boolean isPublicSuffix(String domain) {
+        return PUBLIC_SECOND_LEVEL_SUFFIXES.contains(domain.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Keeps the generated certificates in a PKCS#12 key store so that they survive restarts. The
+     * existing entries that are still valid are loaded into the cache right away, later changes
+     * are written back in the background.
+     */
+    public BouncyCastleSelfSignedMitmManager setKeyStore(Path path, char[] password) throws Exception {
+        if (this.keyStoreExecutor == null) {
+            this.keyStoreExecutor = Executors.newSingleThreadExecutor(
+                daemonThreadFactory("Cyber mitm-keystore-", Thread.MIN_PRIORITY));
+        }
+        this.keyStorePath = path;
+        this.keyStorePassword = password;
+        if (Files.exists(path)) {
+            loadKeyStore();
+        }
+        return this;
+    }
+
+    public void loadKeyStore() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyStorePath)) {
+            keyStore.load(in, keyStorePassword);
+        }
+        KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(keyStorePassword);
+        PublicKey issuerPublicKey = issuerCertificate.getPublicKey();
+        long now = System.currentTimeMillis();
+        List<Map.Entry<String, SslContextCache.Entry>> entries = new ArrayList<>();
+        for (Enumeration<String> aliases = keyStore.aliases(); aliases.hasMoreElements(); ) {
+            String alias = aliases.nextElement();
+            if (!keyStore.entryInstanceOf(alias, KeyStore.PrivateKeyEntry.class)) {
+                continue;
+            }
+            KeyStore.PrivateKeyEntry keyEntry = (KeyStore.PrivateKeyEntry) keyStore.getEntry(alias, protection);
+            X509Certificate cert = (X509Certificate) keyEntry.getCertificate();
+            long creationTime = getCreationTime(keyStore, alias, keyEntry);
+            if (sslContextCache.isExpired(creationTime, now)) {
+                continue;
+            }
+            PrivateKey privateKey = keyEntry.getPrivateKey();
+            if (!keyAlgorithm.matches(privateKey)) {
+                continue;
+            }
+            try {
+                cert.checkValidity();
+                cert.verify(issuerPublicKey);
+            } catch (GeneralSecurityException e) {
+                // Issued by another root certificate or no longer valid.
+                continue;
+            }
+            SslContext sslContext = newServerSslContext(privateKey, cert);
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(alias,
+                new SslContextCache.Entry(sslContext, privateKey, cert, creationTime)));
+        }
+        // Oldest first, so that the least recently created entries are evicted first.
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().getCreationTime()));
+        for (Map.Entry<String, SslContextCache.Entry> entry : entries) {
+            sslContextCache.put(entry.getKey(), entry.getValue());
+        }
+        if (!entries.isEmpty()) {
+            // Keep signing with the key of the stored certificates.
+            SslContextCache.Entry latest = entries.get(entries.size() - 1).getValue();
+            this.keyPair = new KeyPair(latest.getCertificate().getPublicKey(), latest.getPrivateKey());
+        }
+    }
+
+    public synchronized void saveKeyStore() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, keyStorePassword);
+        KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(keyStorePassword);
+        Certificate[] chain = new Certificate[2];
+        chain[1] = issuerCertificate;
+        for (Map.Entry<String, SslContextCache.Entry> entry : sslContextCache.snapshot().entrySet()) {
+            SslContextCache.Entry value = entry.getValue();
+            if (value.getPrivateKey() == null || value.getCertificate() == null) {
+                continue;
+            }
+            chain[0] = value.getCertificate();
+            Set<KeyStore.Entry.Attribute> attributes = Collections.singleton(
+                new PKCS12Attribute(SIGNING_TIME_OID, Long.toString(value.getCreationTime())));
+            keyStore.setEntry(entry.getKey(), new KeyStore.PrivateKeyEntry(value.getPrivateKey(), chain.clone(), attributes), protection);
+        }
+        Path tempPath = keyStorePath.resolveSibling(keyStorePath.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tempPath)) {
+            keyStore.store(out, keyStorePassword);
+        }
+        Files.move(tempPath, keyStorePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A burst of new certificates results in a single write of the key store.
+     */
+    private void scheduleSaveKeyStore() {
+        if (keyStorePath != null && keyStoreDirty.compareAndSet(false, true)) {
+            keyStoreExecutor.execute(() -> {
+                keyStoreDirty.set(false);
+                try {
+                    saveKeyStore();
+                } catch (Exception e) {
+                    logger.warn("Unable to save the key store {}.", keyStorePath, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * The PKCS#12 store resets the creation date of every entry it writes, so the creation time of
+     * the certificate is kept in the signingTime attribute instead.
+     */
+    private static long getCreationTime(KeyStore keyStore, String alias, KeyStore.PrivateKeyEntry keyEntry)
+        throws KeyStoreException {
+        for (KeyStore.Entry.Attribute attribute : keyEntry.getAttributes()) {
+            if (SIGNING_TIME_OID.equals(attribute.getName())) {
+                try {
+                    return Long.parseLong(attribute.getValue());
+                } catch (NumberFormatException ignored) {
+                    break;
+                }
+            }
+        }
+        return keyStore.getCreationDate(alias).getTime();
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix, int priority) {
+        AtomicInteger threadSequence = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setName(prefix + threadSequence.getAndAdd(1));
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        };
     }
 
     public X509Certificate generateServerCert(String host) throws Exception {
+        return generateServerCert(host, keyPair);
+    }
+
+    public X509Certificate generateServerCert(String host, KeyPair keyPair) throws Exception {
         BigInteger serial = BigInteger.valueOf(ThreadLocalRandom.current().nextLong(Integer.MAX_VALUE, Long.MAX_VALUE));
         X500Name subject = generateSubject(host);
         PublicKey publicKey = keyPair.getPublic();
         JcaX509v3CertificateBuilder jcaX509v3CertBuilder = new JcaX509v3CertificateBuilder(issuer,
             serial, notBefore, notAfter, subject, publicKey);
 
-        GeneralNames subjectAltName = new GeneralNames(new GeneralName(GeneralName.dNSName, host));
+        GeneralNames subjectAltName;
+        if (host.startsWith("*.")) {
+            // The wildcard does not match the parent domain itself.
+            subjectAltName = new GeneralNames(new GeneralName[]{
+                new GeneralName(GeneralName.dNSName, host),
+                new GeneralName(GeneralName.dNSName, host.substring(2))});
+        } else {
+            subjectAltName = new GeneralNames(new GeneralName(GeneralName.dNSName, host));
+        }
         jcaX509v3CertBuilder.addExtension(Extension.subjectAlternativeName, false, subjectAltName);
 
-        ContentSigner signer = new JcaContentSignerBuilder("SHA256WithRSAEncryption").build(issuerPrivateKey);
+        ContentSigner signer = new JcaContentSignerBuilder(signatureAlgorithm).build(issuerPrivateKey);
         return new JcaX509CertificateConverter().getCertificate(jcaX509v3CertBuilder.build(signer));
     }
 
@@ -116,7 +463,8 @@ public class BouncyCastleSelfSignedMitmManager extends SelfSignedMitmManager {
 
     public X500Name generateSubject(String host) {
         RDN[] arr = this.issuer.getRDNs();
-        AttributeTypeAndValue attribute = new AttributeTypeAndValue(BCStyle.CN, new DERPrintableString(host));
+        AttributeTypeAndValue attribute = new AttributeTypeAndValue(BCStyle.CN,
+            DERPrintableString.isPrintableString(host) ? new DERPrintableString(host) : new DERUTF8String(host));
         if (cnIndex == -1) {
             int length = arr.length;
             arr = Arrays.copyOf(arr, length + 1);
@@ -161,6 +509,28 @@ public class BouncyCastleSelfSignedMitmManager extends SelfSignedMitmManager {
         return this;
     }
 
+    public KeyAlgorithm getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /**
+     * Switches the key of the certificates signed from now on. Cached certificates are kept until evicted.
+     */
+    public BouncyCastleSelfSignedMitmManager setKeyAlgorithm(KeyAlgorithm keyAlgorithm) throws GeneralSecurityException {
+        this.keyPair = keyAlgorithm.generateKeyPair();
+        this.keyAlgorithm = keyAlgorithm;
+        return this;
+    }
+
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    public BouncyCastleSelfSignedMitmManager setSignatureAlgorithm(String signatureAlgorithm) {
+        this.signatureAlgorithm = signatureAlgorithm;
+        return this;
+    }
+
     public KeyPair getKeyPair() {
         return keyPair;
     }
@@ -170,6 +540,40 @@ public class BouncyCastleSelfSignedMitmManager extends SelfSignedMitmManager {
         return this;
     }
 
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public BouncyCastleSelfSignedMitmManager setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public boolean isWildcardEnabled() {
+        return wildcardEnabled;
+    }
+
+    public BouncyCastleSelfSignedMitmManager setWildcardEnabled(boolean wildcardEnabled) {
+        this.wildcardEnabled = wildcardEnabled;
+        return this;
+    }
+
+    public SslContextCache getSslContextCache() {
+        return sslContextCache;
+    }
+
+    /**
+     * Replaces the cache, the entries of the previous one are dropped.
+     */
+    public BouncyCastleSelfSignedMitmManager setSslContextCache(SslContextCache sslContextCache) {
+        this.sslContextCache = sslContextCache;
+        return this;
+    }
+
+    public Path getKeyStorePath() {
+        return keyStorePath;
+    }
+
     public BouncyCastleSelfSignedMitmManager setCnIndex(int cnIndex) {
         this.cnIndex = cnIndex;
         return this;
@@ -0,0 +1,94 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http.mitm;
+
+import java.security.*;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * The key algorithms of the generated server certificates.
+ *
+ * @author aomsweet
+ */
+public enum KeyAlgorithm {
+
+    EC_P256("EC", 256, "secp256r1"),
+    EC_P384("EC", 384, "secp384r1"),
+    RSA_2048("RSA", 2048, null),
+    RSA_3072("RSA", 3072, null),
+    RSA_4096("RSA", 4096, null);
+
+    private final String algorithm;
+    private final int keySize;
+    private final String curveName;
+
+    KeyAlgorithm(String algorithm, int keySize, String curveName) {
+        this.algorithm = algorithm;
+        this.keySize = keySize;
+        this.curveName = curveName;
+    }
+
+    public KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance(algorithm);
+        if (curveName == null) {
+            keyPairGen.initialize(keySize, new SecureRandom());
+        } else {
+            keyPairGen.initialize(new ECGenParameterSpec(curveName), new SecureRandom());
+        }
+        return keyPairGen.generateKeyPair();
+    }
+
+    /**
+     * Whether the key was generated with this algorithm and size.
+     */
+    public boolean matches(Key key) {
+        return algorithm.equals(key.getAlgorithm()) && keySize == keySize(key);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getKeySize() {
+        return keySize;
+    }
+
+    /**
+     * The signature algorithm for certificates signed with the given key. EC keys use a digest of
+     * the same strength as the curve.
+     */
+    public static String signatureAlgorithm(Key signingKey) {
+        String algorithm = signingKey.getAlgorithm();
+        if ("EC".equals(algorithm) || "ECDSA".equals(algorithm)) {
+            int keySize = keySize(signingKey);
+            return keySize > 384 ? "SHA512withECDSA" : keySize > 256 ? "SHA384withECDSA" : "SHA256withECDSA";
+        } else if ("RSA".equals(algorithm)) {
+            return "SHA256WithRSAEncryption";
+        }
+        throw new IllegalArgumentException("Unsupported signing key algorithm: " + algorithm);
+    }
+
+    static int keySize(Key key) {
+        if (key instanceof RSAKey) {
+            return ((RSAKey) key).getModulus().bitLength();
+        } else if (key instanceof ECKey) {
+            return ((ECKey) key).getParams().getCurve().getField().getFieldSize();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.*;
+
+/**
+ * Keeps the same clients on the same upstream proxy with rendezvous hashing: every proxy scores the
+ * affinity key and the highest score wins. Adding or removing a proxy only moves the keys that it wins
+ * or won, and the following proxies of the queue are the failover order of the key, which is just as stable.
+ * <p>
+ * The proxies are a copy-on-write array and the key is hashed in place, the lookup only allocates the
+ * returned queue, which orders the proxies lazily as it is polled.
+ *
+ * @author aomsweet
+ */
+public class AffinityUpstreamProxyManager implements UpstreamProxyManager {
+
+    private final static InternalLogger logger = InternalLoggerFactory.getInstance(AffinityUpstreamProxyManager.class);
+
+    public enum AffinityKey {
+        /**
+         * The username of the client, or its address if it did not authenticate.
+         */
+        CREDENTIALS,
+        /**
+         * The IP address of the client.
+         */
+        CLIENT_ADDRESS,
+        /**
+         * The host of the target server.
+         */
+        SERVER_ADDRESS
+    }
+
+    final EnumSet<AffinityKey> affinityKeys;
+    volatile Member[] members = new Member[0];
+
+    public AffinityUpstreamProxyManager(AffinityKey... affinityKeys) {
+        if (affinityKeys.length == 0) {
+            throw new IllegalArgumentException("At least one affinity key is required.");
+        }
+        this.affinityKeys = EnumSet.copyOf(Arrays.asList(affinityKeys));
+    }
+
+    @Override
+    public Queue<? extends UpstreamProxy> lookupUpstreamProxies(Object requestObject,
+                                                                Credentials credentials,
+                                                                SocketAddress clientAddress,
+                                                                InetSocketAddress serverAddress) throws Exception {
+        Member[] members = this.members;
+        if (members.length == 0) {
+            return null;
+        }
+        return new AffinityQueue(members, hash(credentials, clientAddress, serverAddress));
+    }
+
+    protected long hash(Credentials credentials, SocketAddress clientAddress, InetSocketAddress serverAddress) {
+        long hash = 0;
+        if (affinityKeys.contains(AffinityKey.CREDENTIALS)) {
+            if (credentials == null || credentials.getUsername() == null) {
+                hash = mix(hash + hash(clientAddress));
+            } else {
+                hash = mix(hash + credentials.getUsername().hashCode());
+            }
+        }
+        if (affinityKeys.contains(AffinityKey.CLIENT_ADDRESS)) {
+            hash = mix(hash + hash(clientAddress));
+        }
+        if (affinityKeys.contains(AffinityKey.SERVER_ADDRESS)) {
+            hash = mix(hash + (serverAddress == null ? 0 : serverAddress.getHostString().hashCode()));
+        }
+        return hash;
+    }
+
+    private static int hash(SocketAddress address) {
+        if (address instanceof InetSocketAddress) {
+            InetAddress inetAddress = ((InetSocketAddress) address).getAddress();
+            return inetAddress == null ? ((InetSocketAddress) address).getHostString().hashCode() : inetAddress.hashCode();
+        }
+        return address == null ? 0 : address.hashCode();
+    }
+
+    /**
+     * The finalizer of SplitMix64, it spreads every bit of the input over the output.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public void failConnectExceptionCaught(UpstreamProxy upstreamProxy, InetSocketAddress serverAddress, Throwable throwable) throws Exception {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Upstream proxy {} failed to connect to {}: {}", upstreamProxy, serverAddress, throwable.toString());
+        }
+    }
+
+    public synchronized AffinityUpstreamProxyManager addProxy(UpstreamProxy upstreamProxy) {
+        for (Member member : members) {
+            if (member.upstreamProxy.equals(upstreamProxy)) {
+                return this;
+            }
+        }
+        Member[] members = Arrays.copyOf(this.members, this.members.length + 1);
+        members[members.length - 1] = new Member(upstreamProxy);
+        this.members = members;
+        return this;
+    }
+
+    public synchronized AffinityUpstreamProxyManager removeProxy(UpstreamProxy upstreamProxy) {
+        List<Member> members = new ArrayList<>(Arrays.asList(this.members));
+        if (members.removeIf(member -> member.upstreamProxy.equals(upstreamProxy))) {
+            this.members = members.toArray(new Member[0]);
+        }
+        return this;
+    }
+
+    /**
+     * Replaces all the proxies at once. The keys keep their proxy unless it is removed, as with
+     * {@link #removeProxy}.
+     */
+    public synchronized AffinityUpstreamProxyManager setProxies(Collection<? extends UpstreamProxy> upstreamProxies) {
+        Map<UpstreamProxy, Member> members = new LinkedHashMap<>();
+        for (Member member : this.members) {
+            members.put(member.upstreamProxy, member);
+        }
+        List<Member> next = new ArrayList<>(upstreamProxies.size());
+        for (UpstreamProxy upstreamProxy : new LinkedHashSet<>(upstreamProxies)) {
+            Member member = members.get(upstreamProxy);
+            next.add(member == null ? new Member(upstreamProxy) : member);
+        }
+        this.members = next.toArray(new Member[0]);
+        return this;
+    }
+
+    public List<UpstreamProxy> getProxies() {
+        Member[] members = this.members;
+        List<UpstreamProxy> proxies = new ArrayList<>(members.length);
+        for (Member member : members) {
+            proxies.add(member.upstreamProxy);
+        }
+        return proxies;
+    }
+
+    public Set<AffinityKey> getAffinityKeys() {
+        return Collections.unmodifiableSet(affinityKeys);
+    }
+
+    static final class Member {
+
+        final UpstreamProxy upstreamProxy;
+        /**
+         * Derived from the address of the proxy only, so it survives restarts and reordering.
+         */
+        final long seed;
+
+        Member(UpstreamProxy upstreamProxy) {
+            this.upstreamProxy = upstreamProxy;
+            InetSocketAddress address = upstreamProxy.getSocketAddress();
+            this.seed = mix(((long) address.getHostString().hashCode() << 32) ^ address.getPort()
+                ^ upstreamProxy.getProtocol().name().hashCode());
+        }
+
+        long score(long key) {
+            return mix(seed ^ key);
+        }
+    }
+
+    /**
+     * The proxies from the highest to the lowest score of a key. Only the proxies that are polled are
+     * ranked, usually the first one.
+     */
+    static final class AffinityQueue extends AbstractQueue<UpstreamProxy> {
+
+        final Member[] members;
+        final long key;
+        long polled;
+        boolean[] polledOverflow;
+        int remaining;
+        int next = -1;
+
+        AffinityQueue(Member[] members, long key) {
+            this.members = members;
+            this.key = key;
+            this.remaining = members.length;
+        }
+
+        @Override
+        public UpstreamProxy poll() {
+            int index = nextIndex();
+            if (index == -1) {
+                return null;
+            }
+            markPolled(index);
+            remaining--;
+            next = -1;
+            return members[index].upstreamProxy;
+        }
+
+        @Override
+        public UpstreamProxy peek() {
+            int index = nextIndex();
+            return index == -1 ? null : members[index].upstreamProxy;
+        }
+
+        @Override
+        public int size() {
+            return remaining;
+        }
+
+        /**
+         * The order is fixed by the key, so the queue takes no more proxies, like a full bounded queue.
+         */
+        @Override
+        public boolean offer(UpstreamProxy upstreamProxy) {
+            return false;
+        }
+
+        @Override
+        public Iterator<UpstreamProxy> iterator() {
+            AffinityQueue copy = new AffinityQueue(members, key);
+            for (int i = 0; i < members.length; i++) {
+                if (isPolled(i)) {
+                    copy.markPolled(i);
+                    copy.remaining--;
+                }
+            }
+            List<UpstreamProxy> proxies = new ArrayList<>(remaining);
+            for (UpstreamProxy proxy = copy.poll(); proxy != null; proxy = copy.poll()) {
+                proxies.add(proxy);
+            }
+            return Collections.unmodifiableList(proxies).iterator();
+        }
+
+        private int nextIndex() {
+            if (next == -1 && remaining > 0) {
+                long bestScore = 0;
+                for (int i = 0; i < members.length; i++) {
+                    if (isPolled(i)) {
+                        continue;
+                    }
+                    long score = members[i].score(key);
+                    if (next == -1 || Long.compareUnsigned(score, bestScore) > 0) {
+                        next = i;
+                        bestScore = score;
+                    }
+                }
+            }
+            return next;
+        }
+
+        private boolean isPolled(int index) {
+            return index < 64 ? (polled & (1L << index)) != 0 : polledOverflow != null && polledOverflow[index - 64];
+        }
+
+        private void markPolled(int index) {
+            if (index < 64) {
+                polled |= 1L << index;
+            } else {
+                if (polledOverflow == null) {
+                    polledOverflow = new boolean[members.length - 64];
+                }
+                polledOverflow[index - 64] = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,577 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Spreads the connections over a pool of upstream proxies and keeps track of their health.
+ * <p>
+ * Every proxy has a latency score, an exponentially weighted moving average of its connect latencies in
+ * which a failed connect counts as {@link Builder#withFailureLatencyMillis a long one}. After
+ * {@link Builder#withFailureThreshold consecutive failures} its circuit opens and it is left out until the
+ * open period elapses, the period doubles each time the proxy fails again right after. The background probe
+ * connects to all the proxies at once from its own event loop, so a recovered proxy is back before a client
+ * has to try it. Its results only drive the circuits, never the scores.
+ * <p>
+ * The proxies are returned in the order of the {@link Strategy}, followed by the other available ones
+ * from the lowest to the highest score as failover. When no proxy is available all of them are returned,
+ * a request is never sent without a proxy.
+ *
+ * @author aomsweet
+ */
+public class BalancedUpstreamProxyManager implements UpstreamProxyManager, Closeable {
+
+    private final static InternalLogger logger = InternalLoggerFactory.getInstance(BalancedUpstreamProxyManager.class);
+
+    public static final double DEFAULT_EWMA_ALPHA = 0.3;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_FAILURE_LATENCY_MILLIS = 10 * 1000;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+    public static final long DEFAULT_MAX_OPEN_MILLIS = 5 * 60 * 1000;
+    public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 10 * 1000;
+    public static final int DEFAULT_PROBE_TIMEOUT_MILLIS = 3000;
+
+    public enum Strategy {
+        /**
+         * The proxy with the lowest latency score.
+         */
+        LEAST_LATENCY,
+        /**
+         * The better of two random proxies, which avoids sending every client to the same fastest proxy.
+         */
+        POWER_OF_TWO_CHOICES,
+        /**
+         * Smooth weighted round robin, each proxy gets its share of the connections.
+         */
+        WEIGHTED_ROUND_ROBIN
+    }
+
+    public enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    final Strategy strategy;
+    final double ewmaAlpha;
+    final int failureThreshold;
+    final long failureLatencyNanos;
+    final long openNanos;
+    final long maxOpenNanos;
+    final long probeIntervalMillis;
+    final int probeTimeoutMillis;
+
+    volatile ProxyHealth[] proxies = new ProxyHealth[0];
+    final ConcurrentMap<UpstreamProxy, ProxyHealth> proxyHealths = new ConcurrentHashMap<>();
+    EventLoopGroup probeEventLoopGroup;
+    DnsResolverGroup probeResolverGroup;
+    Bootstrap probeBootstrap;
+
+    protected BalancedUpstreamProxyManager(Builder builder) {
+        this.strategy = builder.strategy;
+        this.ewmaAlpha = builder.ewmaAlpha;
+        this.failureThreshold = builder.failureThreshold;
+        this.failureLatencyNanos = TimeUnit.MILLISECONDS.toNanos(builder.failureLatencyMillis);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(builder.openMillis);
+        this.maxOpenNanos = TimeUnit.MILLISECONDS.toNanos(builder.maxOpenMillis);
+        this.probeIntervalMillis = builder.probeIntervalMillis;
+        this.probeTimeoutMillis = builder.probeTimeoutMillis;
+        for (Map.Entry<UpstreamProxy, Integer> entry : builder.proxies.entrySet()) {
+            addProxy(entry.getKey(), entry.getValue());
+        }
+        if (probeIntervalMillis > 0) {
+            Transport transport = Transport.NIO;
+            probeEventLoopGroup = transport.newEventLoopGroup(1, runnable -> {
+                Thread thread = new Thread(runnable, "Cyber upstream-probe");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // The proxies may be given by name, they are resolved without blocking the probe.
+            probeResolverGroup = new DnsResolverGroup.Builder(transport).build();
+            probeBootstrap = new Bootstrap()
+                .group(probeEventLoopGroup)
+                .channel(transport.channelClass())
+                .resolver(probeResolverGroup)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, probeTimeoutMillis)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                    }
+                });
+            probeEventLoopGroup.scheduleWithFixedDelay(this::probe, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public Queue<? extends UpstreamProxy> lookupUpstreamProxies(Object requestObject,
+                                                                Credentials credentials,
+                                                                SocketAddress clientAddress,
+                                                                InetSocketAddress serverAddress) throws Exception {
+        ProxyHealth[] proxies = this.proxies;
+        if (proxies.length == 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        List<Candidate> healthy = new ArrayList<>(proxies.length);
+        List<Candidate> trial = new ArrayList<>(0);
+        for (ProxyHealth proxy : proxies) {
+            CircuitState state = proxy.circuitState(now);
+            if (state == CircuitState.CLOSED) {
+                healthy.add(new Candidate(proxy));
+            } else if (state == CircuitState.HALF_OPEN) {
+                trial.add(new Candidate(proxy));
+            }
+        }
+        if (healthy.isEmpty()) {
+            healthy = trial;
+            trial = Collections.emptyList();
+        }
+        if (healthy.isEmpty()) {
+            for (ProxyHealth proxy : proxies) {
+                healthy.add(new Candidate(proxy));
+            }
+        }
+        Candidate first = choose(healthy);
+        // The scores change concurrently, the candidates keep the ones read once.
+        healthy.sort(Comparator.comparingDouble(candidate -> candidate.score));
+        trial.sort(Comparator.comparingDouble(candidate -> candidate.score));
+        Queue<UpstreamProxy> queue = new ArrayDeque<>(healthy.size() + trial.size());
+        queue.offer(first.proxy.upstreamProxy);
+        for (Candidate candidate : healthy) {
+            if (candidate != first) {
+                queue.offer(candidate.proxy.upstreamProxy);
+            }
+        }
+        for (Candidate candidate : trial) {
+            queue.offer(candidate.proxy.upstreamProxy);
+        }
+        return queue;
+    }
+
+    protected Candidate choose(List<Candidate> candidates) {
+        switch (strategy) {
+            case POWER_OF_TWO_CHOICES:
+                if (candidates.size() == 1) {
+                    return candidates.get(0);
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int i = random.nextInt(candidates.size());
+                int j = random.nextInt(candidates.size() - 1);
+                Candidate a = candidates.get(i);
+                Candidate b = candidates.get(j < i ? j : j + 1);
+                return a.score <= b.score ? a : b;
+            case WEIGHTED_ROUND_ROBIN:
+                return nextWeighted(candidates);
+            default:
+                Candidate best = candidates.get(0);
+                for (Candidate candidate : candidates) {
+                    if (candidate.score < best.score) {
+                        best = candidate;
+                    }
+                }
+                return best;
+        }
+    }
+
+    /**
+     * The smooth weighted round robin of nginx: every proxy gains its weight, the richest one is chosen
+     * and pays back the total.
+     */
+    protected synchronized Candidate nextWeighted(List<Candidate> candidates) {
+        Candidate best = null;
+        int total = 0;
+        for (Candidate candidate : candidates) {
+            ProxyHealth proxy = candidate.proxy;
+            proxy.currentWeight += proxy.weight;
+            total += proxy.weight;
+            if (best == null || proxy.currentWeight > best.proxy.currentWeight) {
+                best = candidate;
+            }
+        }
+        best.proxy.currentWeight -= total;
+        return best;
+    }
+
+    @Override
+    public void connectSucceeded(UpstreamProxy upstreamProxy, InetSocketAddress serverAddress, long latencyNanos) {
+        ProxyHealth proxy = proxyHealths.get(upstreamProxy);
+        if (proxy != null) {
+            proxy.succeeded(latencyNanos);
+        }
+    }
+
+    @Override
+    public void failConnectExceptionCaught(UpstreamProxy upstreamProxy, InetSocketAddress serverAddress, Throwable throwable) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Upstream proxy {} failed to connect to {}: {}", upstreamProxy, serverAddress, throwable.toString());
+        }
+        ProxyHealth proxy = proxyHealths.get(upstreamProxy);
+        if (proxy != null) {
+            proxy.failed();
+        }
+    }
+
+    /**
+     * Connects to every proxy whose circuit is closed or due for a trial, all at once, from the event loop of
+     * the probe. A TCP connect only tells whether the proxy is reachable: a failure counts towards opening
+     * the circuit, a success ends the run of failures and closes a half-open circuit, the latency score is
+     * left to the real handshakes. A proxy still being probed from the last round is skipped.
+     */
+    protected void probe() {
+        long now = System.nanoTime();
+        for (ProxyHealth proxy : proxies) {
+            if (proxy.probing || proxy.circuitState(now) == CircuitState.OPEN) {
+                continue;
+            }
+            proxy.probing = true;
+            ChannelFuture future = probeBootstrap.connect(proxy.upstreamProxy.getSocketAddress());
+            future.addListener((ChannelFuture f) -> {
+                proxy.probing = false;
+                if (f.isSuccess()) {
+                    f.channel().close();
+                    proxy.probeSucceeded();
+                } else {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Upstream proxy {} probe failed: {}", proxy.upstreamProxy, f.cause().toString());
+                    }
+                    proxy.probeFailed();
+                }
+            });
+        }
+    }
+
+    public BalancedUpstreamProxyManager addProxy(UpstreamProxy upstreamProxy) {
+        return addProxy(upstreamProxy, 1);
+    }
+
+    public synchronized BalancedUpstreamProxyManager addProxy(UpstreamProxy upstreamProxy, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight: " + weight + " (expected: > 0)");
+        }
+        if (proxyHealths.containsKey(upstreamProxy)) {
+            return this;
+        }
+        ProxyHealth proxy = new ProxyHealth(upstreamProxy, weight);
+        ProxyHealth[] proxies = Arrays.copyOf(this.proxies, this.proxies.length + 1);
+        proxies[proxies.length - 1] = proxy;
+        proxyHealths.put(upstreamProxy, proxy);
+        this.proxies = proxies;
+        return this;
+    }
+
+    public synchronized BalancedUpstreamProxyManager removeProxy(UpstreamProxy upstreamProxy) {
+        ProxyHealth proxy = proxyHealths.remove(upstreamProxy);
+        if (proxy != null) {
+            List<ProxyHealth> proxies = new ArrayList<>(Arrays.asList(this.proxies));
+            proxies.remove(proxy);
+            this.proxies = proxies.toArray(new ProxyHealth[0]);
+        }
+        return this;
+    }
+
+    /**
+     * Replaces all the proxies at once, the ones that stay with the same weight keep their health.
+     *
+     * @param proxies the proxies with their weights, in order
+     */
+    public synchronized BalancedUpstreamProxyManager setProxies(Map<UpstreamProxy, Integer> proxies) {
+        ProxyHealth[] healths = new ProxyHealth[proxies.size()];
+        int i = 0;
+        for (Map.Entry<UpstreamProxy, Integer> entry : proxies.entrySet()) {
+            int weight = entry.getValue();
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weight: " + weight + " (expected: > 0)");
+            }
+            ProxyHealth proxy = proxyHealths.get(entry.getKey());
+            healths[i++] = proxy != null && proxy.weight == weight ? proxy : new ProxyHealth(entry.getKey(), weight);
+        }
+        for (ProxyHealth proxy : healths) {
+            proxyHealths.put(proxy.upstreamProxy, proxy);
+        }
+        proxyHealths.keySet().retainAll(proxies.keySet());
+        this.proxies = healths;
+        return this;
+    }
+
+    public List<ProxyHealth> getProxies() {
+        return Collections.unmodifiableList(Arrays.asList(proxies));
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    @Override
+    public void close() {
+        if (probeEventLoopGroup != null) {
+            probeResolverGroup.close();
+            probeEventLoopGroup.shutdownGracefully(0, probeTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The health of an upstream proxy.
+     */
+    public class ProxyHealth {
+
+        final UpstreamProxy upstreamProxy;
+        final int weight;
+        int currentWeight;
+
+        volatile double latencyNanos;
+        volatile long successCount;
+        volatile long failureCount;
+        long sampleCount;
+        int consecutiveFailures;
+        CircuitState circuitState = CircuitState.CLOSED;
+        long currentOpenNanos;
+        long openUntil;
+        /**
+         * Whether a probe connect is in flight, only accessed from the event loop of the probe.
+         */
+        boolean probing;
+
+        ProxyHealth(UpstreamProxy upstreamProxy, int weight) {
+            this.upstreamProxy = upstreamProxy;
+            this.weight = weight;
+        }
+
+        /**
+         * The lower the better. A proxy without any sample yet scores {@code 0}, so it is tried soon.
+         */
+        public double score() {
+            return latencyNanos;
+        }
+
+        /**
+         * An open circuit turns half-open once its open period has elapsed.
+         */
+        synchronized CircuitState circuitState(long now) {
+            if (circuitState == CircuitState.OPEN && now - openUntil >= 0) {
+                circuitState = CircuitState.HALF_OPEN;
+            }
+            return circuitState;
+        }
+
+        synchronized void succeeded(long latencyNanos) {
+            successCount++;
+            sample(latencyNanos);
+            close();
+        }
+
+        /**
+         * A reachable proxy ends the run of failures, so that isolated ones never add up to open the circuit.
+         * An open circuit is left to its period.
+         */
+        synchronized void probeSucceeded() {
+            if (circuitState == CircuitState.OPEN) {
+                return;
+            }
+            close();
+        }
+
+        synchronized void failed() {
+            sample(failureLatencyNanos);
+            probeFailed();
+        }
+
+        synchronized void probeFailed() {
+            failureCount++;
+            consecutiveFailures++;
+            if (circuitState == CircuitState.HALF_OPEN) {
+                open(Math.min(currentOpenNanos * 2, maxOpenNanos));
+            } else if (circuitState == CircuitState.CLOSED && consecutiveFailures >= failureThreshold) {
+                open(openNanos);
+            }
+        }
+
+        private void close() {
+            consecutiveFailures = 0;
+            if (circuitState != CircuitState.CLOSED) {
+                logger.info("Upstream proxy {} recovered.", upstreamProxy);
+                circuitState = CircuitState.CLOSED;
+                currentOpenNanos = 0;
+            }
+        }
+
+        private void open(long openNanos) {
+            logger.warn("Upstream proxy {} is unhealthy, skip it for {}ms.", upstreamProxy,
+                TimeUnit.NANOSECONDS.toMillis(openNanos));
+            this.circuitState = CircuitState.OPEN;
+            this.currentOpenNanos = openNanos;
+            this.openUntil = System.nanoTime() + openNanos;
+        }
+
+        private void sample(long latencyNanos) {
+            double latency = this.latencyNanos;
+            this.latencyNanos = ++sampleCount == 1 ? latencyNanos
+                : latency + ewmaAlpha * (latencyNanos - latency);
+        }
+
+        public UpstreamProxy getUpstreamProxy() {
+            return upstreamProxy;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public long getLatencyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis((long) latencyNanos);
+        }
+
+        public long getSuccessCount() {
+            return successCount;
+        }
+
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        public synchronized CircuitState getCircuitState() {
+            return circuitState;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "ProxyHealth{" +
+                "upstreamProxy=" + upstreamProxy +
+                ", weight=" + weight +
+                ", latencyMillis=" + getLatencyMillis() +
+                ", successCount=" + successCount +
+                ", failureCount=" + failureCount +
+                ", circuitState=" + circuitState +
+                '}';
+        }
+    }
+
+    /**
+     * A proxy with its score read once.
+     */
+    protected static final class Candidate {
+
+        final ProxyHealth proxy;
+        final double score;
+
+        Candidate(ProxyHealth proxy) {
+            this.proxy = proxy;
+            this.score = proxy.score();
+        }
+
+        public ProxyHealth getProxy() {
+            return proxy;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * Builder
+     */
+    public static class Builder {
+
+        final Map<UpstreamProxy, Integer> proxies = new LinkedHashMap<>();
+        Strategy strategy = Strategy.POWER_OF_TWO_CHOICES;
+        double ewmaAlpha = DEFAULT_EWMA_ALPHA;
+        int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        long failureLatencyMillis = DEFAULT_FAILURE_LATENCY_MILLIS;
+        long openMillis = DEFAULT_OPEN_MILLIS;
+        long maxOpenMillis = DEFAULT_MAX_OPEN_MILLIS;
+        long probeIntervalMillis = DEFAULT_PROBE_INTERVAL_MILLIS;
+        int probeTimeoutMillis = DEFAULT_PROBE_TIMEOUT_MILLIS;
+
+        public BalancedUpstreamProxyManager build() {
+            return new BalancedUpstreamProxyManager(this);
+        }
+
+        public Builder withProxy(UpstreamProxy upstreamProxy) {
+            return withProxy(upstreamProxy, 1);
+        }
+
+        /**
+         * @param weight the share of the connections under {@link Strategy#WEIGHTED_ROUND_ROBIN}
+         */
+        public Builder withProxy(UpstreamProxy upstreamProxy, int weight) {
+            proxies.put(upstreamProxy, weight);
+            return this;
+        }
+
+        public Builder withStrategy(Strategy strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        /**
+         * The weight of the latest sample in the latency score, between {@code 0} and {@code 1}.
+         */
+        public Builder withEwmaAlpha(double ewmaAlpha) {
+            this.ewmaAlpha = ewmaAlpha;
+            return this;
+        }
+
+        /**
+         * How many consecutive failures open the circuit of a proxy.
+         */
+        public Builder withFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * The latency a failed connect counts for in the score. Failed probes do not count.
+         */
+        public Builder withFailureLatencyMillis(long failureLatencyMillis) {
+            this.failureLatencyMillis = failureLatencyMillis;
+            return this;
+        }
+
+        /**
+         * How long an unhealthy proxy is left out at first, and at most.
+         */
+        public Builder withOpenMillis(long openMillis, long maxOpenMillis) {
+            this.openMillis = openMillis;
+            this.maxOpenMillis = maxOpenMillis;
+            return this;
+        }
+
+        /**
+         * The interval of the background probe, {@code 0} to disable it.
+         */
+        public Builder withProbeIntervalMillis(long probeIntervalMillis) {
+            this.probeIntervalMillis = probeIntervalMillis;
+            return this;
+        }
+
+        public Builder withProbeTimeoutMillis(int probeTimeoutMillis) {
+            this.probeTimeoutMillis = probeTimeoutMillis;
+            return this;
+        }
+    }
+}
@@ -30,8 +30,30 @@ public interface ChannelManager {
 
     ChannelFuture acquire(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, ChannelHandlerContext ctx);
 
+    /**
+     * Acquires a channel on which TLS will be handshaken with the server, {@code serverName} is the host
+     * name sent with SNI. A channel released with its TLS session may only be handed out again for the same
+     * server name.
+     */
+    default ChannelFuture acquire(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, String serverName,
+                                  ChannelHandlerContext ctx) {
+        return upstreamProxy == null ? acquire(serverAddress, ctx) : acquire(serverAddress, upstreamProxy, ctx);
+    }
+
     void release(Channel channel, InetSocketAddress serverAddress);
 
     void release(Channel channel, InetSocketAddress serverAddress, UpstreamProxy upstreamProxy);
 
+    /**
+     * Releases a channel, {@code reusable} tells whether the last exchange on it has been completed
+     * so that the channel can be handed out again for the same server address and upstream proxy.
+     */
+    default void release(Channel channel, InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, boolean reusable) {
+        if (upstreamProxy == null) {
+            release(channel, serverAddress);
+        } else {
+            release(channel, serverAddress, upstreamProxy);
+        }
+    }
+
 }
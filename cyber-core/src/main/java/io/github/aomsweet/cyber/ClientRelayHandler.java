@@ -16,12 +16,14 @@
 package io.github.aomsweet.cyber;
 
 import io.netty.channel.*;
+import io.netty.handler.proxy.ProxyHandler;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 import io.netty.util.internal.logging.InternalLogger;
 
 import java.net.InetSocketAddress;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author aomsweet
@@ -87,33 +89,59 @@ public abstract class ClientRelayHandler<T> extends RelayHandler {
     private ChannelFuture acquireChannelFuture(T request) throws Exception {
         if (upstreamProxy == null) {
             if (upstreamProxyManager == null) {
-                return channelManager.acquire(serverAddress, ctx);
+                return acquireChannel(null);
             } else {
                 Queue<? extends UpstreamProxy> upstreamProxies = upstreamProxyManager.lookupUpstreamProxies(request,
                     credentials, clientChannel.remoteAddress(), serverAddress);
 
                 if (upstreamProxies == null || upstreamProxies.isEmpty()) {
-                    return channelManager.acquire(serverAddress, ctx);
+                    return acquireChannel(null);
                 } else {
                     CompleteChannelPromise promise = new CompleteChannelPromise(ctx.channel().eventLoop());
-                    acquireChannelFuture(upstreamProxies, promise);
+                    if (cyber.isUpstreamProxyHedgingEnabled()) {
+                        new HedgedAcquisition(upstreamProxies, promise).start();
+                    } else {
+                        acquireChannelFuture(upstreamProxies, promise);
+                    }
                     return promise;
                 }
             }
         } else {
-            return channelManager.acquire(serverAddress, upstreamProxy, ctx);
+            return acquireChannel(upstreamProxy);
         }
     }
 
+    /**
+     * Acquires a channel to the server, through the given upstream proxy unless it is {@code null}.
+     */
+    protected ChannelFuture acquireChannel(UpstreamProxy upstreamProxy) {
+        return upstreamProxy == null
+            ? channelManager.acquire(serverAddress, ctx)
+            : channelManager.acquire(serverAddress, upstreamProxy, ctx);
+    }
+
+    /**
+     * Gives back a channel obtained from {@link #acquireChannel}.
+     */
+    protected void releaseChannel(Channel channel, UpstreamProxy upstreamProxy, boolean reusable) {
+        channelManager.release(channel, serverAddress, upstreamProxy, reusable);
+    }
+
     private void acquireChannelFuture(Queue<? extends UpstreamProxy> upstreamProxies, CompleteChannelPromise promise) {
         UpstreamProxy upstreamProxy = upstreamProxies.poll();
         if (logger.isDebugEnabled()) {
             logger.debug("Use upstream proxy: [{}]", upstreamProxy);
         }
-        channelManager.acquire(serverAddress, upstreamProxy, ctx).addListener((ChannelFutureListener) future -> {
+        long startTime = System.nanoTime();
+        ChannelFuture acquireFuture = acquireChannel(upstreamProxy);
+        boolean reused = acquireFuture.isDone();
+        acquireFuture.addListener((ChannelFutureListener) future -> {
             if (future.isSuccess()) {
                 this.upstreamProxy = upstreamProxy;
                 promise.setChannel(future.channel()).setSuccess();
+                if (!reused) {
+                    reportHandshake(future.channel(), upstreamProxy, startTime);
+                }
             } else {
                 Throwable cause = future.cause();
                 upstreamProxyManager.failConnectExceptionCaught(upstreamProxy, serverAddress, cause);
@@ -126,9 +154,143 @@ public abstract class ClientRelayHandler<T> extends RelayHandler {
         });
     }
 
+    /**
+     * Reports the latency of the upstream proxy once its handshake is done, or the failure of the handshake.
+     */
+    private void reportHandshake(Channel channel, UpstreamProxy upstreamProxy, long startTime) throws Exception {
+        ProxyHandler proxyHandler = lastProxyHandler(channel);
+        if (proxyHandler == null || proxyHandler.isConnected()) {
+            upstreamProxyManager.connectSucceeded(upstreamProxy, serverAddress, System.nanoTime() - startTime);
+        } else {
+            proxyHandler.connectFuture().addListener(future -> {
+                if (future.isSuccess()) {
+                    upstreamProxyManager.connectSucceeded(upstreamProxy, serverAddress, System.nanoTime() - startTime);
+                } else {
+                    upstreamProxyManager.failConnectExceptionCaught(upstreamProxy, serverAddress, future.cause());
+                }
+            });
+        }
+    }
+
+    /**
+     * Connects through several upstream proxies in parallel: the first ones immediately, then the next one
+     * whenever an attempt fails or the hedge delay elapses. The first proxy to complete its handshake wins,
+     * the channels of the others are released.
+     */
+    class HedgedAcquisition {
+
+        final Queue<? extends UpstreamProxy> upstreamProxies;
+        final CompleteChannelPromise promise;
+        final Map<ChannelFuture, UpstreamProxy> attempts = new LinkedHashMap<>();
+        ScheduledFuture<?> nextAttempt;
+        int pending;
+
+        HedgedAcquisition(Queue<? extends UpstreamProxy> upstreamProxies, CompleteChannelPromise promise) {
+            this.upstreamProxies = upstreamProxies;
+            this.promise = promise;
+        }
+
+        void start() {
+            int immediateAttempts = Math.max(1, cyber.getUpstreamProxyHedgeImmediateAttempts());
+            for (int i = 0; i < immediateAttempts && upstreamProxies.peek() != null; i++) {
+                next();
+            }
+            scheduleNext();
+        }
+
+        void next() {
+            UpstreamProxy upstreamProxy = upstreamProxies.poll();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Use upstream proxy: [{}]", upstreamProxy);
+            }
+            long startTime = System.nanoTime();
+            ChannelFuture future = acquireChannel(upstreamProxy);
+            // A pooled channel is handed out at once, its latency says nothing about the proxy.
+            long reportedStartTime = future.isDone() ? -1 : startTime;
+            attempts.put(future, upstreamProxy);
+            pending++;
+            future.addListener((ChannelFutureListener) f -> {
+                if (f.isSuccess()) {
+                    ProxyHandler proxyHandler = lastProxyHandler(f.channel());
+                    if (proxyHandler == null) {
+                        completed(f.channel(), upstreamProxy, reportedStartTime, null);
+                    } else {
+                        proxyHandler.connectFuture().addListener(h ->
+                            completed(f.channel(), upstreamProxy, reportedStartTime, h.cause()));
+                    }
+                } else {
+                    completed(f.channel(), upstreamProxy, reportedStartTime, f.cause());
+                }
+            });
+        }
+
+        void scheduleNext() {
+            long delayMillis = cyber.getUpstreamProxyHedgeDelayMillis();
+            if (delayMillis >= 0 && upstreamProxies.peek() != null) {
+                nextAttempt = ctx.executor().schedule(() -> {
+                    if (!promise.isDone()) {
+                        next();
+                        scheduleNext();
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void cancelNextAttempt() {
+            if (nextAttempt != null) {
+                nextAttempt.cancel(false);
+                nextAttempt = null;
+            }
+        }
+
+        void completed(Channel channel, UpstreamProxy upstreamProxy, long startTime, Throwable cause) throws Exception {
+            pending--;
+            if (cause == null && startTime != -1) {
+                upstreamProxyManager.connectSucceeded(upstreamProxy, serverAddress, System.nanoTime() - startTime);
+            }
+            if (promise.isDone()) {
+                if (cause == null) {
+                    releaseChannel(channel, upstreamProxy, false);
+                }
+            } else if (cause == null) {
+                cancelNextAttempt();
+                ClientRelayHandler.this.upstreamProxy = upstreamProxy;
+                promise.setChannel(channel).setSuccess();
+                for (Map.Entry<ChannelFuture, UpstreamProxy> attempt : attempts.entrySet()) {
+                    ChannelFuture future = attempt.getKey();
+                    if (future.channel() == channel || future.cancel(false)) {
+                        continue;
+                    }
+                    ProxyHandler proxyHandler = lastProxyHandler(future.channel());
+                    if (proxyHandler == null || proxyHandler.isConnected()) {
+                        releaseChannel(future.channel(), attempt.getValue(), false);
+                    } else {
+                        // Writes are held back until the handshake is done, so it can't be released gracefully.
+                        future.channel().pipeline().addLast(DiscardRelayHandler.INSTANCE);
+                        future.channel().close();
+                    }
+                }
+            } else {
+                upstreamProxyManager.failConnectExceptionCaught(upstreamProxy, serverAddress, cause);
+                if (upstreamProxies.peek() != null) {
+                    cancelNextAttempt();
+                    next();
+                    scheduleNext();
+                } else if (pending == 0) {
+                    promise.setFailure(cause);
+                }
+            }
+        }
+    }
+
     public void dockingRelay() throws Exception {
         if (relayChannel.isActive()) {
-            relayChannel.pipeline().addLast(HandlerNames.RELAY, newServerRelayHandler());
+            ChannelPipeline pipeline = relayChannel.pipeline();
+            pipeline.addLast(HandlerNames.RELAY, newServerRelayHandler());
+            if (pipeline.get(HandlerNames.TUNNEL) != null) {
+                // Passes on what the server sent before the relay was there.
+                pipeline.remove(HandlerNames.TUNNEL);
+            }
             if (pendingWrites != null) {
                 for (Object message = pendingWrites.poll(); message != null; message = pendingWrites.poll()) {
                     relayChannel.write(message);
@@ -137,14 +299,65 @@ public abstract class ClientRelayHandler<T> extends RelayHandler {
                 pendingWritesGC();
             }
             state = State.READY;
-            if (!clientChannel.config().isAutoRead()) {
+            if (!clientChannel.config().isAutoRead() && !isReadingPaused()) {
                 clientChannel.config().setAutoRead(true);
             }
+            if (isSpliceable() && cyber.isSpliceEnabled()) {
+                splice();
+            }
         } else {
             close();
         }
     }
 
+    /**
+     * Whether reading from the client is held back until the relay catches up.
+     */
+    protected boolean isReadingPaused() {
+        return false;
+    }
+
+    /**
+     * Whether the relay is a pure byte stream that the transport may splice in the kernel.
+     */
+    protected boolean isSpliceable() {
+        return false;
+    }
+
+    private void splice() {
+        ProxyHandler proxyHandler = lastProxyHandler(relayChannel);
+        if (proxyHandler == null || proxyHandler.isConnected()) {
+            splice0();
+        } else {
+            // The upstream proxy handshake must not be bypassed.
+            proxyHandler.connectFuture().addListener(future -> {
+                if (future.isSuccess() && state == State.READY) {
+                    splice0();
+                }
+            });
+        }
+    }
+
+    /**
+     * The handler of the last upstream proxy hop, which completes the handshake of the channel.
+     */
+    static ProxyHandler lastProxyHandler(Channel channel) {
+        ProxyHandler proxyHandler = null;
+        for (Map.Entry<String, ChannelHandler> entry : channel.pipeline()) {
+            if (entry.getValue() instanceof ProxyHandler) {
+                proxyHandler = (ProxyHandler) entry.getValue();
+            }
+        }
+        return proxyHandler;
+    }
+
+    private void splice0() {
+        Transport transport = cyber.getTransport();
+        if (transport != null && transport.splice(clientChannel, relayChannel) && logger.isDebugEnabled()) {
+            logger.debug("{} SPLICED TO {}", clientChannel, relayChannel);
+        }
+    }
+
     protected void addPendingWrites(Object msg) {
         if (pendingWrites == null) {
             pendingWrites = new ArrayDeque<>(3);
@@ -161,7 +374,7 @@ public abstract class ClientRelayHandler<T> extends RelayHandler {
     }
 
     @Override
-    protected final void release() {
+    protected void release() {
         if (pendingWrites != null) {
             for (Object message = pendingWrites.poll(); message != null; message = pendingWrites.poll()) {
                 ReferenceCountUtil.release(message);
@@ -176,14 +389,16 @@ public abstract class ClientRelayHandler<T> extends RelayHandler {
         if (relayChannel == null || !relayChannel.isActive()) {
             return;
         }
-        ChannelManager channelManager = cyber.channelManager;
-        if (channelManager != null) {
-            if (upstreamProxy == null) {
-                channelManager.release(relayChannel, serverAddress);
-            } else {
-                channelManager.release(relayChannel, serverAddress, upstreamProxy);
-            }
-        }
+        flushRelay();
+        releaseChannel(relayChannel, upstreamProxy, isRelayChannelReusable());
+    }
+
+    /**
+     * Whether the relay channel is at a message boundary and can be handed out to another client.
+     * Opaque relays never know that, so they are not reusable by default.
+     */
+    protected boolean isRelayChannelReusable() {
+        return false;
     }
 
     public ClientRelayHandler<T> setCredentials(Credentials credentials) {
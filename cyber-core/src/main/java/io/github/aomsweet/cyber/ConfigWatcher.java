@@ -0,0 +1,139 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads a file again whenever it changes, on a thread of its own. The loader builds the new rules and
+ * publishes them at once, such as with
+ * {@link io.github.aomsweet.cyber.http.interceptor.DefaultHttpInterceptorManager#setRuleSet} or
+ * {@link BalancedUpstreamProxyManager#setProxies}, so the event loops never wait for a reload. A load that
+ * fails leaves the previous rules in place.
+ *
+ * @author aomsweet
+ */
+public class ConfigWatcher implements Closeable {
+
+    private final static InternalLogger logger = InternalLoggerFactory.getInstance(ConfigWatcher.class);
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 200;
+
+    public interface Loader {
+
+        void load(Path file) throws Exception;
+
+    }
+
+    final Path file;
+    final Loader loader;
+    long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+
+    WatchService watchService;
+    Thread thread;
+
+    public ConfigWatcher(Path file, Loader loader) {
+        this.file = file.toAbsolutePath();
+        this.loader = loader;
+    }
+
+    /**
+     * Loads the file once on the calling thread, a failure is thrown, then watches it.
+     */
+    public synchronized ConfigWatcher start() throws Exception {
+        if (thread != null) {
+            return this;
+        }
+        loader.load(file);
+        WatchService watchService = file.getFileSystem().newWatchService();
+        // The directory is watched, so that a file replaced by a rename is still seen.
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.watchService = watchService;
+        thread = new Thread(() -> watch(watchService), "Cyber config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    private void watch(WatchService watchService) {
+        try {
+            for (; ; ) {
+                boolean changed = drain(watchService.take());
+                // A file is often written in several steps, it is loaded once it has settled.
+                for (WatchKey key; (key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null; ) {
+                    changed |= drain(key);
+                }
+                if (changed) {
+                    load();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.debug("Stopped watching {}", file);
+        }
+    }
+
+    private boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void load() {
+        if (Files.notExists(file)) {
+            return;
+        }
+        try {
+            loader.load(file);
+            logger.info("Reloaded {}", file);
+        } catch (Exception e) {
+            logger.error("Failed to reload {}, the previous rules are kept.", file, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            thread.interrupt();
+            watchService = null;
+            thread = null;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    public ConfigWatcher setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = debounceMillis;
+        return this;
+    }
+}
@@ -15,19 +15,24 @@
  */
 package io.github.aomsweet.cyber;
 
+import io.github.aomsweet.cyber.http.Http2ConnectionPool;
+import io.github.aomsweet.cyber.http.SslSessionStatistics;
 import io.github.aomsweet.cyber.http.interceptor.HttpInterceptorManager;
 import io.github.aomsweet.cyber.http.mitm.MitmManager;
+import io.github.aomsweet.cyber.http.mitm.SelfSignedMitmManager;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.resolver.AddressResolverGroup;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.concurrent.*;
@@ -40,12 +45,33 @@ public class CyberServer implements Closeable {
 
     private final static InternalLogger logger = InternalLoggerFactory.getInstance(CyberServer.class);
 
-    HttpInterceptorManager httpInterceptorManager;
-    UpstreamProxyManager upstreamProxyManager;
+    public static final int DEFAULT_RELAY_FLUSH_THRESHOLD = 16;
+    public static final int DEFAULT_HTTP_PIPELINING_DEPTH = 16;
+    public static final int DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS = 256;
+    public static final long DEFAULT_CLIENT_SESSION_CACHE_SIZE = 4096;
+    public static final long DEFAULT_CLIENT_SESSION_TIMEOUT = 3600;
+
+    volatile HttpInterceptorManager httpInterceptorManager;
+    volatile UpstreamProxyManager upstreamProxyManager;
     MitmManager mitmManager;
     SslContext clientSslContext;
+    SslProvider sslProvider;
+    long clientSessionCacheSize = DEFAULT_CLIENT_SESSION_CACHE_SIZE;
+    long clientSessionTimeout = DEFAULT_CLIENT_SESSION_TIMEOUT;
+    final SslSessionStatistics clientSslSessionStatistics = new SslSessionStatistics();
     ChannelManager channelManager;
     ProxyAuthenticator proxyAuthenticator;
+    Transport transport;
+    boolean holdResolverGroup;
+    AddressResolverGroup<? extends SocketAddress> resolverGroup;
+    boolean spliceEnabled;
+    int relayFlushThreshold = DEFAULT_RELAY_FLUSH_THRESHOLD;
+    int httpPipeliningDepth = DEFAULT_HTTP_PIPELINING_DEPTH;
+    boolean http2Enabled;
+    int http2MaxConcurrentStreams = DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS;
+    Http2ConnectionPool http2ConnectionPool;
+    long upstreamProxyHedgeDelayMillis = -1;
+    int upstreamProxyHedgeImmediateAttempts = 1;
 
     SocketAddress actualBoundAddress;
     SocketAddress preBoundAddress;
@@ -63,12 +89,12 @@ public class CyberServer implements Closeable {
     public CompletionStage<Channel> start() {
         if (acceptorEventLoopGroup == null) {
             holdAcceptorEventLoopGroup = true;
-            acceptorEventLoopGroup = new NioEventLoopGroup(acceptorEventLoopGroupSize,
+            acceptorEventLoopGroup = transport.newEventLoopGroup(acceptorEventLoopGroupSize,
                 threadFactory("Cyber acceptor-"));
         }
         if (workerEventLoopGroup == null) {
             holdWorkerEventLoopGroup = true;
-            workerEventLoopGroup = new NioEventLoopGroup(workerEventLoopGroupSize,
+            workerEventLoopGroup = transport.newEventLoopGroup(workerEventLoopGroupSize,
                 threadFactory("Cyber worker-"));
         }
         return doBind();
@@ -78,7 +104,7 @@ public class CyberServer implements Closeable {
         final long startTimestamp = System.currentTimeMillis();
         ServerBootstrap bootstrap = new ServerBootstrap()
             .group(acceptorEventLoopGroup, workerEventLoopGroup)
-            .channel(NioServerSocketChannel.class);
+            .channel(transport.serverChannelClass());
         if (logger.isTraceEnabled()) {
             bootstrap.handler(new LoggingHandler(LogLevel.TRACE));
         }
@@ -103,8 +129,8 @@ public class CyberServer implements Closeable {
                 if (address.charAt(0) == '/') {
                     address = address.substring(1);
                 }
-                logger.info("Cyber started in {}s. Listening on: {}",
-                    (System.currentTimeMillis() - startTimestamp) / 1000.0, address);
+                logger.info("Cyber started in {}s. Listening on: {} ({})",
+                    (System.currentTimeMillis() - startTimestamp) / 1000.0, address, transport.name());
             } else {
                 logger.error("Cyber start failed.", future.cause());
                 channelFuture.completeExceptionally(future.cause());
@@ -143,6 +169,17 @@ public class CyberServer implements Closeable {
     private CompletableFuture<Void> doStop(int timeout) {
         logger.info("Cyber is stopping...");
         long stopTimestamp = System.currentTimeMillis();
+        if (holdResolverGroup) {
+            resolverGroup.close();
+        }
+        if (upstreamProxyManager instanceof Closeable) {
+            // Stops the background tasks, such as the probe of a balanced upstream proxy manager.
+            try {
+                ((Closeable) upstreamProxyManager).close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the upstream proxy manager.", e);
+            }
+        }
         CompletableFuture<Void> future;
         if (holdAcceptorEventLoopGroup && !(acceptorEventLoopGroup.isShutdown() || acceptorEventLoopGroup.isShuttingDown())) {
             future = shutdownEventLoopGroup(acceptorEventLoopGroup, timeout,
@@ -197,6 +234,9 @@ public class CyberServer implements Closeable {
         return httpInterceptorManager;
     }
 
+    /**
+     * Takes effect for the new connections, the others keep the interceptors they started with.
+     */
     public CyberServer setHttpInterceptorManager(HttpInterceptorManager httpInterceptorManager) {
         this.httpInterceptorManager = httpInterceptorManager;
         return this;
@@ -206,6 +246,9 @@ public class CyberServer implements Closeable {
         return upstreamProxyManager;
     }
 
+    /**
+     * Takes effect for the new connections, the others keep the manager they started with.
+     */
     public CyberServer setUpstreamProxyManager(UpstreamProxyManager upstreamProxyManager) {
         this.upstreamProxyManager = upstreamProxyManager;
         return this;
@@ -229,6 +272,37 @@ public class CyberServer implements Closeable {
         return this;
     }
 
+    public SslProvider getSslProvider() {
+        return sslProvider;
+    }
+
+    public CyberServer setSslProvider(SslProvider sslProvider) {
+        this.sslProvider = sslProvider;
+        return this;
+    }
+
+    public long getClientSessionCacheSize() {
+        return clientSessionCacheSize;
+    }
+
+    public CyberServer setClientSessionCacheSize(long clientSessionCacheSize) {
+        this.clientSessionCacheSize = clientSessionCacheSize;
+        return this;
+    }
+
+    public long getClientSessionTimeout() {
+        return clientSessionTimeout;
+    }
+
+    public CyberServer setClientSessionTimeout(long clientSessionTimeout) {
+        this.clientSessionTimeout = clientSessionTimeout;
+        return this;
+    }
+
+    public SslSessionStatistics getClientSslSessionStatistics() {
+        return clientSslSessionStatistics;
+    }
+
     public ChannelManager getChannelManager() {
         return channelManager;
     }
@@ -247,6 +321,109 @@ public class CyberServer implements Closeable {
         return this;
     }
 
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public CyberServer setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    public boolean isHoldResolverGroup() {
+        return holdResolverGroup;
+    }
+
+    public CyberServer setHoldResolverGroup(boolean holdResolverGroup) {
+        this.holdResolverGroup = holdResolverGroup;
+        return this;
+    }
+
+    public AddressResolverGroup<? extends SocketAddress> getResolverGroup() {
+        return resolverGroup;
+    }
+
+    public CyberServer setResolverGroup(AddressResolverGroup<? extends SocketAddress> resolverGroup) {
+        this.resolverGroup = resolverGroup;
+        return this;
+    }
+
+    public boolean isSpliceEnabled() {
+        return spliceEnabled;
+    }
+
+    public CyberServer setSpliceEnabled(boolean spliceEnabled) {
+        this.spliceEnabled = spliceEnabled;
+        return this;
+    }
+
+    public int getRelayFlushThreshold() {
+        return relayFlushThreshold;
+    }
+
+    public CyberServer setRelayFlushThreshold(int relayFlushThreshold) {
+        this.relayFlushThreshold = relayFlushThreshold;
+        return this;
+    }
+
+    public int getHttpPipeliningDepth() {
+        return httpPipeliningDepth;
+    }
+
+    public CyberServer setHttpPipeliningDepth(int httpPipeliningDepth) {
+        this.httpPipeliningDepth = httpPipeliningDepth;
+        return this;
+    }
+
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    public CyberServer setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+        return this;
+    }
+
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+
+    public CyberServer setHttp2MaxConcurrentStreams(int http2MaxConcurrentStreams) {
+        this.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+        return this;
+    }
+
+    public Http2ConnectionPool getHttp2ConnectionPool() {
+        return http2ConnectionPool;
+    }
+
+    public CyberServer setHttp2ConnectionPool(Http2ConnectionPool http2ConnectionPool) {
+        this.http2ConnectionPool = http2ConnectionPool;
+        return this;
+    }
+
+    public long getUpstreamProxyHedgeDelayMillis() {
+        return upstreamProxyHedgeDelayMillis;
+    }
+
+    public CyberServer setUpstreamProxyHedgeDelayMillis(long upstreamProxyHedgeDelayMillis) {
+        this.upstreamProxyHedgeDelayMillis = upstreamProxyHedgeDelayMillis;
+        return this;
+    }
+
+    public int getUpstreamProxyHedgeImmediateAttempts() {
+        return upstreamProxyHedgeImmediateAttempts;
+    }
+
+    public CyberServer setUpstreamProxyHedgeImmediateAttempts(int upstreamProxyHedgeImmediateAttempts) {
+        this.upstreamProxyHedgeImmediateAttempts = upstreamProxyHedgeImmediateAttempts;
+        return this;
+    }
+
+    public boolean isUpstreamProxyHedgingEnabled() {
+        return upstreamProxyHedgeDelayMillis >= 0 || upstreamProxyHedgeImmediateAttempts > 1;
+    }
+
     public SocketAddress getActualBoundAddress() {
         return actualBoundAddress;
     }
@@ -331,6 +508,27 @@ public class CyberServer implements Closeable {
         }
 
         public CyberServer build() {
+            Transport transport = cyber.transport;
+            if (transport == null || !transport.isAvailable()) {
+                Transport defaultTransport = defaultTransport();
+                if (transport != null) {
+                    logger.warn("The {} transport is not available, fall back to {}.", transport.name(), defaultTransport.name());
+                }
+                cyber.transport = transport = defaultTransport;
+            }
+            if (cyber.sslProvider != null && cyber.sslProvider != SslProvider.JDK && !OpenSsl.isAvailable()) {
+                logger.warn("The {} SSL provider is not available, fall back to JDK.", cyber.sslProvider);
+                cyber.sslProvider = SslProvider.JDK;
+            }
+            if (cyber.mitmManager instanceof SelfSignedMitmManager) {
+                SelfSignedMitmManager mitmManager = (SelfSignedMitmManager) cyber.mitmManager;
+                if (mitmManager.getSslProvider() == null) {
+                    mitmManager.setSslProvider(cyber.sslProvider);
+                }
+                if (cyber.http2Enabled && !mitmManager.isHttp2Enabled()) {
+                    mitmManager.setHttp2Enabled(true);
+                }
+            }
             if (cyber.getAcceptorEventLoopGroup() == null) {
                 cyber.acceptorEventLoopGroupSize = 1;
             }
@@ -338,7 +536,14 @@ public class CyberServer implements Closeable {
                 cyber.workerEventLoopGroupSize = Runtime.getRuntime().availableProcessors();
             }
             if (cyber.channelManager == null) {
-                cyber.channelManager = new UnpooledChannelManager();
+                // A given channel manager keeps its own resolver.
+                if (cyber.resolverGroup == null) {
+                    cyber.holdResolverGroup = true;
+                    cyber.resolverGroup = new DnsResolverGroup.Builder(transport).build();
+                }
+                UnpooledChannelManager channelManager = new UnpooledChannelManager(transport);
+                channelManager.getBootstrap().resolver(cyber.resolverGroup);
+                cyber.channelManager = channelManager;
             }
             if (cyber.preBoundAddress == null) {
                 cyber.preBoundAddress = new InetSocketAddress("127.0.0.1", 2228);
@@ -346,11 +551,31 @@ public class CyberServer implements Closeable {
             return cyber;
         }
 
+        /**
+         * The transport is only detected when the server creates its own event loop groups and channel
+         * manager, otherwise it follows the given ones, which are NIO unless told otherwise.
+         */
+        private Transport defaultTransport() {
+            EventLoopGroup eventLoopGroup = cyber.workerEventLoopGroup != null
+                ? cyber.workerEventLoopGroup : cyber.acceptorEventLoopGroup;
+            if (eventLoopGroup != null) {
+                return Transport.of(eventLoopGroup);
+            }
+            if (cyber.channelManager instanceof UnpooledChannelManager
+                && ((UnpooledChannelManager) cyber.channelManager).getTransport() != null) {
+                return ((UnpooledChannelManager) cyber.channelManager).getTransport();
+            }
+            return cyber.channelManager == null ? Transport.detect() : Transport.NIO;
+        }
+
         public Builder withHttpInterceptorManager(HttpInterceptorManager httpInterceptorManager) {
             cyber.httpInterceptorManager = httpInterceptorManager;
             return this;
         }
 
+        /**
+         * A {@link Closeable} upstream proxy manager is closed when the server stops.
+         */
         public Builder withUpstreamProxyManager(UpstreamProxyManager upstreamProxyManager) {
             cyber.upstreamProxyManager = upstreamProxyManager;
             return this;
@@ -366,6 +591,37 @@ public class CyberServer implements Closeable {
             return this;
         }
 
+        /**
+         * The provider of the MITM server contexts and the default upstream client context.
+         * {@link SslProvider#OPENSSL} and {@link SslProvider#OPENSSL_REFCNT} need netty-tcnative on
+         * the classpath and fall back to {@link SslProvider#JDK} when it is absent. A
+         * {@link SelfSignedMitmManager} with its own provider keeps it.
+         */
+        public Builder withSslProvider(SslProvider sslProvider) {
+            cyber.sslProvider = sslProvider;
+            return this;
+        }
+
+        /**
+         * The upstream TLS sessions are cached per origin host and port, so the relay channels to the
+         * same origin resume a session instead of doing a full handshake. Defaults to
+         * {@value CyberServer#DEFAULT_CLIENT_SESSION_CACHE_SIZE} sessions, {@code 0} for the provider
+         * default. Ignored when a custom client context is given.
+         */
+        public Builder withClientSessionCacheSize(long clientSessionCacheSize) {
+            cyber.clientSessionCacheSize = clientSessionCacheSize;
+            return this;
+        }
+
+        /**
+         * The lifetime of the cached upstream TLS sessions in seconds. Defaults to
+         * {@value CyberServer#DEFAULT_CLIENT_SESSION_TIMEOUT}, {@code 0} for the provider default.
+         */
+        public Builder withClientSessionTimeout(long clientSessionTimeout) {
+            cyber.clientSessionTimeout = clientSessionTimeout;
+            return this;
+        }
+
         public Builder withChannelManager(ChannelManager channelManager) {
             cyber.channelManager = channelManager;
             return this;
@@ -376,6 +632,104 @@ public class CyberServer implements Closeable {
             return this;
         }
 
+        /**
+         * The transport used by the acceptor, the workers and the default {@link ChannelManager}.
+         * Defaults to the transport of the given event loop groups or channel manager, or to the best
+         * available one when the server creates them all. Custom event loop groups or channel managers
+         * must use the same transport.
+         */
+        public Builder withTransport(Transport transport) {
+            cyber.transport = transport;
+            return this;
+        }
+
+        /**
+         * Resolves the target and upstream proxy addresses of the default {@link UnpooledChannelManager},
+         * a channel manager given to {@link #withChannelManager} keeps its own resolver. Defaults to
+         * a {@link DnsResolverGroup}, which is closed when the server stops. Use
+         * {@link io.netty.resolver.DefaultAddressResolverGroup#INSTANCE} for the blocking JDK resolver.
+         */
+        public Builder withResolverGroup(AddressResolverGroup<? extends SocketAddress> resolverGroup) {
+            cyber.resolverGroup = resolverGroup;
+            return this;
+        }
+
+        /**
+         * Whether opaque tunnels (CONNECT without MITM, SOCKS) are spliced in the kernel when the
+         * transport supports it. Disabled by default. On epoll, only the channels of the spliced tunnels
+         * are switched to the level-triggered mode that splice(2) needs.
+         */
+        public Builder withSpliceEnabled(boolean spliceEnabled) {
+            cyber.spliceEnabled = spliceEnabled;
+            return this;
+        }
+
+        /**
+         * Relayed messages are flushed once per read loop, or as soon as this many messages are
+         * pending. {@code 1} flushes every message. Defaults to {@value CyberServer#DEFAULT_RELAY_FLUSH_THRESHOLD}.
+         */
+        public Builder withRelayFlushThreshold(int relayFlushThreshold) {
+            cyber.relayFlushThreshold = relayFlushThreshold;
+            return this;
+        }
+
+        /**
+         * How many requests of a client connection may wait for their responses before the proxy stops
+         * reading from the client. Defaults to {@value CyberServer#DEFAULT_HTTP_PIPELINING_DEPTH}.
+         */
+        public Builder withHttpPipeliningDepth(int httpPipeliningDepth) {
+            cyber.httpPipeliningDepth = httpPipeliningDepth;
+            return this;
+        }
+
+        /**
+         * Accepts HTTP/2 from the clients: cleartext connections that start with the HTTP/2 preface, and
+         * the MITM'd connections, whose {@link SelfSignedMitmManager} then advertises h2 over ALPN. Every
+         * stream is relayed on its own, the servers are still spoken to in HTTP/1.1.
+         */
+        public Builder withHttp2Enabled(boolean http2Enabled) {
+            cyber.http2Enabled = http2Enabled;
+            return this;
+        }
+
+        /**
+         * How many streams a client may open concurrently on an HTTP/2 connection.
+         * Defaults to {@value CyberServer#DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS}.
+         */
+        public Builder withHttp2MaxConcurrentStreams(int http2MaxConcurrentStreams) {
+            cyber.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+            return this;
+        }
+
+        /**
+         * Offers HTTP/2 over ALPN to the origins of the MITM'd connections and multiplexes their requests
+         * on shared connections, see {@link Http2ConnectionPool}. The origins that decline get their
+         * requests in HTTP/1.1 as usual. Disabled by default. A custom client context is not used for
+         * the negotiation, the pool builds its own with the same settings.
+         */
+        public Builder withUpstreamHttp2Enabled(boolean upstreamHttp2Enabled) {
+            cyber.http2ConnectionPool = upstreamHttp2Enabled ? new Http2ConnectionPool(cyber) : null;
+            return this;
+        }
+
+        /**
+         * Connects through the next upstream proxy in parallel when the previous attempts are still pending
+         * after this delay, instead of waiting for them to fail. Disabled by default ({@code -1}).
+         */
+        public Builder withUpstreamProxyHedgeDelayMillis(long upstreamProxyHedgeDelayMillis) {
+            cyber.upstreamProxyHedgeDelayMillis = upstreamProxyHedgeDelayMillis;
+            return this;
+        }
+
+        /**
+         * How many upstream proxies are raced right away. Defaults to {@code 1}, the others are only tried
+         * after a failure or the {@linkplain #withUpstreamProxyHedgeDelayMillis hedge delay}.
+         */
+        public Builder withUpstreamProxyHedgeImmediateAttempts(int upstreamProxyHedgeImmediateAttempts) {
+            cyber.upstreamProxyHedgeImmediateAttempts = upstreamProxyHedgeImmediateAttempts;
+            return this;
+        }
+
         public Builder withPort(int port) {
             cyber.preBoundAddress = new InetSocketAddress(port);
             return this;
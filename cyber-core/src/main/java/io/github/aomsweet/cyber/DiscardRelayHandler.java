@@ -17,4 +17,11 @@ public class DiscardRelayHandler extends ChannelInboundHandlerAdapter {
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         ReferenceCountUtil.release(msg);
     }
+
+    /**
+     * The channel is going away, its errors are of no interest.
+     */
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+    }
 }
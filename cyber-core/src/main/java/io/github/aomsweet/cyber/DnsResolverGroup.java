@@ -0,0 +1,140 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.resolver.ResolvedAddressTypes;
+import io.netty.resolver.dns.*;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Non-blocking DNS resolvers, one per event loop. All of them share the same positive and negative
+ * caches, which honor the TTL of the records, and concurrent lookups of the same name are merged.
+ *
+ * @author aomsweet
+ */
+public class DnsResolverGroup extends DnsAddressResolverGroup {
+
+    public static final int DEFAULT_MIN_TTL = 0;
+    public static final int DEFAULT_MAX_TTL = Integer.MAX_VALUE;
+    public static final int DEFAULT_NEGATIVE_TTL = 10;
+    public static final long DEFAULT_QUERY_TIMEOUT_MILLIS = 5000;
+
+    final DnsCache resolveCache;
+    final DnsCnameCache cnameCache;
+
+    protected DnsResolverGroup(DnsNameResolverBuilder dnsResolverBuilder, DnsCache resolveCache, DnsCnameCache cnameCache) {
+        super(dnsResolverBuilder);
+        this.resolveCache = resolveCache;
+        this.cnameCache = cnameCache;
+    }
+
+    /**
+     * Drops the cached records, the next lookups go to the name servers.
+     */
+    public void clearCache() {
+        resolveCache.clear();
+        cnameCache.clear();
+    }
+
+    public DnsCache getResolveCache() {
+        return resolveCache;
+    }
+
+    public DnsCnameCache getCnameCache() {
+        return cnameCache;
+    }
+
+    /**
+     * Builder
+     */
+    public static class Builder {
+
+        final Transport transport;
+        int minTtl = DEFAULT_MIN_TTL;
+        int maxTtl = DEFAULT_MAX_TTL;
+        int negativeTtl = DEFAULT_NEGATIVE_TTL;
+        long queryTimeoutMillis = DEFAULT_QUERY_TIMEOUT_MILLIS;
+        ResolvedAddressTypes resolvedAddressTypes;
+        DnsServerAddressStreamProvider nameServerProvider;
+
+        public Builder(Transport transport) {
+            this.transport = transport;
+        }
+
+        public DnsResolverGroup build() {
+            DnsCache resolveCache = new DefaultDnsCache(minTtl, maxTtl, negativeTtl);
+            DnsCnameCache cnameCache = new DefaultDnsCnameCache(minTtl, maxTtl);
+            DnsNameResolverBuilder builder = new DnsNameResolverBuilder()
+                .channelType(transport.datagramChannelClass())
+                .socketChannelType(transport.channelClass())
+                .resolveCache(resolveCache)
+                .cnameCache(cnameCache)
+                .authoritativeDnsServerCache(new DefaultAuthoritativeDnsServerCache(minTtl, maxTtl, null))
+                .queryTimeoutMillis(queryTimeoutMillis);
+            if (resolvedAddressTypes != null) {
+                builder.resolvedAddressTypes(resolvedAddressTypes);
+            }
+            if (nameServerProvider != null) {
+                builder.nameServerProvider(nameServerProvider);
+            }
+            return new DnsResolverGroup(builder, resolveCache, cnameCache);
+        }
+
+        /**
+         * Bounds the TTL of the cached records in seconds.
+         */
+        public Builder withTtl(int minTtl, int maxTtl) {
+            this.minTtl = minTtl;
+            this.maxTtl = maxTtl;
+            return this;
+        }
+
+        /**
+         * How long a failed lookup is cached in seconds, {@code 0} to not cache failures.
+         */
+        public Builder withNegativeTtl(int negativeTtl) {
+            this.negativeTtl = negativeTtl;
+            return this;
+        }
+
+        public Builder withQueryTimeoutMillis(long queryTimeoutMillis) {
+            this.queryTimeoutMillis = queryTimeoutMillis;
+            return this;
+        }
+
+        public Builder withResolvedAddressTypes(ResolvedAddressTypes resolvedAddressTypes) {
+            this.resolvedAddressTypes = resolvedAddressTypes;
+            return this;
+        }
+
+        /**
+         * The name servers to query, the ones of the system by default.
+         */
+        public Builder withNameServerProvider(DnsServerAddressStreamProvider nameServerProvider) {
+            this.nameServerProvider = nameServerProvider;
+            return this;
+        }
+
+        /**
+         * Queries the given name servers in order, for example a local DNS server in tests.
+         */
+        public Builder withNameServers(InetSocketAddress... nameServers) {
+            this.nameServerProvider = new SequentialDnsServerAddressStreamProvider(nameServers);
+            return this;
+        }
+    }
+}
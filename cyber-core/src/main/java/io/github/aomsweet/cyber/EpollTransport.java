@@ -0,0 +1,220 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.epoll.*;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.unix.FileDescriptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Requires {@code io.netty:netty-transport-native-epoll} with the classifier of the current platform.
+ *
+ * @author aomsweet
+ */
+public class EpollTransport implements Transport {
+
+    @Override
+    public String name() {
+        return "epoll";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public EventLoopGroup newEventLoopGroup(int nThreads, ThreadFactory threadFactory) {
+        return new EpollEventLoopGroup(nThreads, threadFactory);
+    }
+
+    @Override
+    public Class<? extends ServerSocketChannel> serverChannelClass() {
+        return EpollServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> channelClass() {
+        return EpollSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends DatagramChannel> datagramChannelClass() {
+        return EpollDatagramChannel.class;
+    }
+
+    /**
+     * Uses splice(2) through a pipe, both channels must be epoll stream channels on the same event loop.
+     * splice(2) needs the level-triggered mode, so the two channels are registered again in that mode.
+     * A channel whose peer has closed is only half-closed, so that all the bytes it received are written
+     * before the output of the other one is shut down.
+     */
+    @Override
+    public boolean splice(Channel channel, Channel relayChannel) {
+        if (!(channel instanceof AbstractEpollStreamChannel && relayChannel instanceof AbstractEpollStreamChannel)
+            || channel.eventLoop() != relayChannel.eventLoop()) {
+            return false;
+        }
+        AbstractEpollStreamChannel in = (AbstractEpollStreamChannel) channel;
+        AbstractEpollStreamChannel out = (AbstractEpollStreamChannel) relayChannel;
+        levelTriggered(in).addListener((ChannelFutureListener) inFuture -> {
+            if (!inFuture.isSuccess()) {
+                out.close();
+                return;
+            }
+            levelTriggered(out).addListener((ChannelFutureListener) outFuture -> {
+                if (!outFuture.isSuccess()) {
+                    in.close();
+                    return;
+                }
+                spliceTo(in, out);
+                spliceTo(out, in);
+            });
+        });
+        return true;
+    }
+
+    private static ChannelFuture levelTriggered(AbstractEpollStreamChannel channel) {
+        if (channel.config().getEpollMode() == EpollMode.LEVEL_TRIGGERED) {
+            return channel.newSucceededFuture();
+        }
+        ChannelPromise promise = channel.newPromise();
+        channel.deregister().addListener(future -> {
+            if (future.isSuccess() && channel.isOpen()) {
+                channel.config().setEpollMode(EpollMode.LEVEL_TRIGGERED);
+                channel.eventLoop().register(promise);
+            } else {
+                channel.close();
+                promise.tryFailure(future.isSuccess() ? new ClosedChannelException() : future.cause());
+            }
+        });
+        return promise;
+    }
+
+    private static void spliceTo(AbstractEpollStreamChannel in, AbstractEpollStreamChannel out) {
+        if (!in.isActive() || !out.isActive()) {
+            in.close();
+            out.close();
+            return;
+        }
+        in.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+        in.pipeline().addFirst(new HalfClosureHandler(out));
+        in.spliceTo(out, Integer.MAX_VALUE).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                in.close();
+            }
+        });
+    }
+
+    /**
+     * Forwards the end of the input of a spliced channel to its peer, and closes both channels once they
+     * are shut down in both directions.
+     */
+    static final class HalfClosureHandler extends ChannelInboundHandlerAdapter {
+
+        static final int DRAIN_BUFFER_SIZE = 64 * 1024;
+
+        final AbstractEpollStreamChannel peer;
+
+        HalfClosureHandler(AbstractEpollStreamChannel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof ChannelInputShutdownEvent) {
+                AbstractEpollStreamChannel channel = (AbstractEpollStreamChannel) ctx.channel();
+                drain(channel);
+                // Written after the bytes spliced so far, which are still in the pipe of the peer.
+                peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener((ChannelFutureListener) future -> {
+                    if (future.isSuccess()) {
+                        peer.shutdownOutput().addListener(f -> closeIfShutdown(channel, peer));
+                    } else {
+                        channel.close();
+                        peer.close();
+                    }
+                });
+            } else {
+                ctx.fireUserEventTriggered(evt);
+            }
+        }
+
+        /**
+         * Netty shuts the input down as soon as the peer has closed, after a single splice(2). The bytes
+         * that were received before are still in the socket and are read until its end.
+         */
+        private void drain(AbstractEpollStreamChannel channel) throws IOException {
+            FileDescriptor fd = channel.fd();
+            for (; ; ) {
+                ByteBuf byteBuf = channel.alloc().directBuffer(DRAIN_BUFFER_SIZE);
+                int read;
+                try {
+                    if (byteBuf.hasMemoryAddress()) {
+                        read = fd.readAddress(byteBuf.memoryAddress(), 0, byteBuf.capacity());
+                    } else {
+                        ByteBuffer buffer = byteBuf.internalNioBuffer(0, byteBuf.capacity());
+                        read = fd.read(buffer, buffer.position(), buffer.limit());
+                    }
+                } catch (IOException e) {
+                    byteBuf.release();
+                    throw e;
+                }
+                if (read <= 0) {
+                    byteBuf.release();
+                    return;
+                }
+                peer.write(byteBuf.writerIndex(read));
+            }
+        }
+
+        private static void closeIfShutdown(DuplexChannel channel, DuplexChannel peer) {
+            if (channel.isShutdown() && peer.isShutdown()) {
+                channel.close();
+                peer.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean isCompatible(EventLoopGroup group) {
+        try {
+            return group instanceof EpollEventLoopGroup;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
@@ -27,8 +27,11 @@ public class HandlerNames {
     public static final String RESPONSE_ENCODER = "res-encoder";
     public static final String DECOMPRESS = "decompress";
     public static final String AGGREGATOR = "aggregator";
+    public static final String CONTENT_STREAM = "content-stream";
     public static final String SSL = "ssl";
     public static final String RELAY = "relay";
     public static final String PROXY = "proxy";
+    public static final String TUNNEL = "tunnel";
+    public static final String IDLE = "idle";
 
 }
@@ -0,0 +1,85 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringDatagramChannel;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Requires {@code io.netty.incubator:netty-incubator-transport-native-io_uring} with the classifier
+ * of the current platform.
+ *
+ * @author aomsweet
+ */
+public class IOUringTransport implements Transport {
+
+    @Override
+    public String name() {
+        return "io_uring";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        try {
+            return IOUring.isAvailable();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public EventLoopGroup newEventLoopGroup(int nThreads, ThreadFactory threadFactory) {
+        return new IOUringEventLoopGroup(nThreads, threadFactory);
+    }
+
+    @Override
+    public Class<? extends ServerSocketChannel> serverChannelClass() {
+        return IOUringServerSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends SocketChannel> channelClass() {
+        return IOUringSocketChannel.class;
+    }
+
+    @Override
+    public Class<? extends DatagramChannel> datagramChannelClass() {
+        return IOUringDatagramChannel.class;
+    }
+
+    @Override
+    public boolean isCompatible(EventLoopGroup group) {
+        try {
+            return group instanceof IOUringEventLoopGroup;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
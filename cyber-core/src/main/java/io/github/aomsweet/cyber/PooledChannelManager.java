@@ -0,0 +1,322 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps idle server connections per (server address, upstream proxy) so that following requests
+ * to the same origin skip the connect latency.
+ * <p>
+ * Idle channels are bound to the event loop they were created on and are only handed out to
+ * callers running on the same event loop, so the pools need no locking. Only channels released
+ * as reusable are kept, anything else is closed like {@link UnpooledChannelManager} does.
+ * A channel released with its TLS session is kept apart, by the server name it was handshaken with,
+ * for the callers that acquire a TLS channel to that name.
+ *
+ * @author aomsweet
+ */
+public class PooledChannelManager extends UnpooledChannelManager {
+
+    private final static InternalLogger logger = InternalLoggerFactory.getInstance(PooledChannelManager.class);
+
+    public static final int DEFAULT_MAX_IDLE = 256;
+    public static final int DEFAULT_MAX_IDLE_PER_HOST = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+    private static final String[] RELAY_HANDLER_NAMES = {HandlerNames.RELAY, HandlerNames.CONTENT_STREAM, HandlerNames.AGGREGATOR,
+        HandlerNames.DECOMPRESS, HandlerNames.DECODER, HandlerNames.REQUEST_ENCODER};
+
+    final Map<EventLoop, IdlePool> pools = new ConcurrentHashMap<>();
+
+    int maxIdle = DEFAULT_MAX_IDLE;
+    int maxIdlePerHost = DEFAULT_MAX_IDLE_PER_HOST;
+    long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+
+    public PooledChannelManager() {
+        super();
+    }
+
+    public PooledChannelManager(Transport transport) {
+        super(transport);
+    }
+
+    public PooledChannelManager(Bootstrap bootstrap) {
+        super(bootstrap);
+    }
+
+    @Override
+    public ChannelFuture acquire(InetSocketAddress serverAddress, ChannelHandlerContext ctx) {
+        return acquire(serverAddress, null, ctx);
+    }
+
+    @Override
+    public ChannelFuture acquire(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, ChannelHandlerContext ctx) {
+        return acquire(serverAddress, upstreamProxy, null, ctx);
+    }
+
+    @Override
+    public ChannelFuture acquire(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, String serverName,
+                                 ChannelHandlerContext ctx) {
+        EventLoop eventLoop = ctx.channel().eventLoop();
+        IdlePool pool = pools.get(eventLoop);
+        if (pool != null) {
+            Channel channel = pool.poll(new PoolKey(serverAddress, upstreamProxy, serverName));
+            if (channel != null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Reuse idle channel {} for {}", channel, serverAddress);
+                }
+                return channel.newSucceededFuture();
+            }
+        }
+        return connect(serverAddress, upstreamProxy, eventLoop);
+    }
+
+    @Override
+    public void release(Channel channel, InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, boolean reusable) {
+        if (!reusable || maxIdle <= 0 || maxIdlePerHost <= 0 || !channel.isActive()) {
+            release(channel, serverAddress, upstreamProxy);
+            return;
+        }
+        EventLoop eventLoop = channel.eventLoop();
+        if (eventLoop.inEventLoop()) {
+            SslHandler sslHandler = (SslHandler) channel.pipeline().get(HandlerNames.SSL);
+            String serverName = null;
+            if (sslHandler != null) {
+                // Only a channel that has finished its handshake is at a message boundary.
+                if (!sslHandler.handshakeFuture().isSuccess() || (serverName = sslHandler.engine().getPeerHost()) == null) {
+                    release(channel, serverAddress, upstreamProxy);
+                    return;
+                }
+            }
+            pools.computeIfAbsent(eventLoop, IdlePool::new)
+                .offer(channel, new PoolKey(serverAddress, upstreamProxy, serverName));
+        } else {
+            eventLoop.execute(() -> release(channel, serverAddress, upstreamProxy, true));
+        }
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for (IdlePool pool : pools.values()) {
+            count += pool.idleCount;
+        }
+        return count;
+    }
+
+    /*
+    #####################################################################################
+    ################################## Getter | Setter ##################################
+    #####################################################################################
+     */
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public PooledChannelManager setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+        return this;
+    }
+
+    public int getMaxIdlePerHost() {
+        return maxIdlePerHost;
+    }
+
+    public PooledChannelManager setMaxIdlePerHost(int maxIdlePerHost) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        return this;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public PooledChannelManager setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    static final class PoolKey {
+
+        final InetSocketAddress serverAddress;
+        final UpstreamProxy upstreamProxy;
+        /**
+         * The SNI host name of a TLS channel, {@code null} for a plain one.
+         */
+        final String serverName;
+
+        PoolKey(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, String serverName) {
+            this.serverAddress = serverAddress;
+            this.upstreamProxy = upstreamProxy;
+            this.serverName = serverName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            PoolKey that = (PoolKey) o;
+
+            if (!serverAddress.equals(that.serverAddress)) return false;
+            if (!Objects.equals(serverName, that.serverName)) return false;
+            return upstreamProxy == null ? that.upstreamProxy == null : upstreamProxy.equals(that.upstreamProxy);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = serverAddress.hashCode();
+            result = 31 * result + (upstreamProxy == null ? 0 : upstreamProxy.hashCode());
+            result = 31 * result + (serverName == null ? 0 : serverName.hashCode());
+            return result;
+        }
+    }
+
+    /**
+     * Idle channels of one event loop, only accessed from that event loop.
+     */
+    final class IdlePool {
+
+        final EventLoop eventLoop;
+        final Map<PoolKey, ArrayDeque<Channel>> idleChannels = new HashMap<>();
+        int idleCount;
+
+        IdlePool(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+        }
+
+        void offer(Channel channel, PoolKey key) {
+            ArrayDeque<Channel> channels = idleChannels.get(key);
+            if (idleCount >= maxIdle || channels != null && channels.size() >= maxIdlePerHost) {
+                channel.close();
+                return;
+            }
+            if (channels == null) {
+                idleChannels.put(key, channels = new ArrayDeque<>(Math.min(maxIdlePerHost, 8)));
+            }
+            ChannelPipeline pipeline = channel.pipeline();
+            for (String name : RELAY_HANDLER_NAMES) {
+                if (pipeline.get(name) != null) {
+                    pipeline.remove(name);
+                }
+            }
+            pipeline.addLast(HandlerNames.IDLE, new IdleChannelHandler(key));
+            channel.config().setAutoRead(true);
+            channels.offerFirst(channel);
+            idleCount++;
+        }
+
+        Channel poll(PoolKey key) {
+            ArrayDeque<Channel> channels = idleChannels.get(key);
+            if (channels == null) {
+                return null;
+            }
+            for (Channel channel = channels.pollFirst(); channel != null; channel = channels.pollFirst()) {
+                idleCount--;
+                ChannelPipeline pipeline = channel.pipeline();
+                IdleChannelHandler handler = (IdleChannelHandler) pipeline.get(HandlerNames.IDLE);
+                if (handler != null) {
+                    handler.cancelIdleTimeout();
+                    pipeline.remove(handler);
+                }
+                if (channel.isActive() && channel.isWritable()) {
+                    if (channels.isEmpty()) {
+                        idleChannels.remove(key);
+                    }
+                    return channel;
+                }
+                channel.close();
+            }
+            idleChannels.remove(key);
+            return null;
+        }
+
+        void remove(Channel channel, PoolKey key) {
+            ArrayDeque<Channel> channels = idleChannels.get(key);
+            if (channels != null && channels.remove(channel)) {
+                idleCount--;
+                if (channels.isEmpty()) {
+                    idleChannels.remove(key);
+                }
+            }
+        }
+
+        /**
+         * Evicts the channel when it times out, closes or receives unexpected data while idle.
+         */
+        final class IdleChannelHandler extends ChannelInboundHandlerAdapter {
+
+            final PoolKey key;
+            ScheduledFuture<?> idleTimeoutFuture;
+
+            IdleChannelHandler(PoolKey key) {
+                this.key = key;
+            }
+
+            @Override
+            public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+                if (idleTimeoutMillis > 0) {
+                    idleTimeoutFuture = eventLoop.schedule(() -> {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Idle channel {} timed out.", ctx.channel());
+                        }
+                        ctx.close();
+                    }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            void cancelIdleTimeout() {
+                if (idleTimeoutFuture != null) {
+                    idleTimeoutFuture.cancel(false);
+                    idleTimeoutFuture = null;
+                }
+            }
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                ReferenceCountUtil.release(msg);
+                ctx.close();
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+                cancelIdleTimeout();
+                remove(ctx.channel(), key);
+                ctx.fireChannelInactive();
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+                ctx.close();
+            }
+        }
+    }
+}
@@ -15,15 +15,18 @@
  */
 package io.github.aomsweet.cyber;
 
+import io.github.aomsweet.cyber.http.Http2StreamClientRelayHandler;
 import io.github.aomsweet.cyber.http.HttpAuthorizationHandler;
+import io.github.aomsweet.cyber.http.HttpBaseClientRelayHandler;
 import io.github.aomsweet.cyber.socks.Socks4ClientRelayHandler;
 import io.github.aomsweet.cyber.socks.Socks5ClientRelayHandler;
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandler;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.channel.ChannelPipeline;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.*;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
 import io.netty.handler.codec.socksx.SocksVersion;
 import io.netty.handler.codec.socksx.v4.Socks4ServerDecoder;
 import io.netty.handler.codec.socksx.v4.Socks4ServerEncoder;
@@ -33,6 +36,8 @@ import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
+import java.util.List;
+
 /**
  * @author aomsweet
  */
@@ -41,6 +46,8 @@ public class PortUnificationServerHandler extends ChannelInboundHandlerAdapter {
 
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(PortUnificationServerHandler.class);
 
+    private static final ByteBuf HTTP2_PREFACE = Http2CodecUtil.connectionPrefaceBuf();
+
     CyberServer cyber;
     HttpAuthorizationHandler httpAuthorizationHandler;
 
@@ -49,6 +56,22 @@ public class PortUnificationServerHandler extends ChannelInboundHandlerAdapter {
         this.httpAuthorizationHandler = new HttpAuthorizationHandler(cyber);
     }
 
+    /**
+     * The streams of a connection share the snapshot of the interceptors taken when it started.
+     */
+    private ChannelHandler newHttp2StreamInitializer() {
+        HttpAuthorizationHandler authorizationHandler = new HttpAuthorizationHandler(cyber,
+            HttpBaseClientRelayHandler.snapshotInterceptors(cyber));
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                // Every stream is authorized on its own, like the requests of an HTTP/1.1 connection.
+                ch.pipeline().addLast(HandlerNames.DECODER, new Http2StreamFrameToHttpObjectCodec(true));
+                ch.pipeline().addLast(authorizationHandler);
+            }
+        };
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (msg instanceof ByteBuf) {
@@ -58,20 +81,11 @@ public class PortUnificationServerHandler extends ChannelInboundHandlerAdapter {
                 return;
             }
             ChannelPipeline pipeline = ctx.pipeline().remove(this);
-            final byte version = in.getByte(readerIndex);
-            if (version == 4) {
-                logKnownVersion(ctx, version);
-                pipeline.addLast(HandlerNames.DECODER, new Socks4ServerDecoder());
-                pipeline.addLast(HandlerNames.RESPONSE_ENCODER, Socks4ServerEncoder.INSTANCE);
-                pipeline.addLast(HandlerNames.RELAY, new Socks4ClientRelayHandler(cyber));
-            } else if (version == 5) {
-                logKnownVersion(ctx, version);
-                pipeline.addLast(HandlerNames.DECODER, new Socks5InitialRequestDecoder());
-                pipeline.addLast(HandlerNames.RESPONSE_ENCODER, Socks5ServerEncoder.DEFAULT);
-                pipeline.addLast(HandlerNames.RELAY, new Socks5ClientRelayHandler(cyber));
+            if (isPartialHttp2Preface(in)) {
+                // Too short to be told apart from a request line starting the same way.
+                pipeline.addLast(HandlerNames.ROOT, new Http2PrefaceDetector());
             } else {
-                pipeline.addLast(HandlerNames.DECODER, new HttpRequestDecoder());
-                pipeline.addLast(httpAuthorizationHandler);
+                unify(ctx, pipeline, in);
             }
             pipeline.fireChannelRead(msg);
         } else {
@@ -80,9 +94,57 @@ public class PortUnificationServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    private void unify(ChannelHandlerContext ctx, ChannelPipeline pipeline, ByteBuf in) {
+        final byte version = in.getByte(in.readerIndex());
+        if (version == 4) {
+            logKnownVersion(ctx, version);
+            pipeline.addLast(HandlerNames.DECODER, new Socks4ServerDecoder());
+            pipeline.addLast(HandlerNames.RESPONSE_ENCODER, Socks4ServerEncoder.INSTANCE);
+            pipeline.addLast(HandlerNames.RELAY, new Socks4ClientRelayHandler(cyber));
+        } else if (version == 5) {
+            logKnownVersion(ctx, version);
+            pipeline.addLast(HandlerNames.DECODER, new Socks5InitialRequestDecoder());
+            pipeline.addLast(HandlerNames.RESPONSE_ENCODER, Socks5ServerEncoder.DEFAULT);
+            pipeline.addLast(HandlerNames.RELAY, new Socks5ClientRelayHandler(cyber));
+        } else if (cyber.isHttp2Enabled() && isHttp2Preface(in)) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("{} Protocol version: HTTP/2 (prior knowledge)", ctx.channel());
+            }
+            Http2StreamClientRelayHandler.addConnectionHandlers(pipeline, cyber, newHttp2StreamInitializer());
+        } else {
+            pipeline.addLast(HandlerNames.DECODER, new HttpRequestDecoder());
+            pipeline.addLast(httpAuthorizationHandler);
+        }
+    }
+
+    private boolean isPartialHttp2Preface(ByteBuf in) {
+        int length = in.readableBytes();
+        return cyber.isHttp2Enabled() && length < HTTP2_PREFACE.readableBytes()
+            && ByteBufUtil.equals(in, in.readerIndex(), HTTP2_PREFACE, 0, length);
+    }
+
+    private static boolean isHttp2Preface(ByteBuf in) {
+        int length = HTTP2_PREFACE.readableBytes();
+        return in.readableBytes() >= length && ByteBufUtil.equals(in, in.readerIndex(), HTTP2_PREFACE, 0, length);
+    }
+
     private static void logKnownVersion(ChannelHandlerContext ctx, byte version) {
         if (logger.isDebugEnabled()) {
             logger.debug("{} Protocol version: {}({})", ctx.channel(), SocksVersion.valueOf(version));
         }
     }
+
+    /**
+     * Waits for the bytes that tell whether the connection starts with the HTTP/2 preface.
+     */
+    private final class Http2PrefaceDetector extends ByteToMessageDecoder {
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            if (!isPartialHttp2Preface(in)) {
+                unify(ctx, ctx.pipeline(), in);
+                ctx.pipeline().remove(this);
+            }
+        }
+    }
 }
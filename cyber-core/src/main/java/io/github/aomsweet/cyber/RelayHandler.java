@@ -33,6 +33,12 @@ public abstract class RelayHandler extends ChannelInboundHandlerAdapter implemen
 
     protected final InternalLogger logger;
     protected final CyberServer cyber;
+    protected final int flushThreshold;
+
+    /**
+     * Messages written to the relay channel since the last flush.
+     */
+    protected int pendingFlushes;
 
     protected State state;
     protected Channel relayChannel;
@@ -41,6 +47,7 @@ public abstract class RelayHandler extends ChannelInboundHandlerAdapter implemen
     public RelayHandler(CyberServer cyber, InternalLogger logger) {
         this.cyber = cyber;
         this.logger = logger;
+        this.flushThreshold = cyber.relayFlushThreshold;
     }
 
     @Override
@@ -57,15 +64,40 @@ public abstract class RelayHandler extends ChannelInboundHandlerAdapter implemen
         close();
     }
 
+    /**
+     * Writes the message to the relay channel. The flush is deferred to {@link #channelReadComplete}
+     * so that a burst of reads leaves in as few syscalls as possible, unless the flush threshold
+     * is reached first.
+     */
     public void relay(Object msg) {
         if (relayChannel.isActive()) {
-            relayChannel.writeAndFlush(msg);
+            if (++pendingFlushes >= flushThreshold) {
+                pendingFlushes = 0;
+                relayChannel.writeAndFlush(msg);
+            } else {
+                relayChannel.write(msg);
+            }
         } else {
             close();
             ReferenceCountUtil.release(msg);
         }
     }
 
+    public void flushRelay() {
+        if (pendingFlushes > 0) {
+            pendingFlushes = 0;
+            if (relayChannel != null) {
+                relayChannel.flush();
+            }
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushRelay();
+        ctx.fireChannelReadComplete();
+    }
+
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         boolean isWritable = ctx.channel().isWritable();
@@ -74,7 +106,9 @@ public abstract class RelayHandler extends ChannelInboundHandlerAdapter implemen
                 isWritable ? "WRITABLE" : "NOT WRITABLE", relayChannel,
                 isWritable ? "ENABLE AUTO READ" : "DISABLE AUTO READ");
         }
-        relayChannel.config().setAutoRead(isWritable);
+        if (relayChannel != null) {
+            relayChannel.config().setAutoRead(isWritable);
+        }
     }
 
     public final void close() {
@@ -0,0 +1,97 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The I/O transport shared by the acceptor, the workers and the outbound connections.
+ * Native transports are optional dependencies, use {@link #isAvailable()} before choosing one.
+ *
+ * @author aomsweet
+ */
+public interface Transport {
+
+    Transport NIO = new NioTransport();
+
+    Transport EPOLL = new EpollTransport();
+
+    Transport IO_URING = new IOUringTransport();
+
+    String name();
+
+    boolean isAvailable();
+
+    EventLoopGroup newEventLoopGroup(int nThreads, ThreadFactory threadFactory);
+
+    Class<? extends ServerSocketChannel> serverChannelClass();
+
+    Class<? extends SocketChannel> channelClass();
+
+    /**
+     * The UDP channel, used by the DNS resolver. Defaults to the NIO one, native transports override it
+     * with the channel that fits their event loops.
+     */
+    default Class<? extends DatagramChannel> datagramChannelClass() {
+        return NioDatagramChannel.class;
+    }
+
+    /**
+     * Relays the bytes between the two channels in both directions inside the kernel, bypassing
+     * their pipelines. Returns {@code false} if this transport or the channels do not support it.
+     */
+    default boolean splice(Channel channel, Channel relayChannel) {
+        return false;
+    }
+
+    /**
+     * Whether the channels of this transport can be registered with the given event loop group.
+     */
+    default boolean isCompatible(EventLoopGroup group) {
+        return false;
+    }
+
+    /**
+     * The best stable transport on this platform: epoll if it is available, NIO otherwise.
+     * io_uring is still an incubator module, so it is only used when asked for explicitly.
+     */
+    static Transport detect() {
+        return EPOLL.isAvailable() ? EPOLL : NIO;
+    }
+
+    /**
+     * The transport of the given event loop group or event loop, NIO if it is none of the known ones.
+     */
+    static Transport of(EventLoopGroup group) {
+        if (group instanceof EventLoop && ((EventLoop) group).parent() != null) {
+            group = ((EventLoop) group).parent();
+        }
+        for (Transport transport : new Transport[]{EPOLL, IO_URING}) {
+            if (transport.isCompatible(group)) {
+                return transport;
+            }
+        }
+        return NIO;
+    }
+}
@@ -18,13 +18,21 @@ package io.github.aomsweet.cyber;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.resolver.AddressResolver;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
+import java.net.Inet6Address;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author aomsweet
@@ -33,9 +41,29 @@ public class UnpooledChannelManager implements ChannelManager {
 
     private final static InternalLogger logger = InternalLoggerFactory.getInstance(UnpooledChannelManager.class);
 
+    /**
+     * The Connection Attempt Delay recommended by RFC 8305.
+     */
+    public static final long DEFAULT_CONNECTION_ATTEMPT_DELAY_MILLIS = 250;
+    public static final long DEFAULT_WARM_TUNNEL_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+
+    final Map<EventLoop, WarmTunnelPool> warmTunnelPools = new ConcurrentHashMap<>();
+
+    Transport transport;
     Bootstrap bootstrap;
+    long connectionAttemptDelayMillis = DEFAULT_CONNECTION_ATTEMPT_DELAY_MILLIS;
+    int warmTunnelsPerProxy;
+    long warmTunnelIdleTimeoutMillis = DEFAULT_WARM_TUNNEL_IDLE_TIMEOUT_MILLIS;
 
+    /**
+     * Connects with NIO, whatever the platform supports, so that it works with any NIO event loop.
+     */
     public UnpooledChannelManager() {
+        this(Transport.NIO);
+    }
+
+    public UnpooledChannelManager(Transport transport) {
+        this.transport = transport;
         this.bootstrap = bootstrap();
     }
 
@@ -49,23 +77,31 @@ public class UnpooledChannelManager implements ChannelManager {
 
     public Bootstrap bootstrap(ChannelInitializer<Channel> channelInitializer) {
         return new Bootstrap()
-            .channel(NioSocketChannel.class)
+            .channel(transport.channelClass())
             .option(ChannelOption.TCP_NODELAY, true)
             .handler(channelInitializer);
     }
 
     public ChannelInitializer<Channel> channelInitializer() {
-        return channelInitializer(null);
+        return channelInitializer((ChannelHandler) null);
     }
 
     public ChannelInitializer<Channel> channelInitializer(ChannelHandler proxyHandler) {
+        return proxyHandler == null ? channelInitializer(new ChannelHandler[0]) : channelInitializer(new ChannelHandler[]{proxyHandler});
+    }
+
+    /**
+     * The proxy handlers are added from the first hop to the last one. Each handler tunnels to the
+     * next hop and holds back the handshake of the next hop until its own one is done.
+     */
+    public ChannelInitializer<Channel> channelInitializer(ChannelHandler[] proxyHandlers) {
         return new ChannelInitializer<Channel>() {
             @Override
             protected void initChannel(Channel ch) throws Exception {
                 if (logger.isTraceEnabled()) {
                     ch.pipeline().addLast(new LoggingHandler(LogLevel.TRACE));
                 }
-                if (proxyHandler != null) {
+                for (ChannelHandler proxyHandler : proxyHandlers) {
                     ch.pipeline().addLast(proxyHandler);
                 }
             }
@@ -74,20 +110,80 @@ public class UnpooledChannelManager implements ChannelManager {
 
     @Override
     public ChannelFuture acquire(InetSocketAddress serverAddress, ChannelHandlerContext ctx) {
-        return bootstrap.clone(ctx.channel().eventLoop()).connect(serverAddress);
+        return connect(serverAddress, null, ctx.channel().eventLoop());
     }
 
     @Override
     public ChannelFuture acquire(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, ChannelHandlerContext ctx) {
+        return connect(serverAddress, upstreamProxy, ctx.channel().eventLoop());
+    }
+
+    protected ChannelFuture connect(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, EventLoop eventLoop) {
         if (upstreamProxy == null) {
-            return acquire(serverAddress, ctx);
+            if (connectionAttemptDelayMillis > 0 && serverAddress.isUnresolved()) {
+                return happyEyeballsConnect(serverAddress, eventLoop);
+            }
+            return bootstrap.clone(eventLoop).connect(serverAddress);
         } else {
-            ChannelHandler proxyHandler = upstreamProxy.newProxyHandler();
-            ChannelInitializer<Channel> initHandler = channelInitializer(proxyHandler);
-            return bootstrap.clone(ctx.channel().eventLoop()).handler(initHandler).connect(serverAddress);
+            if (warmTunnelsPerProxy > 0 && eventLoop.inEventLoop() && UpstreamTunnelHandler.isSupported(upstreamProxy)) {
+                ChannelFuture future = warmTunnelPools.computeIfAbsent(eventLoop, WarmTunnelPool::new)
+                    .tunnel(serverAddress, upstreamProxy);
+                if (future != null) {
+                    return future;
+                }
+            }
+            ChannelHandler[] proxyHandlers = upstreamProxy.newProxyHandlers();
+            ChannelInitializer<Channel> initHandler = channelInitializer(proxyHandlers);
+            return bootstrap.clone(eventLoop).handler(initHandler).connect(serverAddress);
         }
     }
 
+    /**
+     * Happy Eyeballs (RFC 8305): resolves all the addresses of the server, then connects to them
+     * alternating IPv6 and IPv4, starting the next attempt when the previous one fails or is still
+     * pending after the connection attempt delay. The first connected channel wins, the others are closed.
+     */
+    @SuppressWarnings("unchecked")
+    protected ChannelFuture happyEyeballsConnect(InetSocketAddress serverAddress, EventLoop eventLoop) {
+        CompleteChannelPromise promise = new CompleteChannelPromise(eventLoop);
+        AddressResolver<SocketAddress> resolver = (AddressResolver<SocketAddress>) bootstrap.config().resolver().getResolver(eventLoop);
+        resolver.resolveAll(serverAddress).addListener((FutureListener<List<SocketAddress>>) future -> {
+            if (future.isSuccess() && !future.getNow().isEmpty()) {
+                new ConnectionAttempts(interleave(future.getNow()), eventLoop, promise).next();
+            } else {
+                promise.setFailure(future.isSuccess() ? new UnknownHostException(serverAddress.getHostString()) : future.cause());
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Orders the addresses by alternating the address families, starting with the family of the first one.
+     */
+    static List<InetSocketAddress> interleave(List<SocketAddress> addresses) {
+        List<InetSocketAddress> preferred = new ArrayList<>(addresses.size());
+        List<InetSocketAddress> others = new ArrayList<>(addresses.size());
+        Boolean preferIpv6 = null;
+        for (SocketAddress address : addresses) {
+            InetSocketAddress socketAddress = (InetSocketAddress) address;
+            boolean ipv6 = socketAddress.getAddress() instanceof Inet6Address;
+            if (preferIpv6 == null) {
+                preferIpv6 = ipv6;
+            }
+            (ipv6 == preferIpv6 ? preferred : others).add(socketAddress);
+        }
+        List<InetSocketAddress> interleaved = new ArrayList<>(addresses.size());
+        for (int i = 0; i < preferred.size() || i < others.size(); i++) {
+            if (i < preferred.size()) {
+                interleaved.add(preferred.get(i));
+            }
+            if (i < others.size()) {
+                interleaved.add(others.get(i));
+            }
+        }
+        return interleaved;
+    }
+
     @Override
     public void release(Channel channel, InetSocketAddress serverAddress) {
         release(channel, serverAddress, null);
@@ -106,6 +202,57 @@ public class UnpooledChannelManager implements ChannelManager {
     #####################################################################################
      */
 
+    public long getConnectionAttemptDelayMillis() {
+        return connectionAttemptDelayMillis;
+    }
+
+    /**
+     * The delay between two connection attempts to the addresses of the same server,
+     * {@code 0} to only try the first address.
+     */
+    public UnpooledChannelManager setConnectionAttemptDelayMillis(long connectionAttemptDelayMillis) {
+        this.connectionAttemptDelayMillis = connectionAttemptDelayMillis;
+        return this;
+    }
+
+    public int getWarmTunnelsPerProxy() {
+        return warmTunnelsPerProxy;
+    }
+
+    /**
+     * How many connections per event loop are kept connected to each upstream proxy, ready to tunnel
+     * to the next server, {@code 0} to connect on demand. SOCKS5 connections are also authenticated.
+     * An event loop starts warming the connections of a proxy the first time it is used.
+     */
+    public UnpooledChannelManager setWarmTunnelsPerProxy(int warmTunnelsPerProxy) {
+        this.warmTunnelsPerProxy = warmTunnelsPerProxy;
+        return this;
+    }
+
+    public long getWarmTunnelIdleTimeoutMillis() {
+        return warmTunnelIdleTimeoutMillis;
+    }
+
+    /**
+     * How long a warm connection may wait, it should be shorter than the idle timeout of the proxies.
+     */
+    public UnpooledChannelManager setWarmTunnelIdleTimeoutMillis(long warmTunnelIdleTimeoutMillis) {
+        this.warmTunnelIdleTimeoutMillis = warmTunnelIdleTimeoutMillis;
+        return this;
+    }
+
+    public int getWarmTunnelCount() {
+        int count = 0;
+        for (WarmTunnelPool pool : warmTunnelPools.values()) {
+            count += pool.readyCount;
+        }
+        return count;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
     public Bootstrap getBootstrap() {
         return bootstrap;
     }
@@ -115,4 +262,151 @@ public class UnpooledChannelManager implements ChannelManager {
         return this;
     }
 
+    /**
+     * Warm connections to the upstream proxies of one event loop, only accessed from that event loop.
+     * A connection taken out is replaced right away, the ones that time out or fail are not.
+     */
+    final class WarmTunnelPool {
+
+        final EventLoop eventLoop;
+        final Map<UpstreamProxy, WarmTunnels> tunnels = new HashMap<>();
+        int readyCount;
+
+        WarmTunnelPool(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+        }
+
+        ChannelFuture tunnel(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy) {
+            WarmTunnels warmTunnels = tunnels.computeIfAbsent(upstreamProxy, WarmTunnels::new);
+            UpstreamTunnelHandler handler = warmTunnels.poll();
+            warmTunnels.fill();
+            if (handler == null) {
+                return null;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Tunnel to {} through warm channel {}", serverAddress, handler.ctx.channel());
+            }
+            CompleteChannelPromise promise = new CompleteChannelPromise(eventLoop);
+            handler.tunnel(serverAddress, promise);
+            return promise;
+        }
+
+        final class WarmTunnels {
+
+            final UpstreamProxy upstreamProxy;
+            final ArrayDeque<UpstreamTunnelHandler> ready = new ArrayDeque<>();
+            int pending;
+
+            WarmTunnels(UpstreamProxy upstreamProxy) {
+                this.upstreamProxy = upstreamProxy;
+            }
+
+            UpstreamTunnelHandler poll() {
+                for (UpstreamTunnelHandler handler = ready.pollFirst(); handler != null; handler = ready.pollFirst()) {
+                    readyCount--;
+                    if (handler.ctx.channel().isActive()) {
+                        return handler;
+                    }
+                }
+                return null;
+            }
+
+            void fill() {
+                while (ready.size() + pending < warmTunnelsPerProxy) {
+                    pending++;
+                    UpstreamTunnelHandler handler = UpstreamTunnelHandler.newInstance(upstreamProxy, eventLoop,
+                        warmTunnelIdleTimeoutMillis);
+                    bootstrap.clone(eventLoop).handler(channelInitializer(new ChannelHandler[]{handler}))
+                        .connect(upstreamProxy.getSocketAddress()).addListener(future -> {
+                            if (!future.isSuccess()) {
+                                handler.warmPromise.tryFailure(future.cause());
+                            }
+                        });
+                    handler.warmFuture().addListener(future -> {
+                        pending--;
+                        if (future.isSuccess()) {
+                            Channel channel = handler.ctx.channel();
+                            ready.offerLast(handler);
+                            readyCount++;
+                            channel.closeFuture().addListener(f -> {
+                                if (ready.remove(handler)) {
+                                    readyCount--;
+                                }
+                            });
+                        } else if (logger.isDebugEnabled()) {
+                            logger.debug("Failed to warm a channel to {}: {}", upstreamProxy, future.cause().toString());
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * The connection attempts of one {@link #happyEyeballsConnect}, only accessed in the event loop.
+     */
+    class ConnectionAttempts {
+
+        final List<InetSocketAddress> addresses;
+        final EventLoop eventLoop;
+        final CompleteChannelPromise promise;
+        final List<ChannelFuture> attempts;
+        ScheduledFuture<?> nextAttempt;
+        int failures;
+
+        ConnectionAttempts(List<InetSocketAddress> addresses, EventLoop eventLoop, CompleteChannelPromise promise) {
+            this.addresses = addresses;
+            this.eventLoop = eventLoop;
+            this.promise = promise;
+            this.attempts = new ArrayList<>(addresses.size());
+        }
+
+        void next() {
+            if (promise.isDone()) {
+                return;
+            }
+            InetSocketAddress address = addresses.get(attempts.size());
+            if (logger.isDebugEnabled() && !attempts.isEmpty()) {
+                logger.debug("Connection attempt {} to {}", attempts.size() + 1, address);
+            }
+            ChannelFuture future = bootstrap.clone(eventLoop).connect(address);
+            attempts.add(future);
+            if (attempts.size() < addresses.size()) {
+                nextAttempt = eventLoop.schedule(this::next, connectionAttemptDelayMillis, TimeUnit.MILLISECONDS);
+            }
+            future.addListener((ChannelFutureListener) this::attemptCompleted);
+        }
+
+        void attemptCompleted(ChannelFuture future) {
+            if (future.isSuccess()) {
+                if (promise.isDone()) {
+                    future.channel().close();
+                    return;
+                }
+                cancelNextAttempt();
+                promise.setChannel(future.channel()).setSuccess();
+                for (ChannelFuture attempt : attempts) {
+                    if (attempt != future) {
+                        attempt.cancel(false);
+                        attempt.channel().close();
+                    }
+                }
+            } else if (!promise.isDone()) {
+                failures++;
+                if (attempts.size() < addresses.size()) {
+                    cancelNextAttempt();
+                    next();
+                } else if (failures == addresses.size()) {
+                    promise.setFailure(future.cause());
+                }
+            }
+        }
+
+        void cancelNextAttempt() {
+            if (nextAttempt != null) {
+                nextAttempt.cancel(false);
+                nextAttempt = null;
+            }
+        }
+    }
 }
@@ -84,6 +84,13 @@ public class UpstreamProxy {
         return protocol.newProxyHandler(this);
     }
 
+    /**
+     * The handlers to add to the pipeline of a relay channel, from the first hop to the last one.
+     */
+    public ChannelHandler[] newProxyHandlers() {
+        return new ChannelHandler[]{newProxyHandler()};
+    }
+
     @Override
     public String toString() {
         String host = socketAddress.getHostString();
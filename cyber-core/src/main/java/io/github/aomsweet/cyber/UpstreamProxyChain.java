@@ -0,0 +1,199 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.handler.proxy.ProxyHandler;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tunnels a single connection through several upstream proxies: client, the first hop, ..., the last hop,
+ * then the server. The handshake with a hop is sent as soon as the previous hop is connected.
+ * <p>
+ * The protocol, address and credentials of the chain are those of its first hop, the one the relay
+ * channel connects to, which are copied from it. The whole chain has to be established within {@link #setConnectTimeoutMillis
+ * one connect timeout}.
+ * <p>
+ * The latency of each handshake is recorded per hop, measured from the end of the previous one, or from
+ * the connection attempt for the first hop.
+ *
+ * @author aomsweet
+ */
+public class UpstreamProxyChain extends UpstreamProxy {
+
+    private final static InternalLogger logger = InternalLoggerFactory.getInstance(UpstreamProxyChain.class);
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * The hops after the first one.
+     */
+    final UpstreamProxy[] nextHops;
+    final LongAdder[] handshakeCounts;
+    final LongAdder[] handshakeNanos;
+    final LongAdder[] failureCounts;
+    long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    public UpstreamProxyChain(UpstreamProxy... hops) {
+        super(hops[0].protocol, hops[0].socketAddress, hops[0].username, hops[0].password);
+        this.nextHops = Arrays.copyOfRange(hops, 1, hops.length);
+        this.handshakeCounts = newAdders(hops.length);
+        this.handshakeNanos = newAdders(hops.length);
+        this.failureCounts = newAdders(hops.length);
+    }
+
+    public UpstreamProxyChain(List<UpstreamProxy> hops) {
+        this(hops.toArray(new UpstreamProxy[0]));
+    }
+
+    private static LongAdder[] newAdders(int length) {
+        LongAdder[] adders = new LongAdder[length];
+        for (int i = 0; i < length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * A single handler that puts the handlers of all the hops in its place.
+     */
+    @Override
+    public ChannelHandler newProxyHandler() {
+        ChannelHandler[] proxyHandlers = newProxyHandlers();
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(proxyHandlers);
+            }
+        };
+    }
+
+    @Override
+    public ChannelHandler[] newProxyHandlers() {
+        ChannelHandler[] proxyHandlers = new ChannelHandler[nextHops.length + 1];
+        long[] completedTimes = new long[proxyHandlers.length];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < proxyHandlers.length; i++) {
+            ChannelHandler proxyHandler = i == 0 ? protocol.newProxyHandler(this) : nextHops[i - 1].newProxyHandler();
+            if (proxyHandler instanceof ProxyHandler) {
+                ProxyHandler handler = (ProxyHandler) proxyHandler;
+                // The timeouts of all the hops start when the channel is active, so they end together.
+                handler.setConnectTimeoutMillis(connectTimeoutMillis);
+                record(i, handler, completedTimes, startTime);
+            }
+            proxyHandlers[i] = proxyHandler;
+        }
+        return proxyHandlers;
+    }
+
+    private void record(int hop, ProxyHandler handler, long[] completedTimes, long startTime) {
+        handler.connectFuture().addListener(future -> {
+            boolean previousConnected = hop == 0 || completedTimes[hop - 1] != 0;
+            if (future.isSuccess()) {
+                long now = System.nanoTime();
+                long latency = now - (hop == 0 ? startTime : completedTimes[hop - 1]);
+                completedTimes[hop] = now;
+                handshakeCounts[hop].increment();
+                handshakeNanos[hop].add(latency);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Hop {} {} connected in {} ms", hop + 1, getHop(hop), latency / 1_000_000.0);
+                }
+            } else if (previousConnected) {
+                // The following hops fail with it, only the hop that broke the chain is counted.
+                failureCounts[hop].increment();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Hop {} {} failed: {}", hop + 1, getHop(hop), future.cause().toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * The hops in order, the first one as it is currently set on the chain.
+     */
+    public List<UpstreamProxy> getHops() {
+        List<UpstreamProxy> hops = new ArrayList<>(nextHops.length + 1);
+        hops.add(getHop(0));
+        hops.addAll(Arrays.asList(nextHops));
+        return Collections.unmodifiableList(hops);
+    }
+
+    private UpstreamProxy getHop(int hop) {
+        return hop == 0 ? new UpstreamProxy(protocol, socketAddress, username, password) : nextHops[hop - 1];
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * The time the whole chain has to be established in, from the connection to the first hop.
+     * {@code 0} to disable it.
+     */
+    public UpstreamProxyChain setConnectTimeoutMillis(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    public long getHandshakeCount(int hop) {
+        return handshakeCounts[hop].sum();
+    }
+
+    public long getFailureCount(int hop) {
+        return failureCounts[hop].sum();
+    }
+
+    /**
+     * The average handshake latency of the given hop in nanoseconds, {@code 0} until one succeeded.
+     */
+    public long getAverageHandshakeNanos(int hop) {
+        long count = handshakeCounts[hop].sum();
+        return count == 0 ? 0 : handshakeNanos[hop].sum() / count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(super.toString());
+        for (UpstreamProxy hop : nextHops) {
+            builder.append(" -> ").append(hop);
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!super.equals(o)) return false;
+
+        UpstreamProxyChain that = (UpstreamProxyChain) o;
+
+        return Arrays.equals(nextHops, that.nextHops);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + Arrays.hashCode(nextHops);
+    }
+}
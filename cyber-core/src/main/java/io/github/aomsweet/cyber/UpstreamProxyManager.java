@@ -31,4 +31,12 @@ public interface UpstreamProxyManager {
 
     void failConnectExceptionCaught(UpstreamProxy upstreamProxy, InetSocketAddress serverAddress, Throwable throwable) throws Exception;
 
+    /**
+     * Called when a new connection through the upstream proxy completed its handshake.
+     *
+     * @param latencyNanos the time from the connect to the end of the proxy handshake
+     */
+    default void connectSucceeded(UpstreamProxy upstreamProxy, InetSocketAddress serverAddress, long latencyNanos) throws Exception {
+    }
+
 }
@@ -0,0 +1,419 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.socksx.v5.*;
+import io.netty.handler.proxy.ProxyConnectException;
+import io.netty.util.CharsetUtil;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Does the handshake with an upstream proxy in two steps, so that the connection can be made and the
+ * proxy greeted before the server address is known: {@link #warmFuture()} completes once the channel is
+ * ready to tunnel, then {@link #tunnel} asks the proxy to connect to the server and removes the handler.
+ * <p>
+ * What the server sends right after the reply of the proxy, like the greeting of SMTP or SSH, is held by
+ * a {@link HandlerNames#TUNNEL} handler until the relay is docked, and passed on when it is removed.
+ * <p>
+ * Only the HTTP and SOCKS5 protocols are supported, see {@link #isSupported(UpstreamProxy)}.
+ *
+ * @author aomsweet
+ */
+public abstract class UpstreamTunnelHandler extends ChannelInboundHandlerAdapter {
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+    enum State {
+        WARMING, READY, TUNNELING, DONE
+    }
+
+    final UpstreamProxy upstreamProxy;
+    final Promise<Void> warmPromise;
+    final long idleTimeoutMillis;
+    long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+    ChannelHandlerContext ctx;
+    State state = State.WARMING;
+    CompleteChannelPromise tunnelPromise;
+    ScheduledFuture<?> timeoutFuture;
+
+    protected UpstreamTunnelHandler(UpstreamProxy upstreamProxy, EventLoop eventLoop, long idleTimeoutMillis) {
+        this.upstreamProxy = upstreamProxy;
+        this.warmPromise = new DefaultPromise<>(eventLoop);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public static boolean isSupported(UpstreamProxy upstreamProxy) {
+        UpstreamProxy.Protocol protocol = upstreamProxy.getProtocol();
+        return !(upstreamProxy instanceof UpstreamProxyChain)
+            && (protocol == UpstreamProxy.Protocol.HTTP || protocol == UpstreamProxy.Protocol.SOCKS5);
+    }
+
+    /**
+     * A ready channel is closed after {@code idleTimeoutMillis} if no tunnel was asked for, {@code 0} to keep it.
+     */
+    public static UpstreamTunnelHandler newInstance(UpstreamProxy upstreamProxy, EventLoop eventLoop, long idleTimeoutMillis) {
+        if (upstreamProxy.getProtocol() == UpstreamProxy.Protocol.SOCKS5) {
+            return new Socks5(upstreamProxy, eventLoop, idleTimeoutMillis);
+        } else if (upstreamProxy.getProtocol() == UpstreamProxy.Protocol.HTTP) {
+            return new Http(upstreamProxy, eventLoop, idleTimeoutMillis);
+        }
+        throw new IllegalArgumentException("Unsupported upstream proxy: " + upstreamProxy);
+    }
+
+    /**
+     * Completes once the channel is connected to the proxy and ready to tunnel.
+     */
+    public Future<Void> warmFuture() {
+        return warmPromise;
+    }
+
+    /**
+     * Asks the proxy to connect to the server, the promise succeeds once the tunnel is established and this
+     * handler replaced by the {@link HandlerNames#TUNNEL} one. Must be called from the event loop of the channel,
+     * after {@link #warmFuture()} succeeded.
+     */
+    public void tunnel(InetSocketAddress serverAddress, CompleteChannelPromise promise) {
+        if (state != State.READY) {
+            promise.setFailure(new IllegalStateException("The tunnel is " + state));
+            return;
+        }
+        state = State.TUNNELING;
+        tunnelPromise = promise.setChannel(ctx.channel());
+        scheduleTimeout(connectTimeoutMillis, "timeout");
+        try {
+            sendConnectRequest(ctx, serverAddress);
+        } catch (Throwable cause) {
+            fail(cause);
+        }
+    }
+
+    protected abstract void warmUp(ChannelHandlerContext ctx) throws Exception;
+
+    protected abstract void sendConnectRequest(ChannelHandlerContext ctx, InetSocketAddress serverAddress) throws Exception;
+
+    protected abstract void handleResponse(ChannelHandlerContext ctx, Object response) throws Exception;
+
+    protected abstract void removeCodec(ChannelHandlerContext ctx) throws Exception;
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        scheduleTimeout(connectTimeoutMillis, "timeout");
+        try {
+            warmUp(ctx);
+        } catch (Throwable cause) {
+            fail(cause);
+        }
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        try {
+            if (state == State.READY) {
+                // The proxy does not speak before it is asked, it is most likely closing the connection.
+                ctx.close();
+            } else {
+                handleResponse(ctx, msg);
+            }
+        } catch (Throwable cause) {
+            fail(cause);
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        fail(new ProxyConnectException(exceptionMessage("disconnected")));
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        fail(cause);
+    }
+
+    protected void warmedUp() {
+        cancelTimeout();
+        state = State.READY;
+        if (warmPromise.trySuccess(null) && idleTimeoutMillis > 0) {
+            scheduleTimeout(idleTimeoutMillis, "idle");
+        }
+    }
+
+    protected void tunnelEstablished() throws Exception {
+        cancelTimeout();
+        state = State.DONE;
+        // Replaced first, so that anything the decoders still hold is not taken for a response.
+        ctx.pipeline().replace(this, HandlerNames.TUNNEL, new InboundBuffer());
+        removeCodec(ctx);
+        tunnelPromise.setSuccess();
+    }
+
+    void fail(Throwable cause) {
+        cancelTimeout();
+        State state = this.state;
+        this.state = State.DONE;
+        if (state == State.WARMING) {
+            warmPromise.tryFailure(cause);
+        } else if (state == State.TUNNELING) {
+            tunnelPromise.tryFailure(cause instanceof ProxyConnectException ? cause
+                : new ProxyConnectException(exceptionMessage(cause.toString()), cause));
+        }
+        ctx.close();
+    }
+
+    void scheduleTimeout(long timeoutMillis, String reason) {
+        cancelTimeout();
+        if (timeoutMillis > 0) {
+            timeoutFuture = ctx.executor().schedule(() ->
+                fail(new ProxyConnectException(exceptionMessage(reason))), timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void cancelTimeout() {
+        if (timeoutFuture != null) {
+            timeoutFuture.cancel(false);
+            timeoutFuture = null;
+        }
+    }
+
+    String exceptionMessage(String message) {
+        return upstreamProxy + ", " + state + ", " + message;
+    }
+
+    /*
+    #####################################################################################
+    ################################## Getter | Setter ##################################
+    #####################################################################################
+     */
+
+    public UpstreamProxy getUpstreamProxy() {
+        return upstreamProxy;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * How long the greeting and the connect request may each take, {@code 0} to wait forever.
+     */
+    public UpstreamTunnelHandler setConnectTimeoutMillis(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Holds the inbound messages until it is removed, then passes them on.
+     */
+    static final class InboundBuffer extends ChannelInboundHandlerAdapter {
+
+        final ArrayDeque<Object> messages = new ArrayDeque<>(2);
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            messages.offer(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            if (!messages.isEmpty()) {
+                for (Object message = messages.poll(); message != null; message = messages.poll()) {
+                    ctx.fireChannelRead(message);
+                }
+                ctx.fireChannelReadComplete();
+            }
+        }
+    }
+
+    /**
+     * Nothing to greet, the tunnel is an HTTP CONNECT request.
+     */
+    static class Http extends UpstreamTunnelHandler {
+
+        final CharSequence authorization;
+        HttpClientCodec codec;
+        HttpResponseStatus status;
+
+        Http(UpstreamProxy upstreamProxy, EventLoop eventLoop, long idleTimeoutMillis) {
+            super(upstreamProxy, eventLoop, idleTimeoutMillis);
+            if (upstreamProxy.getUsername() == null || upstreamProxy.getPassword() == null) {
+                this.authorization = null;
+            } else {
+                String credentials = upstreamProxy.getUsername() + ':' + upstreamProxy.getPassword();
+                this.authorization = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(CharsetUtil.UTF_8));
+            }
+        }
+
+        @Override
+        protected void warmUp(ChannelHandlerContext ctx) {
+            warmedUp();
+        }
+
+        @Override
+        protected void sendConnectRequest(ChannelHandlerContext ctx, InetSocketAddress serverAddress) {
+            codec = new HttpClientCodec();
+            ctx.pipeline().addBefore(ctx.name(), null, codec);
+            String url = HttpUtil.formatHostnameForHttp(serverAddress) + ':' + serverAddress.getPort();
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, url,
+                Unpooled.EMPTY_BUFFER, false);
+            request.headers().set(HttpHeaderNames.HOST, url);
+            if (authorization != null) {
+                request.headers().set(HttpHeaderNames.PROXY_AUTHORIZATION, authorization);
+            }
+            ctx.writeAndFlush(request).addListener(future -> {
+                if (!future.isSuccess()) {
+                    fail(future.cause());
+                }
+            });
+        }
+
+        @Override
+        protected void handleResponse(ChannelHandlerContext ctx, Object response) throws Exception {
+            if (response instanceof HttpResponse) {
+                status = ((HttpResponse) response).status();
+            }
+            if (response instanceof LastHttpContent) {
+                if (status == null || status.code() != 200) {
+                    throw new ProxyConnectException(exceptionMessage("status: " + status));
+                }
+                tunnelEstablished();
+            }
+        }
+
+        @Override
+        protected void removeCodec(ChannelHandlerContext ctx) {
+            ctx.pipeline().remove(codec);
+        }
+    }
+
+    /**
+     * Greets and authenticates, then waits for the CONNECT command.
+     */
+    static class Socks5 extends UpstreamTunnelHandler {
+
+        final Socks5AuthMethod authMethod;
+        ChannelHandler decoder;
+
+        Socks5(UpstreamProxy upstreamProxy, EventLoop eventLoop, long idleTimeoutMillis) {
+            super(upstreamProxy, eventLoop, idleTimeoutMillis);
+            this.authMethod = upstreamProxy.getUsername() == null || upstreamProxy.getPassword() == null
+                ? Socks5AuthMethod.NO_AUTH : Socks5AuthMethod.PASSWORD;
+        }
+
+        @Override
+        protected void warmUp(ChannelHandlerContext ctx) {
+            decoder = new Socks5InitialResponseDecoder();
+            ctx.pipeline().addBefore(ctx.name(), null, decoder);
+            ctx.pipeline().addBefore(ctx.name(), null, Socks5ClientEncoder.DEFAULT);
+            send(ctx, new DefaultSocks5InitialRequest(authMethod == Socks5AuthMethod.NO_AUTH
+                ? Collections.singletonList(Socks5AuthMethod.NO_AUTH)
+                : Arrays.asList(Socks5AuthMethod.NO_AUTH, Socks5AuthMethod.PASSWORD)));
+        }
+
+        @Override
+        protected void sendConnectRequest(ChannelHandlerContext ctx, InetSocketAddress serverAddress) throws Exception {
+            Socks5AddressType addressType;
+            String host;
+            if (serverAddress.isUnresolved()) {
+                addressType = Socks5AddressType.DOMAIN;
+                host = serverAddress.getHostString();
+            } else {
+                host = serverAddress.getAddress().getHostAddress();
+                addressType = NetUtil.isValidIpV4Address(host) ? Socks5AddressType.IPv4 : Socks5AddressType.IPv6;
+            }
+            replaceDecoder(ctx, new Socks5CommandResponseDecoder());
+            send(ctx, new DefaultSocks5CommandRequest(Socks5CommandType.CONNECT, addressType, host, serverAddress.getPort()));
+        }
+
+        @Override
+        protected void handleResponse(ChannelHandlerContext ctx, Object response) throws Exception {
+            if (response instanceof Socks5InitialResponse) {
+                Socks5AuthMethod method = ((Socks5InitialResponse) response).authMethod();
+                if (method == Socks5AuthMethod.NO_AUTH) {
+                    warmedUp();
+                } else if (method == Socks5AuthMethod.PASSWORD && authMethod == Socks5AuthMethod.PASSWORD) {
+                    replaceDecoder(ctx, new Socks5PasswordAuthResponseDecoder());
+                    send(ctx, new DefaultSocks5PasswordAuthRequest(upstreamProxy.getUsername(), upstreamProxy.getPassword()));
+                } else {
+                    throw new ProxyConnectException(exceptionMessage("unexpected authMethod: " + method));
+                }
+            } else if (response instanceof Socks5PasswordAuthResponse) {
+                Socks5PasswordAuthStatus status = ((Socks5PasswordAuthResponse) response).status();
+                if (status != Socks5PasswordAuthStatus.SUCCESS) {
+                    throw new ProxyConnectException(exceptionMessage("authStatus: " + status));
+                }
+                warmedUp();
+            } else if (response instanceof Socks5CommandResponse) {
+                Socks5CommandStatus status = ((Socks5CommandResponse) response).status();
+                if (status != Socks5CommandStatus.SUCCESS) {
+                    throw new ProxyConnectException(exceptionMessage("status: " + status));
+                }
+                tunnelEstablished();
+            } else {
+                throw new ProxyConnectException(exceptionMessage("unexpected response: " + response));
+            }
+        }
+
+        @Override
+        protected void removeCodec(ChannelHandlerContext ctx) {
+            ctx.pipeline().remove(Socks5ClientEncoder.DEFAULT);
+            ctx.pipeline().remove(decoder);
+        }
+
+        void replaceDecoder(ChannelHandlerContext ctx, ChannelHandler decoder) {
+            ctx.pipeline().replace(this.decoder, null, decoder);
+            this.decoder = decoder;
+        }
+
+        void send(ChannelHandlerContext ctx, Object request) {
+            ctx.writeAndFlush(request).addListener(future -> {
+                if (!future.isSuccess()) {
+                    fail(future.cause());
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http;
+
+import io.github.aomsweet.cyber.*;
+import io.netty.channel.*;
+import io.netty.handler.codec.http2.*;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multiplexes the MITM'd requests to an origin on shared HTTP/2 connections, negotiated over ALPN. Every
+ * request gets a stream of its own, translated from and to HTTP/1.1 by the relay.
+ * <p>
+ * The connections are kept per event loop and per (server address, upstream proxy), so the streams run on
+ * the event loop of their clients and the pools need no locking. A connection takes new streams up to the
+ * limit of concurrent streams of the origin, then another connection is opened.
+ * <p>
+ * The origins that pick HTTP/1.1 are remembered for a while, their requests get dedicated channels of the
+ * {@link ChannelManager} meanwhile. The connection that found it out is handed to the first request that
+ * waited for it, the other waiting requests get channels of their own.
+ *
+ * @author aomsweet
+ */
+public class Http2ConnectionPool {
+
+    private final static InternalLogger logger = InternalLoggerFactory.getInstance(Http2ConnectionPool.class);
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    public static final long DEFAULT_HTTP1_ORIGIN_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    /**
+     * The streams handed out before the origin tells its own limit, the minimum recommended by RFC 9113.
+     */
+    public static final int DEFAULT_INITIAL_MAX_STREAMS = 100;
+
+    final CyberServer cyber;
+    final Map<EventLoop, ConnectionPool> pools = new ConcurrentHashMap<>();
+    /**
+     * The origins that picked HTTP/1.1, with the {@link System#nanoTime()} they are tried again at.
+     */
+    final Map<InetSocketAddress, Long> http1Origins = new ConcurrentHashMap<>();
+    volatile SslContext sslContext;
+
+    long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    long http1OriginTimeoutMillis = DEFAULT_HTTP1_ORIGIN_TIMEOUT_MILLIS;
+
+    public Http2ConnectionPool(CyberServer cyber) {
+        this.cyber = cyber;
+    }
+
+    /**
+     * Whether the requests to the origin should be tried on HTTP/2, {@code false} while it is remembered
+     * to pick HTTP/1.1.
+     */
+    public boolean isHttp2Candidate(InetSocketAddress serverAddress) {
+        Long retryTime = http1Origins.get(serverAddress);
+        if (retryTime == null) {
+            return true;
+        } else if (System.nanoTime() - retryTime < 0) {
+            return false;
+        }
+        http1Origins.remove(serverAddress, retryTime);
+        return true;
+    }
+
+    /**
+     * Opens a stream to the origin on a shared connection. If the origin picks HTTP/1.1, the future gets
+     * a channel on which the TLS handshake is done instead.
+     */
+    public ChannelFuture acquire(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, ChannelHandlerContext ctx) {
+        EventLoop eventLoop = ctx.channel().eventLoop();
+        return pools.computeIfAbsent(eventLoop, ConnectionPool::new)
+            .acquire(new PoolKey(serverAddress, upstreamProxy), ctx);
+    }
+
+    public int getConnectionCount() {
+        int count = 0;
+        for (ConnectionPool pool : pools.values()) {
+            count += pool.connectionCount;
+        }
+        return count;
+    }
+
+    SslContext getSslContext() throws SSLException {
+        SslContext sslContext;
+        if ((sslContext = this.sslContext) == null) {
+            synchronized (this) {
+                if ((sslContext = this.sslContext) == null) {
+                    // The failure behaviors supported by every provider.
+                    ApplicationProtocolConfig apn = new ApplicationProtocolConfig(
+                        ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1);
+                    this.sslContext = sslContext = HttpBaseClientRelayHandler.newClientSslContext(cyber, apn);
+                }
+            }
+        }
+        return sslContext;
+    }
+
+    /*
+    #####################################################################################
+    ################################## Getter | Setter ##################################
+    #####################################################################################
+     */
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public Http2ConnectionPool setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    public long getHttp1OriginTimeoutMillis() {
+        return http1OriginTimeoutMillis;
+    }
+
+    public Http2ConnectionPool setHttp1OriginTimeoutMillis(long http1OriginTimeoutMillis) {
+        this.http1OriginTimeoutMillis = http1OriginTimeoutMillis;
+        return this;
+    }
+
+    static final class PoolKey {
+
+        final InetSocketAddress serverAddress;
+        final UpstreamProxy upstreamProxy;
+
+        PoolKey(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy) {
+            this.serverAddress = serverAddress;
+            this.upstreamProxy = upstreamProxy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            PoolKey that = (PoolKey) o;
+
+            if (!serverAddress.equals(that.serverAddress)) return false;
+            return upstreamProxy == null ? that.upstreamProxy == null : upstreamProxy.equals(that.upstreamProxy);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = serverAddress.hashCode();
+            result = 31 * result + (upstreamProxy == null ? 0 : upstreamProxy.hashCode());
+            return result;
+        }
+    }
+
+    /**
+     * The connections of one event loop, only accessed from that event loop.
+     */
+    final class ConnectionPool {
+
+        final EventLoop eventLoop;
+        final Map<PoolKey, List<Connection>> connections = new HashMap<>();
+        int connectionCount;
+
+        ConnectionPool(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+        }
+
+        ChannelFuture acquire(PoolKey key, ChannelHandlerContext ctx) {
+            List<Connection> list = connections.computeIfAbsent(key, k -> new ArrayList<>(2));
+            for (Connection connection : list) {
+                if (connection.hasCapacity()) {
+                    return connection.newStream();
+                }
+            }
+            Connection connection = new Connection(key);
+            list.add(connection);
+            connectionCount++;
+            connection.connect(ctx);
+            return connection.newStream();
+        }
+
+        void remove(Connection connection) {
+            List<Connection> list = connections.get(connection.key);
+            if (list != null && list.remove(connection)) {
+                connectionCount--;
+                if (list.isEmpty()) {
+                    connections.remove(connection.key);
+                }
+            }
+        }
+
+        /**
+         * A connection to an origin, which watches the limit of concurrent streams, the GOAWAY of the
+         * origin and its own idleness.
+         */
+        final class Connection extends ChannelInboundHandlerAdapter {
+
+            final PoolKey key;
+            Channel channel;
+            Http2FrameCodec frameCodec;
+            /**
+             * The streams requested while the connection is being established.
+             */
+            List<CompleteChannelPromise> waiters = new ArrayList<>(4);
+            int streams;
+            int maxStreams = DEFAULT_INITIAL_MAX_STREAMS;
+            /**
+             * No new streams are opened on the connection.
+             */
+            boolean closed;
+            ScheduledFuture<?> idleTimeoutFuture;
+
+            Connection(PoolKey key) {
+                this.key = key;
+            }
+
+            boolean hasCapacity() {
+                return !closed && streams + (waiters == null ? 0 : waiters.size()) < maxStreams;
+            }
+
+            void connect(ChannelHandlerContext ctx) {
+                ChannelManager channelManager = cyber.getChannelManager();
+                ChannelFuture future = key.upstreamProxy == null
+                    ? channelManager.acquire(key.serverAddress, ctx)
+                    : channelManager.acquire(key.serverAddress, key.upstreamProxy, ctx);
+                future.addListener((ChannelFutureListener) f -> {
+                    if (f.isSuccess()) {
+                        handshake(f.channel(), ctx);
+                    } else {
+                        failed(f.cause());
+                    }
+                });
+            }
+
+            void handshake(Channel channel, ChannelHandlerContext ctx) {
+                this.channel = channel;
+                SslHandler sslHandler;
+                try {
+                    sslHandler = getSslContext().newHandler(channel.alloc(),
+                        key.serverAddress.getHostString(), key.serverAddress.getPort());
+                } catch (SSLException e) {
+                    channel.close();
+                    failed(e);
+                    return;
+                }
+                cyber.getClientSslSessionStatistics().track(sslHandler);
+                channel.pipeline().addLast(HandlerNames.SSL, sslHandler);
+                sslHandler.handshakeFuture().addListener(future -> {
+                    if (!future.isSuccess()) {
+                        channel.close();
+                        failed(future.cause());
+                    } else if (ApplicationProtocolNames.HTTP_2.equals(sslHandler.applicationProtocol())) {
+                        ready();
+                    } else {
+                        fallback(ctx);
+                    }
+                });
+            }
+
+            void ready() {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{} Negotiated HTTP/2 with {}", channel, key.serverAddress);
+                }
+                // The streams over the limit of the origin wait in the encoder instead of failing.
+                frameCodec = Http2FrameCodecBuilder.forClient()
+                    .initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+                    .encoderEnforceMaxConcurrentStreams(true)
+                    .build();
+                ChannelPipeline pipeline = channel.pipeline();
+                pipeline.addLast(HandlerNames.DECODER, frameCodec);
+                pipeline.addLast(HandlerNames.RELAY, new Http2MultiplexHandler(DiscardRelayHandler.INSTANCE));
+                pipeline.addLast(HandlerNames.IDLE, this);
+                List<CompleteChannelPromise> waiters = this.waiters;
+                this.waiters = null;
+                for (CompleteChannelPromise promise : waiters) {
+                    openStream(promise);
+                }
+                if (streams == 0) {
+                    scheduleIdleTimeout();
+                }
+            }
+
+            /**
+             * The origin picked HTTP/1.1: the handshaken channel goes to the first waiting request.
+             */
+            void fallback(ChannelHandlerContext ctx) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{} {} declined HTTP/2", channel, key.serverAddress);
+                }
+                http1Origins.put(key.serverAddress,
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(http1OriginTimeoutMillis));
+                closed = true;
+                remove(this);
+                List<CompleteChannelPromise> waiters = this.waiters;
+                this.waiters = null;
+                if (waiters.isEmpty()) {
+                    channel.close();
+                    return;
+                }
+                waiters.get(0).setChannel(channel).setSuccess();
+                ChannelManager channelManager = cyber.getChannelManager();
+                for (int i = 1; i < waiters.size(); i++) {
+                    CompleteChannelPromise promise = waiters.get(i);
+                    ChannelFuture future = key.upstreamProxy == null
+                        ? channelManager.acquire(key.serverAddress, ctx)
+                        : channelManager.acquire(key.serverAddress, key.upstreamProxy, ctx);
+                    future.addListener((ChannelFutureListener) f -> {
+                        if (f.isSuccess()) {
+                            promise.setChannel(f.channel()).setSuccess();
+                        } else {
+                            promise.setFailure(f.cause());
+                        }
+                    });
+                }
+            }
+
+            void failed(Throwable cause) {
+                closed = true;
+                remove(this);
+                if (waiters != null) {
+                    List<CompleteChannelPromise> waiters = this.waiters;
+                    this.waiters = null;
+                    for (CompleteChannelPromise promise : waiters) {
+                        promise.setFailure(cause);
+                    }
+                }
+            }
+
+            ChannelFuture newStream() {
+                CompleteChannelPromise promise = new CompleteChannelPromise(eventLoop);
+                if (waiters != null) {
+                    waiters.add(promise);
+                } else {
+                    openStream(promise);
+                }
+                return promise;
+            }
+
+            void openStream(CompleteChannelPromise promise) {
+                cancelIdleTimeout();
+                streams++;
+                new Http2StreamChannelBootstrap(channel).open().addListener((FutureListener<Http2StreamChannel>) future -> {
+                    if (future.isSuccess()) {
+                        Http2StreamChannel streamChannel = future.getNow();
+                        streamChannel.closeFuture().addListener(f -> streamClosed());
+                        promise.setChannel(streamChannel).setSuccess();
+                    } else {
+                        streamClosed();
+                        promise.setFailure(future.cause());
+                    }
+                });
+            }
+
+            void streamClosed() {
+                if (--streams == 0) {
+                    if (closed) {
+                        channel.close();
+                    } else {
+                        scheduleIdleTimeout();
+                    }
+                }
+            }
+
+            void scheduleIdleTimeout() {
+                if (idleTimeoutMillis > 0) {
+                    idleTimeoutFuture = eventLoop.schedule(() -> {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("HTTP/2 connection {} timed out.", channel);
+                        }
+                        channel.close();
+                    }, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            void cancelIdleTimeout() {
+                if (idleTimeoutFuture != null) {
+                    idleTimeoutFuture.cancel(false);
+                    idleTimeoutFuture = null;
+                }
+            }
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                try {
+                    if (msg instanceof Http2SettingsFrame) {
+                        // Already applied to the encoder by the codec.
+                        maxStreams = frameCodec.connection().local().maxActiveStreams();
+                    } else if (msg instanceof Http2GoAwayFrame) {
+                        // The open streams run to their end, the following ones go on another connection.
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("{} GOAWAY from {}", channel, key.serverAddress);
+                        }
+                        closed = true;
+                        remove(this);
+                        if (streams == 0) {
+                            ctx.close();
+                        }
+                    }
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                }
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+                closed = true;
+                cancelIdleTimeout();
+                remove(this);
+                ctx.fireChannelInactive();
+            }
+
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("{} {}: {}", channel, cause.getClass().getName(), cause.getMessage());
+                }
+                ctx.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http;
+
+import io.github.aomsweet.cyber.CyberServer;
+import io.github.aomsweet.cyber.HandlerNames;
+import io.github.aomsweet.cyber.http.interceptor.HttpInterceptorLookup;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Relays one stream of an HTTP/2 client connection. Every stream has its own relay channel, so the streams
+ * of a connection never wait for each other.
+ * <p>
+ * The streams of a MITM'd connection go to the server of its tunnel, on a stream of a shared upstream
+ * connection if {@link Http2ConnectionPool} is enabled, otherwise in HTTP/1.1. The ones of a cleartext
+ * connection go to the authority of their request in HTTP/1.1.
+ *
+ * @author aomsweet
+ */
+public class Http2StreamClientRelayHandler extends HttpBaseClientRelayHandler {
+
+    private final static InternalLogger logger = InternalLoggerFactory.getInstance(Http2StreamClientRelayHandler.class);
+
+    boolean requestComplete;
+    boolean keepAlive = true;
+
+    /**
+     * @param interceptors the snapshot of the connection the stream belongs to
+     */
+    public Http2StreamClientRelayHandler(CyberServer cyber, HttpInterceptorLookup interceptors) {
+        super(cyber, logger, interceptors);
+    }
+
+    public Http2StreamClientRelayHandler(CyberServer cyber, InetSocketAddress serverAddress,
+                                         HttpInterceptorLookup interceptors) {
+        super(cyber, logger, interceptors);
+        this.serverAddress = serverAddress;
+        this.isSsl = true;
+    }
+
+    /**
+     * Adds the HTTP/2 codec of a client connection, the streams are initialized by the given handler.
+     */
+    public static void addConnectionHandlers(ChannelPipeline pipeline, CyberServer cyber, ChannelHandler streamInitializer) {
+        Http2Settings settings = Http2Settings.defaultSettings()
+            .maxConcurrentStreams(cyber.getHttp2MaxConcurrentStreams());
+        pipeline.addLast(HandlerNames.DECODER, Http2FrameCodecBuilder.forServer().initialSettings(settings).build());
+        pipeline.addLast(HandlerNames.RELAY, new Http2MultiplexHandler(streamInitializer));
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            // Added by the stream codec, they mean nothing to the server.
+            removeExtensionHeaders(((HttpRequest) msg).headers());
+        }
+        if (!deferMessage(msg)) {
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    @Override
+    public void handleHttpRequest(HttpRequest request) throws Exception {
+        if (HttpMethod.CONNECT.equals(request.method())) {
+            // Tunnels are only opened over HTTP/1.1 connections.
+            reject(request, HttpResponseStatus.METHOD_NOT_ALLOWED);
+            return;
+        }
+        if (serverAddress == null) {
+            String host = request.headers().get(HttpHeaderNames.HOST);
+            if (host == null || host.isEmpty()) {
+                reject(request, HttpResponseStatus.BAD_REQUEST);
+                return;
+            }
+            this.serverAddress = HttpClientRelayHandler.resolveServerAddress(host, 80);
+        }
+        requestComplete = request instanceof LastHttpContent;
+        addPendingWrites(request);
+        doConnectServer(request);
+    }
+
+    @Override
+    public void handleHttpContent(HttpContent httpContent) {
+        if (httpContent instanceof LastHttpContent) {
+            requestComplete = true;
+        }
+        if (state == State.READY) {
+            relay(httpContent);
+        } else if (state == State.CLOSED) {
+            ReferenceCountUtil.release(httpContent);
+        } else {
+            addPendingWrites(httpContent);
+        }
+    }
+
+    private void reject(HttpRequest request, HttpResponseStatus status) {
+        ReferenceCountUtil.release(request);
+        ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status)).addListener(future -> close());
+    }
+
+    /**
+     * The client codec pairs the responses with their requests, so that the responses to HEAD requests
+     * are known to have no content.
+     */
+    @Override
+    protected void addServerCodec(ChannelPipeline serverPipeline) {
+        serverPipeline.addLast(HandlerNames.DECODER, new HttpClientCodec());
+    }
+
+    @Override
+    protected boolean isExchangeTracked() {
+        return true;
+    }
+
+    @Override
+    protected boolean isStreamRelayAllowed() {
+        return true;
+    }
+
+    /**
+     * The responses are encoded by the stream codec.
+     */
+    @Override
+    protected void addResponseEncoder(ChannelPipeline clientPipeline) {
+    }
+
+    /**
+     * A stream ends by itself once its response is sent, it is only reset when the server closes before the
+     * response is complete.
+     */
+    @Override
+    protected ChannelHandler newExchangeRelayHandler() {
+        return new ExchangeRelayHandler() {
+            @Override
+            protected void releaseRelayChannel() {
+                if (!exchanges.isEmpty() && relayChannel.isActive()) {
+                    relayChannel.close();
+                } else {
+                    flushRelay();
+                }
+            }
+        };
+    }
+
+    @Override
+    protected void responseReceived(HttpResponse httpResponse) {
+        if (httpResponse.status().code() == HttpResponseStatus.SWITCHING_PROTOCOLS.code()
+            || !HttpUtil.isKeepAlive(httpResponse)) {
+            keepAlive = false;
+        }
+    }
+
+    @Override
+    protected boolean isRelayChannelReusable() {
+        return keepAlive && requestComplete && exchanges.isEmpty();
+    }
+}
@@ -19,15 +19,14 @@ import io.github.aomsweet.cyber.Credentials;
 import io.github.aomsweet.cyber.HandlerNames;
 import io.github.aomsweet.cyber.CyberServer;
 import io.github.aomsweet.cyber.ProxyAuthenticator;
-import io.netty.buffer.ByteBuf;
+import io.github.aomsweet.cyber.http.interceptor.HttpInterceptorLookup;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaders;
-import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
@@ -44,11 +43,24 @@ public class HttpAuthorizationHandler extends ChannelInboundHandlerAdapter {
     public static final byte[] UNAUTHORIZED_RESPONSE = "HTTP/1.1 407 Unauthorized\r\nProxy-Authenticate: Basic realm=\"Access to the staging site\"\r\n\r\n".getBytes();
 
     CyberServer cyber;
+    /**
+     * The interceptors of the streams, the snapshot of their HTTP/2 connection.
+     */
+    HttpInterceptorLookup interceptors;
 
     public HttpAuthorizationHandler(CyberServer cyber) {
         this.cyber = cyber;
     }
 
+    /**
+     * A handler shared by the streams of one HTTP/2 connection, which match their requests against the same
+     * interceptors.
+     */
+    public HttpAuthorizationHandler(CyberServer cyber, HttpInterceptorLookup interceptors) {
+        this.cyber = cyber;
+        this.interceptors = interceptors;
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         if (msg instanceof HttpRequest) {
@@ -58,9 +70,8 @@ public class HttpAuthorizationHandler extends ChannelInboundHandlerAdapter {
                 if (authenticator != null) {
                     Credentials credentials = resolveCredentials(httpRequest);
                     if (credentials == null || !authenticator.authenticate(credentials.getUsername(), credentials.getPassword())) {
-                        ByteBuf byteBuf = ctx.alloc().buffer(UNAUTHORIZED_RESPONSE.length);
-                        ctx.writeAndFlush(byteBuf.writeBytes(UNAUTHORIZED_RESPONSE))
-                            .addListener(ChannelFutureListener.CLOSE);
+                        ReferenceCountUtil.release(httpRequest);
+                        ctx.writeAndFlush(newUnauthorizedResponse(ctx)).addListener(ChannelFutureListener.CLOSE);
                     } else {
                         switchClientRelayHandler(ctx, httpRequest, credentials);
                     }
@@ -78,9 +89,25 @@ public class HttpAuthorizationHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    /**
+     * The streams of an HTTP/2 connection get their response as an object, it is encoded by the stream codec.
+     */
+    protected Object newUnauthorizedResponse(ChannelHandlerContext ctx) {
+        if (ctx.channel() instanceof Http2StreamChannel) {
+            HttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.PROXY_AUTHENTICATION_REQUIRED);
+            response.headers().set(HttpHeaderNames.PROXY_AUTHENTICATE, "Basic realm=\"Access to the staging site\"");
+            return response;
+        } else {
+            return ctx.alloc().buffer(UNAUTHORIZED_RESPONSE.length).writeBytes(UNAUTHORIZED_RESPONSE);
+        }
+    }
+
     public void switchClientRelayHandler(ChannelHandlerContext ctx, HttpRequest httpRequest, Credentials credentials) {
         ChannelHandler relayHandler;
-        if (HttpMethod.CONNECT.equals(httpRequest.method())) {
+        if (ctx.channel() instanceof Http2StreamChannel) {
+            relayHandler = new Http2StreamClientRelayHandler(cyber, interceptors).setCredentials(credentials);
+        } else if (HttpMethod.CONNECT.equals(httpRequest.method())) {
             if (cyber.getMitmManager() == null) {
                 relayHandler = new HttpTunnelClientRelayHandler(cyber).setCredentials(credentials);
             } else {
@@ -17,41 +17,98 @@ package io.github.aomsweet.cyber.http;
 
 import io.github.aomsweet.cyber.*;
 import io.github.aomsweet.cyber.http.interceptor.HttpInterceptor;
+import io.github.aomsweet.cyber.http.interceptor.HttpInterceptorLookup;
 import io.github.aomsweet.cyber.http.interceptor.HttpInterceptorManager;
 import io.github.aomsweet.cyber.http.interceptor.HttpRequestInterceptor;
 import io.github.aomsweet.cyber.http.interceptor.HttpResponseInterceptor;
-import io.netty.channel.Channel;
-import io.netty.channel.ChannelHandler;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelPipeline;
+import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.ssl.*;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 
 import javax.net.ssl.SSLException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 
 /**
  * @author aomsweet
  */
-public abstract class HttpBaseClientRelayHandler extends ClientRelayHandler<HttpRequest> implements HttpChannelContext {
+public abstract class HttpBaseClientRelayHandler extends ClientRelayHandler<HttpRequest> implements HttpExchangeContext {
 
     public static final byte[] TUNNEL_ESTABLISHED_RESPONSE = "HTTP/1.1 200 Connection Established\r\n\r\n".getBytes();
 
     private Object data;
 
+    /**
+     * The interceptors as they were when the connection started, see {@link HttpInterceptorManager#snapshot()}.
+     */
+    protected final HttpInterceptorLookup interceptorManager;
     protected boolean isSsl;
     protected HttpRequest httpRequest;
-    protected Queue<HttpInterceptor> httpInterceptors;
+    /**
+     * The interceptors of the current request, shared with the other requests that match them, and the
+     * index of the next one to run.
+     */
+    protected List<HttpInterceptor> httpInterceptors;
+    protected int interceptorIndex;
     protected Queue<HttpResponseInterceptor> responseInterceptors;
+    /**
+     * The listeners bound to the exchange of the current request, see {@link #addExchangeListener}.
+     */
+    protected List<HttpExchangeListener> exchangeListeners;
+    /**
+     * The exchange whose response is being intercepted.
+     */
+    protected Exchange interceptedExchange;
+
+    /**
+     * The requests relayed to the server whose responses are not complete yet, oldest first. Only tracked
+     * when the responses are decoded, see {@link #isExchangeTracked()}.
+     */
+    protected final Queue<Exchange> exchanges = new ArrayDeque<>(4);
+
+    /**
+     * A request that can't be relayed yet and the messages after it, held back until the responses of
+     * the previous requests are relayed, see {@link #isRequestDeferred}.
+     */
+    protected Queue<Object> deferredMessages;
+
+    /**
+     * Whether the current request is held back by an interceptor, see {@link #suspendRequest()}.
+     */
+    protected boolean suspended;
+    /**
+     * Whether the content of a request answered by an interceptor is still being read.
+     */
+    protected boolean discardingContent;
 
     public HttpBaseClientRelayHandler(CyberServer cyber, InternalLogger logger) {
+        this(cyber, logger, snapshotInterceptors(cyber));
+    }
+
+    /**
+     * @param interceptors the snapshot of the connection, shared by its streams
+     */
+    public HttpBaseClientRelayHandler(CyberServer cyber, InternalLogger logger, HttpInterceptorLookup interceptors) {
         super(cyber, logger);
+        this.interceptorManager = interceptors;
+    }
+
+    /**
+     * The interceptors a new connection matches its requests against, {@code null} if there is none.
+     */
+    public static HttpInterceptorLookup snapshotInterceptors(CyberServer cyber) {
+        HttpInterceptorManager interceptorManager = cyber.getHttpInterceptorManager();
+        return interceptorManager == null ? null : interceptorManager.snapshot();
     }
 
     @Override
@@ -62,13 +119,32 @@ public abstract class HttpBaseClientRelayHandler extends ClientRelayHandler<Http
                 if (!preHandle(httpRequest)) {
                     return;
                 }
+                Exchange exchange = null;
+                if (isExchangeTracked() && httpRequest.method() != HttpMethod.CONNECT) {
+                    exchange = new Exchange(responseInterceptors == null ? null : httpRequest, responseInterceptors,
+                        exchangeListeners);
+                    this.responseInterceptors = null;
+                } else {
+                    // No response is waited for.
+                    exchangeEnded(exchangeListeners);
+                }
+                this.exchangeListeners = null;
                 handleHttpRequest(httpRequest);
+                if (exchange != null) {
+                    exchanges.offer(exchange);
+                    if (isReadingPaused()) {
+                        updateClientAutoRead();
+                    }
+                }
             } else {
                 close();
             }
         } else if (msg instanceof HttpContent) {
             HttpContent httpContent = (HttpContent) msg;
-            if (httpContent.decoderResult().isSuccess()) {
+            if (discardingContent) {
+                discardingContent = !(httpContent instanceof LastHttpContent);
+                httpContent.release();
+            } else if (httpContent.decoderResult().isSuccess()) {
                 handleHttpContent(httpContent);
             } else {
                 close();
@@ -80,40 +156,208 @@ public abstract class HttpBaseClientRelayHandler extends ClientRelayHandler<Http
 
     private boolean preHandle(HttpRequest httpRequest) throws Exception {
         if (httpInterceptors == null) {
-            HttpInterceptorManager interceptorManager = cyber.getHttpInterceptorManager();
             if (interceptorManager != null) {
-                this.httpInterceptors = interceptorManager.matchInterceptor(httpRequest);
+                this.httpInterceptors = interceptorManager.matchInterceptors(httpRequest);
+                this.interceptorIndex = 0;
             }
         }
         if (httpInterceptors != null) {
             this.httpRequest = httpRequest;
-            for (HttpInterceptor interceptor = httpInterceptors.peek();
-                 interceptor != null; interceptor = httpInterceptors.peek()) {
-
+            for (int size = httpInterceptors.size(); interceptorIndex < size; interceptorIndex++) {
+                HttpInterceptor interceptor = httpInterceptors.get(interceptorIndex);
                 HttpRequestInterceptor requestInterceptor = interceptor.requestInterceptor();
                 if (!(requestInterceptor == null || requestInterceptor.preHandle(httpRequest, this))) {
                     return false;
-                } else if (httpRequest.method() != HttpMethod.CONNECT) {
-                    HttpResponseInterceptor responseInterceptor = interceptor.responseInterceptor();
-                    if (responseInterceptor != null) {
-                        if (responseInterceptors == null) {
-                            responseInterceptors = new ArrayDeque<>(httpInterceptors.size());
-                        }
-                        responseInterceptors.offer(responseInterceptor);
-                    }
                 }
-                httpInterceptors.poll();
+                addResponseInterceptor(httpRequest, interceptor);
             }
 
-            if (responseInterceptors == null) {
-                this.httpRequest = null;
-            }
+            // The response interceptors get the request from the exchange.
+            this.httpRequest = null;
             this.httpInterceptors = null;
         }
 
         return true;
     }
 
+    private void addResponseInterceptor(HttpRequest httpRequest, HttpInterceptor interceptor) {
+        HttpResponseInterceptor responseInterceptor;
+        if (httpRequest.method() != HttpMethod.CONNECT && (responseInterceptor = interceptor.responseInterceptor()) != null) {
+            if (responseInterceptors == null) {
+                responseInterceptors = new ArrayDeque<>(httpInterceptors.size() - interceptorIndex);
+            }
+            responseInterceptors.offer(responseInterceptor);
+        }
+    }
+
+    @Override
+    public void respond(FullHttpResponse httpResponse) {
+        HttpRequest httpRequest = this.httpRequest;
+        if (httpInterceptors == null || httpRequest == null) {
+            ReferenceCountUtil.release(httpResponse);
+            throw new IllegalStateException("No request is being intercepted.");
+        }
+        discardingContent = !(httpRequest instanceof LastHttpContent);
+        if (HttpUtil.isKeepAlive(httpRequest)) {
+            // An HTTP/1.0 client must be told that the connection is kept alive.
+            HttpUtil.setKeepAlive(httpResponse.headers(), httpRequest.protocolVersion(), true);
+        } else {
+            HttpUtil.setKeepAlive(httpResponse, false);
+        }
+        ReferenceCountUtil.release(httpRequest);
+        this.httpRequest = null;
+        this.httpInterceptors = null;
+        this.responseInterceptors = null;
+        List<HttpExchangeListener> listeners = exchangeListeners;
+        this.exchangeListeners = null;
+        exchangeEnded(listeners);
+        if (exchanges.isEmpty()) {
+            writeResponse(httpResponse);
+        } else {
+            exchanges.offer(new Exchange(httpResponse));
+        }
+    }
+
+    private void writeResponse(FullHttpResponse httpResponse) {
+        addResponseEncoder(clientChannel.pipeline());
+        boolean keepAlive = HttpUtil.isKeepAlive(httpResponse);
+        ChannelFuture future = clientChannel.writeAndFlush(httpResponse);
+        if (!keepAlive) {
+            future.addListener(f -> close());
+        }
+    }
+
+    /**
+     * Writes the responses of the requests answered by the interceptors that are next in line.
+     */
+    private void writeAnsweredResponses() {
+        for (Exchange exchange = exchanges.peek(); exchange != null && exchange.httpResponse != null;
+             exchange = exchanges.peek()) {
+            exchanges.poll();
+            writeResponse(exchange.httpResponse);
+        }
+    }
+
+    @Override
+    public void addExchangeListener(HttpExchangeListener listener) {
+        if (httpInterceptors == null || httpRequest == null) {
+            throw new IllegalStateException("No request is being intercepted.");
+        }
+        if (exchangeListeners == null) {
+            exchangeListeners = new ArrayList<>(2);
+        }
+        exchangeListeners.add(listener);
+    }
+
+    @Override
+    public <T extends HttpExchangeListener> T getExchangeListener(Class<T> type) {
+        List<HttpExchangeListener> listeners = interceptedExchange == null
+            ? exchangeListeners : interceptedExchange.listeners;
+        if (listeners != null) {
+            for (HttpExchangeListener listener : listeners) {
+                if (type.isInstance(listener)) {
+                    return type.cast(listener);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void exchangeEnded(List<HttpExchangeListener> listeners) {
+        if (listeners != null) {
+            for (HttpExchangeListener listener : listeners) {
+                try {
+                    listener.exchangeEnded();
+                } catch (Exception e) {
+                    logger.error("{}: {}", e.getClass().getName(), e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void suspendRequest() {
+        if (httpInterceptors == null || httpRequest == null) {
+            throw new IllegalStateException("No request is being intercepted.");
+        }
+        suspended = true;
+        deferredMessages = new ArrayDeque<>(4);
+        clientChannel.config().setAutoRead(false);
+    }
+
+    @Override
+    public void resumeRequest() {
+        if (!suspended || state == State.CLOSED) {
+            return;
+        }
+        suspended = false;
+        if (httpInterceptors != null) {
+            // Not answered, the interceptor that suspended it is done with it.
+            addResponseInterceptor(httpRequest, httpInterceptors.get(interceptorIndex++));
+            Queue<Object> messages = new ArrayDeque<>(deferredMessages.size() + 1);
+            messages.offer(httpRequest);
+            messages.addAll(deferredMessages);
+            deferredMessages = messages;
+        }
+        resumeDeferredMessages();
+    }
+
+    /**
+     * Holds the message back if it is a request that must wait for the pending responses, or if such a
+     * request is already held back. {@code false} if the message can be handled right away.
+     */
+    protected boolean deferMessage(Object msg) throws Exception {
+        if (deferredMessages != null) {
+            deferredMessages.offer(msg);
+            return true;
+        } else if (msg instanceof HttpRequest && !exchanges.isEmpty() && isRequestDeferred((HttpRequest) msg)) {
+            deferredMessages = new ArrayDeque<>(4);
+            deferredMessages.offer(msg);
+            clientChannel.config().setAutoRead(false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the request must wait until the responses of the previous requests are relayed, because it
+     * goes on another relay channel. Only asked while some responses are pending.
+     */
+    protected boolean isRequestDeferred(HttpRequest httpRequest) throws Exception {
+        return false;
+    }
+
+    private void resumeDeferredMessages() {
+        Queue<Object> messages = deferredMessages;
+        if (messages == null || state == State.CLOSED) {
+            return;
+        }
+        deferredMessages = null;
+        // Read again from the decoder on, through the aggregators the interceptors may add.
+        ChannelHandlerContext decoderContext = ctx.pipeline().context(HandlerNames.DECODER);
+        try {
+            for (Object msg = messages.poll(); msg != null; msg = messages.poll()) {
+                if (deferredMessages != null) {
+                    deferredMessages.offer(msg);
+                } else if (decoderContext != null) {
+                    decoderContext.fireChannelRead(msg);
+                } else {
+                    channelRead(ctx, msg);
+                }
+            }
+            flushRelay();
+            if (deferredMessages == null) {
+                updateClientAutoRead();
+            }
+        } catch (Exception e) {
+            for (Object msg = messages.poll(); msg != null; msg = messages.poll()) {
+                ReferenceCountUtil.release(msg);
+            }
+            logger.error("{}: {}", e.getClass().getName(), e.getMessage(), e);
+            close();
+        }
+    }
+
     public abstract void handleHttpRequest(HttpRequest httpRequest) throws Exception;
 
     public abstract void handleHttpContent(HttpContent httpContent) throws Exception;
@@ -122,55 +366,147 @@ public abstract class HttpBaseClientRelayHandler extends ClientRelayHandler<Http
         ctx.fireChannelRead(message);
     }
 
+    /**
+     * Whether the requests may be relayed on the streams of a shared HTTP/2 connection, which takes a new
+     * relay channel for every request.
+     */
+    protected boolean isStreamRelayAllowed() {
+        return false;
+    }
+
+    @Override
+    protected ChannelFuture acquireChannel(UpstreamProxy upstreamProxy) {
+        Http2ConnectionPool http2ConnectionPool = cyber.getHttp2ConnectionPool();
+        if (isSsl && http2ConnectionPool != null && isStreamRelayAllowed()
+            && http2ConnectionPool.isHttp2Candidate(serverAddress)) {
+            return http2ConnectionPool.acquire(serverAddress, upstreamProxy, ctx);
+        }
+        if (isSsl) {
+            // The server name is the one the SSL handler of the relay channel is made with.
+            return channelManager.acquire(serverAddress, upstreamProxy, serverAddress.getHostString(), ctx);
+        }
+        return super.acquireChannel(upstreamProxy);
+    }
+
+    @Override
+    protected void releaseChannel(Channel channel, UpstreamProxy upstreamProxy, boolean reusable) {
+        if (channel instanceof Http2StreamChannel) {
+            // A stream is never reused, closing it only resets it if its exchange is not complete.
+            channel.close();
+        } else {
+            super.releaseChannel(channel, upstreamProxy, reusable);
+        }
+    }
+
     @Override
     public ChannelHandler newServerRelayHandler() throws Exception {
         ChannelPipeline pipeline = relayChannel.pipeline();
-        if (isSsl) {
+        if (relayChannel instanceof Http2StreamChannel) {
+            pipeline.addLast(HandlerNames.DECODER, new Http2StreamFrameToHttpObjectCodec(false));
+            return newExchangeRelayHandler();
+        }
+        // The channels of an origin that declined HTTP/2 come out of the handshake of the connection pool.
+        if (isSsl && pipeline.get(HandlerNames.SSL) == null) {
             SslContext clientSslContext = getClientSslContext();
-            pipeline.addLast(HandlerNames.SSL, clientSslContext.newHandler(relayChannel.alloc(),
-                serverAddress.getHostName(), serverAddress.getPort()));
+            // The peer host and port are the key of the client session cache.
+            SslHandler sslHandler = clientSslContext.newHandler(relayChannel.alloc(),
+                serverAddress.getHostString(), serverAddress.getPort());
+            cyber.getClientSslSessionStatistics().track(sslHandler);
+            pipeline.addLast(HandlerNames.SSL, sslHandler);
         }
-        pipeline.addLast(HandlerNames.REQUEST_ENCODER, new HttpRequestEncoder());
+        addServerCodec(pipeline);
 
-        if (cyber.getHttpInterceptorManager() == null) {
-            return new ServerRelayHandler(cyber, clientChannel);
+        if (isExchangeTracked()) {
+            return newExchangeRelayHandler();
         } else {
-            return newInterceptedServerRelayHandler();
+            return new ServerRelayHandler(cyber, clientChannel);
         }
     }
 
-    protected ChannelHandler newInterceptedServerRelayHandler() {
-        Channel serverChannel = relayChannel;
-        ChannelPipeline clientPipeline = clientChannel.pipeline();
-        ChannelPipeline serverPipeline = serverChannel.pipeline();
+    /**
+     * Whether the responses are decoded and paired with their requests, which is needed to intercept them.
+     */
+    protected boolean isExchangeTracked() {
+        return interceptorManager != null;
+    }
 
-        serverPipeline.addLast(HandlerNames.DECODER, new HttpResponseDecoder());
+    /**
+     * Adds the HTTP codec of the relay channel, the responses are only decoded when they may be intercepted.
+     */
+    protected void addServerCodec(ChannelPipeline serverPipeline) {
+        serverPipeline.addLast(HandlerNames.REQUEST_ENCODER, new HttpRequestEncoder());
+        if (interceptorManager != null) {
+            serverPipeline.addLast(HandlerNames.DECODER, new HttpResponseDecoder());
+        }
+    }
+
+    protected ChannelHandler newExchangeRelayHandler() {
+        addResponseEncoder(clientChannel.pipeline());
+        return new ExchangeRelayHandler();
+    }
+
+    /**
+     * Adds the encoder of the responses to the client once they are no longer relayed as bytes.
+     */
+    protected void addResponseEncoder(ChannelPipeline clientPipeline) {
         if (clientPipeline.get(HandlerNames.RESPONSE_ENCODER) == null) {
             clientPipeline.addLast(HandlerNames.RESPONSE_ENCODER, new HttpResponseEncoder());
         }
+    }
 
-        return new ServerRelayHandler(cyber, clientChannel) {
-            @Override
-            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-                if (responseInterceptors == null) {
-                    super.channelRead(ctx, msg);
-                } else if (msg instanceof HttpResponse) {
-                    HttpResponse httpResponse = (HttpResponse) msg;
-                    for (HttpResponseInterceptor interceptor = responseInterceptors.peek(); interceptor != null; interceptor = responseInterceptors.peek()) {
-                        if (interceptor.preHandle(httpRequest, httpResponse, HttpBaseClientRelayHandler.this)) {
-                            responseInterceptors.poll();
-                        } else {
-                            return;
-                        }
-                    }
-                    httpRequest = null;
-                    responseInterceptors = null;
-                    super.channelRead(ctx, msg);
+    /**
+     * Runs the response interceptors of the exchange, {@code false} if one of them holds the response back.
+     */
+    protected boolean interceptResponse(Exchange exchange, HttpResponse httpResponse) throws Exception {
+        Queue<HttpResponseInterceptor> interceptors = exchange.responseInterceptors;
+        // A request may be suspended while the responses before it are relayed.
+        HttpRequest httpRequest = this.httpRequest;
+        this.httpRequest = exchange.httpRequest;
+        this.interceptedExchange = exchange;
+        try {
+            for (HttpResponseInterceptor interceptor = interceptors.peek(); interceptor != null; interceptor = interceptors.peek()) {
+                if (interceptor.preHandle(exchange.httpRequest, httpResponse, this)) {
+                    interceptors.poll();
                 } else {
-                    super.channelRead(ctx, msg);
+                    return false;
                 }
             }
-        };
+            return true;
+        } finally {
+            this.httpRequest = httpRequest;
+            this.interceptedExchange = null;
+        }
+    }
+
+    /**
+     * Called with every response that is relayed to the client, interim ones included.
+     */
+    protected void responseReceived(HttpResponse httpResponse) throws Exception {
+    }
+
+    /**
+     * Called once the response of the exchange has been completely relayed to the client.
+     */
+    protected void exchangeCompleted(Exchange exchange) throws Exception {
+        if (deferredMessages != null && !suspended && exchanges.isEmpty()) {
+            // After the read loop of the relay channel, which must be done before it is handed back.
+            ctx.executor().execute(this::resumeDeferredMessages);
+        } else if (!clientChannel.config().isAutoRead()) {
+            updateClientAutoRead();
+        }
+    }
+
+    /**
+     * Stops reading from the client while a request is deferred or too many requests wait for their responses.
+     */
+    @Override
+    protected boolean isReadingPaused() {
+        return deferredMessages != null || exchanges.size() >= cyber.getHttpPipeliningDepth();
+    }
+
+    protected void updateClientAutoRead() {
+        clientChannel.config().setAutoRead(!isReadingPaused()
+            && (relayChannel == null || !relayChannel.isActive() || relayChannel.isWritable()));
     }
 
     public SslContext getClientSslContext() throws SSLException {
@@ -178,10 +514,7 @@ public abstract class HttpBaseClientRelayHandler extends ClientRelayHandler<Http
         if ((clientSslContext = cyber.getClientSslContext()) == null) {
             synchronized (cyber) {
                 if ((clientSslContext = cyber.getClientSslContext()) == null) {
-                    //https://github.com/GlowstoneMC/Glowstone/blob/5b89f945b4/src/main/java/net/glowstone/net/http/HttpClient.java
-                    clientSslContext = SslContextBuilder.forClient()
-                        .trustManager(InsecureTrustManagerFactory.INSTANCE)
-                        .build();
+                    clientSslContext = newClientSslContext(cyber, null);
                     cyber.setClientSslContext(clientSslContext);
                 }
             }
@@ -189,6 +522,51 @@ public abstract class HttpBaseClientRelayHandler extends ClientRelayHandler<Http
         return clientSslContext;
     }
 
+    /**
+     * Builds an upstream client context with the SSL settings of the server.
+     */
+    static SslContext newClientSslContext(CyberServer cyber, ApplicationProtocolConfig apn) throws SSLException {
+        //https://github.com/GlowstoneMC/Glowstone/blob/5b89f945b4/src/main/java/net/glowstone/net/http/HttpClient.java
+        // The shared context lives as long as the server, so it must not be reference counted.
+        SslProvider provider = cyber.getSslProvider() == SslProvider.OPENSSL_REFCNT
+            ? SslProvider.OPENSSL : cyber.getSslProvider();
+        SslContext clientSslContext = SslContextBuilder.forClient()
+            .sslProvider(provider)
+            .protocols(clientProtocols(provider))
+            .sessionCacheSize(cyber.getClientSessionCacheSize())
+            .sessionTimeout(cyber.getClientSessionTimeout())
+            .trustManager(InsecureTrustManagerFactory.INSTANCE)
+            .applicationProtocolConfig(apn)
+            .build();
+        // Netty disables the OpenSSL client session cache unless told otherwise.
+        if (cyber.getClientSessionCacheSize() > 0
+            && clientSslContext.sessionContext() instanceof OpenSslSessionContext) {
+            ((OpenSslSessionContext) clientSslContext.sessionContext()).setSessionCacheEnabled(true);
+        }
+        return clientSslContext;
+    }
+
+    /**
+     * Removes the headers that the HTTP/2 stream codec adds to the messages it decodes.
+     */
+    static void removeExtensionHeaders(HttpHeaders headers) {
+        for (HttpConversionUtil.ExtensionHeaderNames name : HttpConversionUtil.ExtensionHeaderNames.values()) {
+            headers.remove(name.text());
+        }
+    }
+
+    /**
+     * TLS 1.3 resumes sessions with tickets, TLS 1.2 is kept for the origins without it.
+     */
+    private static String[] clientProtocols(SslProvider provider) {
+        if (provider == null) {
+            provider = OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+        }
+        return SslProvider.isTlsv13Supported(provider)
+            ? new String[]{SslProtocols.TLS_v1_3, SslProtocols.TLS_v1_2}
+            : new String[]{SslProtocols.TLS_v1_2};
+    }
+
     public InetSocketAddress resolveServerAddress(HttpRequest httpRequest) throws ResolveServerAddressException {
         try {
             String uri = httpRequest.uri();
@@ -255,6 +633,136 @@ public abstract class HttpBaseClientRelayHandler extends ClientRelayHandler<Http
         return ctx;
     }
 
+    /**
+     * A request waiting for its response, with the interceptors of the response. Or the response of a
+     * request answered by an interceptor, waiting for the responses before it.
+     */
+    protected static final class Exchange {
+
+        final HttpRequest httpRequest;
+        final Queue<HttpResponseInterceptor> responseInterceptors;
+        final FullHttpResponse httpResponse;
+        final List<HttpExchangeListener> listeners;
+
+        Exchange(HttpRequest httpRequest, Queue<HttpResponseInterceptor> responseInterceptors,
+                 List<HttpExchangeListener> listeners) {
+            this.httpRequest = httpRequest;
+            this.responseInterceptors = responseInterceptors;
+            this.httpResponse = null;
+            this.listeners = listeners;
+        }
+
+        Exchange(FullHttpResponse httpResponse) {
+            this.httpRequest = null;
+            this.responseInterceptors = null;
+            this.httpResponse = httpResponse;
+            this.listeners = null;
+        }
+
+        public HttpRequest getHttpRequest() {
+            return httpRequest;
+        }
+    }
+
+    /**
+     * Relays the responses of the server in the order of the exchanges, applying their interceptors.
+     */
+    protected class ExchangeRelayHandler extends ServerRelayHandler {
+
+        boolean informational;
+
+        public ExchangeRelayHandler() {
+            super(HttpBaseClientRelayHandler.this.cyber, clientChannel);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpResponse) {
+                HttpResponse httpResponse = (HttpResponse) msg;
+                if (ctx.channel() instanceof Http2StreamChannel) {
+                    adaptStreamResponse(httpResponse);
+                }
+                int code = httpResponse.status().code();
+                // Interim responses such as 100 Continue are followed by the final response.
+                informational = code >= 100 && code < 200 && code != HttpResponseStatus.SWITCHING_PROTOCOLS.code();
+                Exchange exchange = exchanges.peek();
+                if (!informational && exchange != null && exchange.responseInterceptors != null
+                    && !interceptResponse(exchange, httpResponse)) {
+                    return;
+                }
+                responseReceived(httpResponse);
+            }
+            boolean completed = msg instanceof LastHttpContent && !informational;
+            super.channelRead(ctx, msg);
+            if (completed) {
+                Exchange exchange = exchanges.poll();
+                if (exchange != null) {
+                    exchangeEnded(exchange.listeners);
+                    writeAnsweredResponses();
+                    exchangeCompleted(exchange);
+                }
+            }
+        }
+
+        /**
+         * The stream codec decodes a response without content as a full response without a length, which
+         * an HTTP/1.1 client would read until the connection closes.
+         */
+        private void adaptStreamResponse(HttpResponse httpResponse) {
+            removeExtensionHeaders(httpResponse.headers());
+            int code = httpResponse.status().code();
+            if (httpResponse instanceof FullHttpResponse && code >= 200
+                && code != HttpResponseStatus.NO_CONTENT.code() && code != HttpResponseStatus.NOT_MODIFIED.code()
+                && !HttpUtil.isContentLengthSet(httpResponse) && !HttpUtil.isTransferEncodingChunked(httpResponse)) {
+                HttpUtil.setContentLength(httpResponse, ((FullHttpResponse) httpResponse).content().readableBytes());
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            updateClientAutoRead();
+        }
+
+        /**
+         * A stream ends by itself once its response is complete, which says nothing about the client. Nor
+         * does the end of a stream that was already replaced by the one of the next request. It may end
+         * before its last read completes, so the response is flushed here.
+         */
+        @Override
+        protected void releaseRelayChannel() {
+            Channel serverChannel = ctx.channel();
+            if (!(serverChannel instanceof Http2StreamChannel)
+                || serverChannel == HttpBaseClientRelayHandler.this.relayChannel && !exchanges.isEmpty()) {
+                super.releaseRelayChannel();
+            } else {
+                flushRelay();
+            }
+        }
+    }
+
+    @Override
+    protected void release() {
+        if (deferredMessages != null) {
+            for (Object msg = deferredMessages.poll(); msg != null; msg = deferredMessages.poll()) {
+                ReferenceCountUtil.release(msg);
+            }
+            deferredMessages = null;
+        }
+        if (suspended) {
+            ReferenceCountUtil.release(httpRequest);
+            httpRequest = null;
+        }
+        List<HttpExchangeListener> listeners = exchangeListeners;
+        exchangeListeners = null;
+        exchangeEnded(listeners);
+        // Left in place, the relay channel is not reusable with exchanges pending.
+        for (Exchange exchange : exchanges) {
+            ReferenceCountUtil.release(exchange.httpResponse);
+            exchangeEnded(exchange.listeners);
+        }
+        super.release();
+    }
+
     @Override
     public void cancelRelay() {
         if (relayChannel == null) {
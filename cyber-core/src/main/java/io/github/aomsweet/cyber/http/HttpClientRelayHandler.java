@@ -17,46 +17,71 @@ package io.github.aomsweet.cyber.http;
 
 import io.github.aomsweet.cyber.CyberServer;
 import io.github.aomsweet.cyber.HandlerNames;
+import io.github.aomsweet.cyber.PooledChannelManager;
 import io.github.aomsweet.cyber.ResolveServerAddressException;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.HttpContent;
-import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpRequest;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.*;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
 import java.net.InetSocketAddress;
 
 /**
+ * Relays plain HTTP requests. The responses are only decoded when their ends are needed, to intercept them
+ * or to hand a kept-alive connection back to a {@link PooledChannelManager}. Otherwise they are relayed as
+ * bytes, and a request to another origin closes the connection to the previous one right away.
+ *
  * @author aomsweet
  */
 public class HttpClientRelayHandler extends HttpBaseClientRelayHandler {
 
     private final static InternalLogger logger = InternalLoggerFactory.getInstance(HttpClientRelayHandler.class);
 
+    boolean requestComplete;
+    boolean keepAlive;
+
     public HttpClientRelayHandler(CyberServer cyber) {
         super(cyber, logger);
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        super.channelRead0(msg);
+        if (!deferMessage(msg)) {
+            super.channelRead0(msg);
+        }
+    }
+
+    /**
+     * A request to another origin waits until the responses of the current origin are relayed.
+     */
+    @Override
+    protected boolean isRequestDeferred(HttpRequest httpRequest) throws Exception {
+        return !resolveServerAddress(httpRequest).equals(serverAddress);
     }
 
     @Override
     public void handleHttpRequest(HttpRequest request) throws Exception {
         InetSocketAddress targetAddress = resolveServerAddress(request);
         if (targetAddress.equals(this.serverAddress)) {
-            relay(request);
+            requestStarted(request);
+            if (state == State.READY) {
+                relay(request);
+            } else {
+                addPendingWrites(request);
+            }
         } else {
-            this.serverAddress = targetAddress;
             if (state == State.READY) {
+                // Handed back to the channel manager, which keeps it for the next request to that origin
+                // if the last exchange on it is complete.
                 relayChannel.pipeline().remove(HandlerNames.RELAY);
-                relayChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                releaseRelayChannel();
+                relayChannel = null;
                 state = State.UNCONNECTED;
             }
+            this.serverAddress = targetAddress;
+            keepAlive = true;
+            requestStarted(request);
 
             addPendingWrites(request);
             doConnectServer(request);
@@ -65,6 +90,9 @@ public class HttpClientRelayHandler extends HttpBaseClientRelayHandler {
 
     @Override
     public void handleHttpContent(HttpContent httpContent) {
+        if (httpContent instanceof LastHttpContent) {
+            requestComplete = true;
+        }
         if (state == State.READY) {
             relay(httpContent);
         } else {
@@ -72,6 +100,42 @@ public class HttpClientRelayHandler extends HttpBaseClientRelayHandler {
         }
     }
 
+    private void requestStarted(HttpRequest request) {
+        requestComplete = request instanceof LastHttpContent;
+        keepAlive &= HttpUtil.isKeepAlive(request);
+    }
+
+    /**
+     * The client codec pairs the decoded responses with their requests, so that the responses to HEAD
+     * requests are known to have no content.
+     */
+    @Override
+    protected void addServerCodec(ChannelPipeline serverPipeline) {
+        if (isExchangeTracked()) {
+            serverPipeline.addLast(HandlerNames.DECODER, new HttpClientCodec());
+        } else {
+            super.addServerCodec(serverPipeline);
+        }
+    }
+
+    @Override
+    protected boolean isExchangeTracked() {
+        return super.isExchangeTracked() || cyber.getChannelManager() instanceof PooledChannelManager;
+    }
+
+    @Override
+    protected void responseReceived(HttpResponse httpResponse) {
+        if (httpResponse.status().code() == HttpResponseStatus.SWITCHING_PROTOCOLS.code()
+            || !HttpUtil.isKeepAlive(httpResponse)) {
+            keepAlive = false;
+        }
+    }
+
+    @Override
+    protected boolean isRelayChannelReusable() {
+        return isExchangeTracked() && keepAlive && requestComplete && exchanges.isEmpty();
+    }
+
     @Override
     public InetSocketAddress resolveServerAddress(HttpRequest httpRequest) throws ResolveServerAddressException {
         try {
@@ -95,7 +159,7 @@ public class HttpClientRelayHandler extends HttpBaseClientRelayHandler {
         }
     }
 
-    private InetSocketAddress resolveServerAddress(String host, int defaultPort) {
+    static InetSocketAddress resolveServerAddress(String host, int defaultPort) {
         int index = host.indexOf(':');
         if (index == -1) {
             return InetSocketAddress.createUnresolved(host, defaultPort);
@@ -0,0 +1,59 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http;
+
+import io.netty.handler.codec.http.FullHttpResponse;
+
+/**
+ * A {@link HttpChannelContext} that follows every request to the end of its exchange, so that the
+ * interceptors can answer a request themselves, hold it back, or keep state until its response is relayed.
+ * The interceptors check for it, the other contexts are left alone.
+ *
+ * @author aomsweet
+ */
+public interface HttpExchangeContext extends HttpChannelContext {
+
+    /**
+     * Answers the current request instead of relaying it, from a request interceptor that then returns
+     * {@code false} or while the request is suspended. The content of the request is discarded and the
+     * response interceptors are not run. The response goes out once the responses before it are relayed.
+     */
+    void respond(FullHttpResponse httpResponse);
+
+    /**
+     * Holds the current request back, from a request interceptor that then returns {@code false}. The
+     * messages read after it are held back too, until {@link #resumeRequest()}.
+     */
+    void suspendRequest();
+
+    /**
+     * Goes on with the suspended request from the interceptor after the one that suspended it, or with the
+     * messages after it if it was answered. Must be called from the event loop of the client channel.
+     */
+    void resumeRequest();
+
+    /**
+     * Binds the listener to the exchange of the current request, from a request interceptor. It is told
+     * once the exchange ends, however it ends.
+     */
+    void addExchangeListener(HttpExchangeListener listener);
+
+    /**
+     * The listener of the given type bound to the exchange of the request or the response being
+     * intercepted, {@code null} if there is none.
+     */
+    <T extends HttpExchangeListener> T getExchangeListener(Class<T> type);
+}
@@ -66,4 +66,9 @@ public class HttpTunnelClientRelayHandler extends HttpBaseClientRelayHandler {
     public ChannelHandler newServerRelayHandler() throws Exception {
         return new ServerRelayHandler(cyber, clientChannel);
     }
+
+    @Override
+    protected boolean isSpliceable() {
+        return true;
+    }
 }
@@ -19,16 +19,25 @@ import io.github.aomsweet.cyber.CyberServer;
 import io.github.aomsweet.cyber.HandlerNames;
 import io.github.aomsweet.cyber.http.mitm.MitmManager;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.HttpContent;
-import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpRequest;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslHandshakeCompletionEvent;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
 
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * @author aomsweet
  */
@@ -37,6 +46,11 @@ public class HttpsClientRelayHandler extends HttpBaseClientRelayHandler {
     private final static InternalLogger logger = InternalLoggerFactory.getInstance(HttpsClientRelayHandler.class);
 
     boolean sslHandshakeCompleted;
+    boolean http2;
+    boolean requestRelayed;
+    boolean requestComplete;
+    boolean keepAlive = true;
+    boolean serverKeepAlive = true;
 
     public HttpsClientRelayHandler(CyberServer cyber) {
         super(cyber, logger);
@@ -45,9 +59,9 @@ public class HttpsClientRelayHandler extends HttpBaseClientRelayHandler {
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        if (state == State.READY && cyber.getHttpInterceptorManager() == null) {
+        if (state == State.READY && !isExchangeTracked()) {
             relay(msg);
-        } else {
+        } else if (!deferMessage(msg)) {
             channelRead0(msg);
         }
     }
@@ -61,31 +75,133 @@ public class HttpsClientRelayHandler extends HttpBaseClientRelayHandler {
 
             String host = serverAddress.getHostName();
             MitmManager mitmManager = cyber.getMitmManager();
-            SslContext sslContext = mitmManager.serverSslContext(host);
-            ctx.pipeline().addFirst(HandlerNames.SSL, sslContext.newHandler(ctx.alloc()));
+            CompletableFuture<SslContext> future = mitmManager.asyncServerSslContext(host);
+            if (future.isDone()) {
+                future.whenComplete(this::addSslHandler);
+            } else {
+                // The client hello must not be read before the SSL handler is in place.
+                clientChannel.config().setAutoRead(false);
+                future.whenCompleteAsync(this::addSslHandler, ctx.executor());
+            }
 
+            if (state != State.CLOSED) {
+                doConnectServer(request);
+            }
+        } else if (requestRelayed && relayChannel instanceof Http2StreamChannel) {
+            // The stream of the previous request is done, this one gets a new stream.
+            keepAlive = HttpUtil.isKeepAlive(request);
+            requestComplete = request instanceof LastHttpContent;
+            releaseRelayChannel();
+            relayChannel = null;
+            state = State.UNCONNECTED;
+            addPendingWrites(request);
             doConnectServer(request);
-        } else if (state == State.READY) {
-            relay(request);
         } else {
-            addPendingWrites(request);
+            requestRelayed = true;
+            keepAlive = HttpUtil.isKeepAlive(request);
+            requestComplete = request instanceof LastHttpContent;
+            if (state == State.READY) {
+                relay(request);
+            } else {
+                addPendingWrites(request);
+            }
+        }
+    }
+
+    private void addSslHandler(SslContext sslContext, Throwable cause) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (cause == null) {
+            ctx.pipeline().addFirst(HandlerNames.SSL, sslContext.newHandler(ctx.alloc()));
+            if (!clientChannel.config().isAutoRead()) {
+                clientChannel.config().setAutoRead(true);
+            }
+        } else {
+            logger.error("Unable to obtain the server SSL context of {}.", serverAddress.getHostName(), cause);
+            close();
         }
     }
 
     @Override
     public void handleHttpContent(HttpContent httpContent) {
-        if (sslHandshakeCompleted) {
-            addPendingWrites(httpContent);
-        } else if (state == State.READY) {
+        if (httpContent instanceof LastHttpContent) {
+            requestComplete = true;
+        }
+        if (state == State.READY) {
             relay(httpContent);
+        } else if (sslHandshakeCompleted) {
+            addPendingWrites(httpContent);
         } else {
             ReferenceCountUtil.release(httpContent);
         }
     }
 
+    /**
+     * The responses are decoded to find the end of every exchange when the requests may go on streams.
+     */
+    @Override
+    protected boolean isExchangeTracked() {
+        return super.isExchangeTracked() || cyber.getHttp2ConnectionPool() != null;
+    }
+
+    @Override
+    protected boolean isStreamRelayAllowed() {
+        return true;
+    }
+
+    /**
+     * Every request needs a stream of its own, so the requests pipelined on a stream wait for the response
+     * of the previous one. So do the ones pipelined before the relay channel is known.
+     */
+    @Override
+    protected boolean isRequestDeferred(HttpRequest httpRequest) {
+        return cyber.getHttp2ConnectionPool() != null
+            && (relayChannel == null || relayChannel instanceof Http2StreamChannel);
+    }
+
+    /**
+     * The client codec pairs the responses with their requests, so that the responses to HEAD requests
+     * are known to have no content.
+     */
+    @Override
+    protected void addServerCodec(ChannelPipeline serverPipeline) {
+        if (isExchangeTracked()) {
+            serverPipeline.addLast(HandlerNames.DECODER, new HttpClientCodec());
+        } else {
+            super.addServerCodec(serverPipeline);
+        }
+    }
+
+    /**
+     * A stream does not close the client connection like a server would, so the close asked by the client
+     * is done here once the response is relayed.
+     */
+    @Override
+    protected void responseReceived(HttpResponse httpResponse) {
+        if (httpResponse.status().code() == HttpResponseStatus.SWITCHING_PROTOCOLS.code()
+            || !HttpUtil.isKeepAlive(httpResponse)) {
+            serverKeepAlive = false;
+        }
+        if (!keepAlive && relayChannel instanceof Http2StreamChannel && httpResponse.status().code() >= 200) {
+            HttpUtil.setKeepAlive(httpResponse, false);
+        }
+    }
+
+    @Override
+    protected void exchangeCompleted(Exchange exchange) throws Exception {
+        if (!keepAlive && relayChannel instanceof Http2StreamChannel && exchanges.isEmpty()) {
+            clientChannel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(future -> close());
+        } else {
+            super.exchangeCompleted(exchange);
+        }
+    }
+
     @Override
     public void dockingRelay() throws Exception {
-        if (sslHandshakeCompleted) {
+        if (http2) {
+            releaseHttp2RelayChannel();
+        } else if (sslHandshakeCompleted) {
             super.dockingRelay();
         }
     }
@@ -95,10 +211,67 @@ public class HttpsClientRelayHandler extends HttpBaseClientRelayHandler {
         if (evt instanceof SslHandshakeCompletionEvent) {
             if (((SslHandshakeCompletionEvent) evt).isSuccess()) {
                 sslHandshakeCompleted = true;
-                if (state == State.CONNECTED) {
+                SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+                if (ApplicationProtocolNames.HTTP_2.equals(sslHandler.applicationProtocol())) {
+                    switchToHttp2();
+                } else if (state == State.CONNECTED) {
                     super.dockingRelay();
                 }
             }
         }
     }
+
+    /**
+     * Hands the connection over to the HTTP/2 codec, each stream relays its exchange to the server of
+     * the tunnel on its own channel.
+     */
+    private void switchToHttp2() {
+        if (logger.isDebugEnabled()) {
+            logger.debug("{} Negotiated HTTP/2 with the client of {}", clientChannel, serverAddress);
+        }
+        http2 = true;
+        if (state == State.CONNECTED) {
+            releaseHttp2RelayChannel();
+        }
+        InetSocketAddress serverAddress = this.serverAddress;
+        ChannelPipeline pipeline = ctx.pipeline();
+        pipeline.remove(HandlerNames.DECODER);
+        pipeline.remove(this);
+        Http2StreamClientRelayHandler.addConnectionHandlers(pipeline, cyber, new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(HandlerNames.DECODER, new Http2StreamFrameToHttpObjectCodec(true));
+                ch.pipeline().addLast(HandlerNames.RELAY,
+                    new Http2StreamClientRelayHandler(cyber, serverAddress, interceptorManager).setCredentials(credentials));
+            }
+        });
+    }
+
+    /**
+     * The channel connected while the TLS handshake was running has not carried anything yet, it goes
+     * back to the channel manager for the first stream.
+     */
+    private void releaseHttp2RelayChannel() {
+        releaseRelayChannel();
+        relayChannel = null;
+        state = State.UNCONNECTED;
+    }
+
+    /**
+     * The channel is reusable with its TLS session if the last exchange on it is known to be complete,
+     * which takes decoded responses.
+     */
+    @Override
+    protected boolean isRelayChannelReusable() {
+        return http2 || isExchangeTracked() && !(relayChannel instanceof Http2StreamChannel)
+            && keepAlive && serverKeepAlive && requestComplete && exchanges.isEmpty();
+    }
+
+    @Override
+    protected void release() {
+        // The client connection belongs to the streams once HTTP/2 is negotiated.
+        if (!http2) {
+            super.release();
+        }
+    }
 }
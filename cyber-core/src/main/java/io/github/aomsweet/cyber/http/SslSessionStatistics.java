@@ -0,0 +1,101 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http;
+
+import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.internal.tcnative.SSL;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the upstream TLS handshakes and how many of them resumed a cached session.
+ * <p>
+ * OpenSSL engines are asked directly. For the JDK engines a session is considered resumed when it was
+ * created before the handshake started.
+ *
+ * @author aomsweet
+ */
+public class SslSessionStatistics {
+
+    final LongAdder handshakeCount = new LongAdder();
+    final LongAdder resumedCount = new LongAdder();
+    final LongAdder failureCount = new LongAdder();
+
+    /**
+     * Records the outcome of the handshake of the given handler, which must not have started yet.
+     */
+    public void track(SslHandler sslHandler) {
+        long startTime = System.currentTimeMillis();
+        sslHandler.handshakeFuture().addListener(future -> {
+            if (future.isSuccess()) {
+                handshakeCount.increment();
+                if (isResumed(sslHandler.engine(), startTime)) {
+                    resumedCount.increment();
+                }
+            } else {
+                failureCount.increment();
+            }
+        });
+    }
+
+    protected boolean isResumed(SSLEngine engine, long startTime) {
+        if (engine instanceof ReferenceCountedOpenSslEngine) {
+            // TLS 1.3 resumption issues a new session, so its creation time tells nothing.
+            long ssl = ((ReferenceCountedOpenSslEngine) engine).sslPointer();
+            return ssl != 0 && SSL.isSessionReused(ssl);
+        }
+        SSLSession session = engine.getSession();
+        return session != null && session.getCreationTime() < startTime;
+    }
+
+    public long getHandshakeCount() {
+        return handshakeCount.sum();
+    }
+
+    public long getResumedCount() {
+        return resumedCount.sum();
+    }
+
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    /**
+     * The ratio of the successful handshakes that resumed a session.
+     */
+    public double getResumptionRate() {
+        long handshakes = handshakeCount.sum();
+        return handshakes == 0 ? 0 : (double) resumedCount.sum() / handshakes;
+    }
+
+    public void reset() {
+        handshakeCount.reset();
+        resumedCount.reset();
+        failureCount.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "SslSessionStatistics{" +
+            "handshakeCount=" + handshakeCount.sum() +
+            ", resumedCount=" + resumedCount.sum() +
+            ", failureCount=" + failureCount.sum() +
+            '}';
+    }
+}
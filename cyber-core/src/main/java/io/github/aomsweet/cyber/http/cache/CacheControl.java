@@ -0,0 +1,154 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http.cache;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The directives of the Cache-Control fields that a shared cache acts on, RFC 9111 section 5.2. The qualified
+ * forms of {@code no-cache} and {@code private} are taken as the unqualified ones.
+ *
+ * @author aomsweet
+ */
+final class CacheControl {
+
+    static final long UNSET = -1;
+
+    boolean noStore;
+    boolean noCache;
+    boolean isPrivate;
+    boolean isPublic;
+    boolean mustRevalidate;
+    boolean onlyIfCached;
+    long maxAge = UNSET;
+    long sMaxAge = UNSET;
+    long maxStale = UNSET;
+    long minFresh = UNSET;
+
+    static CacheControl ofRequest(HttpHeaders headers) {
+        CacheControl cacheControl = parse(headers);
+        if (!headers.contains(HttpHeaderNames.CACHE_CONTROL)
+            && headers.containsValue(HttpHeaderNames.PRAGMA, HttpHeaderValues.NO_CACHE, true)) {
+            // The Pragma of the HTTP/1.0 clients.
+            cacheControl.noCache = true;
+        }
+        return cacheControl;
+    }
+
+    static CacheControl ofResponse(HttpHeaders headers) {
+        CacheControl cacheControl = parse(headers);
+        // s-maxage includes the semantics of proxy-revalidate.
+        cacheControl.mustRevalidate |= cacheControl.sMaxAge != UNSET;
+        return cacheControl;
+    }
+
+    private static CacheControl parse(HttpHeaders headers) {
+        CacheControl cacheControl = new CacheControl();
+        List<String> values = headers.getAll(HttpHeaderNames.CACHE_CONTROL);
+        for (String value : values) {
+            cacheControl.parse(value);
+        }
+        return cacheControl;
+    }
+
+    private void parse(String value) {
+        int length = value.length();
+        for (int start = 0, end; start < length; start = end + 1) {
+            boolean quoted = false;
+            for (end = start; end < length; end++) {
+                char c = value.charAt(end);
+                if (c == '"') {
+                    quoted = !quoted;
+                } else if (c == ',' && !quoted) {
+                    break;
+                }
+            }
+            directive(value.substring(start, end).trim());
+        }
+    }
+
+    private void directive(String directive) {
+        int index = directive.indexOf('=');
+        String name = (index == -1 ? directive : directive.substring(0, index).trim()).toLowerCase(Locale.ROOT);
+        String argument = index == -1 ? null : unquote(directive.substring(index + 1).trim());
+        switch (name) {
+            case "no-store":
+                noStore = true;
+                break;
+            case "no-cache":
+                noCache = true;
+                break;
+            case "private":
+                isPrivate = true;
+                break;
+            case "public":
+                isPublic = true;
+                break;
+            case "must-revalidate":
+            case "proxy-revalidate":
+                mustRevalidate = true;
+                break;
+            case "only-if-cached":
+                onlyIfCached = true;
+                break;
+            case "max-age":
+                // An invalid age makes the response stale.
+                maxAge = deltaSeconds(argument, 0);
+                break;
+            case "s-maxage":
+                sMaxAge = deltaSeconds(argument, 0);
+                break;
+            case "max-stale":
+                maxStale = argument == null ? Long.MAX_VALUE : deltaSeconds(argument, UNSET);
+                break;
+            case "min-fresh":
+                minFresh = deltaSeconds(argument, UNSET);
+                break;
+            default:
+        }
+    }
+
+    private static String unquote(String argument) {
+        int length = argument.length();
+        if (length >= 2 && argument.charAt(0) == '"' && argument.charAt(length - 1) == '"') {
+            return argument.substring(1, length - 1);
+        }
+        return argument;
+    }
+
+    /**
+     * The seconds of the argument, at most 2^31 as recommended by RFC 9111 section 1.2.2.
+     */
+    static long deltaSeconds(String argument, long invalid) {
+        if (argument == null || argument.isEmpty()) {
+            return invalid;
+        }
+        long seconds = 0;
+        for (int i = 0; i < argument.length(); i++) {
+            char c = argument.charAt(i);
+            if (c < '0' || c > '9') {
+                return invalid;
+            }
+            seconds = Math.min(seconds * 10 + (c - '0'), 1L << 31);
+        }
+        return seconds;
+    }
+}
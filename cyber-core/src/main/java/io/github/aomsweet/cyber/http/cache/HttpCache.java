@@ -0,0 +1,443 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http.cache;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/**
+ * The responses stored by {@link HttpCacheInterceptor}, shared by all the connections. The contents are kept
+ * in direct buffers, the index is a map of the resources in the order of their last use, from which the
+ * least recently used ones are evicted once the cache is bigger than its maximum size.
+ * <p>
+ * While a resource is being fetched, the other requests for it wait for its response rather than going to
+ * the server too. If the response turns out not to be storable, the requests for the resource go straight to
+ * the server for a while.
+ *
+ * @author aomsweet
+ */
+public class HttpCache {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAXIMUM_ENTRY_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_COLLAPSE_TIMEOUT_MILLIS = 5000;
+    public static final long DEFAULT_UNCACHEABLE_MILLIS = 10000;
+
+    static final int RESOURCE_OVERHEAD = 96;
+
+    final long maximumSize;
+    int maximumEntrySize = DEFAULT_MAXIMUM_ENTRY_SIZE;
+    long collapseTimeoutMillis = DEFAULT_COLLAPSE_TIMEOUT_MILLIS;
+    long uncacheableMillis = DEFAULT_UNCACHEABLE_MILLIS;
+    ByteBufAllocator allocator = UnpooledByteBufAllocator.DEFAULT;
+
+    final LinkedHashMap<String, Resource> resources = new LinkedHashMap<>(64, 0.75f, true);
+    long size;
+    int entryCount;
+
+    public HttpCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * @param maximumSize the bytes of the contents, the headers and the index together.
+     */
+    public HttpCache(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * The stored variant of the resource that the request selects, retained, or {@code null}.
+     */
+    HttpCacheEntry lookup(String key, HttpHeaders requestHeaders) {
+        synchronized (this) {
+            Resource resource = resources.get(key);
+            if (resource != null) {
+                for (HttpCacheEntry entry : resource.entries) {
+                    if (entry.matches(requestHeaders)) {
+                        return entry.retain();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the entry in place of the same variant, and hands it to the requests waiting for the resource.
+     */
+    void store(HttpCacheEntry entry) {
+        List<HttpCacheEntry> evicted = new ArrayList<>(1);
+        List<Runnable> waiters = null;
+        synchronized (this) {
+            Resource resource = resource(entry.key);
+            for (Iterator<HttpCacheEntry> iterator = resource.entries.iterator(); iterator.hasNext(); ) {
+                HttpCacheEntry variant = iterator.next();
+                if (variant.isSameVariant(entry)) {
+                    iterator.remove();
+                    resize(resource, -variant.size, -1);
+                    evicted.add(variant);
+                }
+            }
+            resource.entries.add(0, entry);
+            resize(resource, entry.size, 1);
+            resource.uncacheableUntil = 0;
+            if (resource.fill != null) {
+                waiters = resource.fill.complete();
+                resource.fill = null;
+            }
+            evict(evicted);
+        }
+        release(evicted);
+        run(waiters);
+    }
+
+    /**
+     * Removes all the variants of the resource.
+     */
+    void invalidate(String key) {
+        List<HttpCacheEntry> evicted;
+        synchronized (this) {
+            Resource resource = resources.get(key);
+            if (resource == null || resource.entries.isEmpty()) {
+                return;
+            }
+            evicted = new ArrayList<>(resource.entries);
+            for (HttpCacheEntry entry : evicted) {
+                resize(resource, -entry.size, -1);
+            }
+            resource.entries.clear();
+        }
+        release(evicted);
+    }
+
+    /**
+     * Makes the request the one that fetches the resource if no other one does. If another one does, the
+     * waiter is run once its response is stored or turns out not to be storable.
+     *
+     * @return the fetch the waiter waits for, {@code null} if the request goes to the server.
+     */
+    Fill await(String key, HttpRequest request, Runnable waiter, long now) {
+        List<HttpCacheEntry> evicted = new ArrayList<>(0);
+        try {
+            synchronized (this) {
+                Resource resource = resource(key);
+                if (resource.uncacheableUntil - now > 0) {
+                    return null;
+                }
+                Fill fill = resource.fill;
+                // A fetch whose response never came is taken over.
+                if (fill == null || now - fill.startTime > collapseTimeoutMillis) {
+                    resource.fill = new Fill(request, now);
+                    evict(evicted);
+                    return null;
+                }
+                fill.waiters.add(waiter);
+                return fill;
+            }
+        } finally {
+            release(evicted);
+        }
+    }
+
+    /**
+     * Stops waiting for the fetch, {@code false} if the waiter is already run or about to be.
+     */
+    synchronized boolean cancel(Fill fill, Runnable waiter) {
+        return fill.waiters != null && fill.waiters.remove(waiter);
+    }
+
+    /**
+     * Called if the response to the request is not stored. If the request was fetching the resource, the
+     * next requests for it go straight to the server for a while.
+     */
+    void fillFailed(String key, HttpRequest request, long now) {
+        endFill(key, request, now + uncacheableMillis);
+    }
+
+    /**
+     * Called once the exchange of the request ended. If the request was still fetching the resource, because
+     * no response came, the requests waiting for it go on and the next one fetches it.
+     */
+    void fillAbandoned(String key, HttpRequest request) {
+        endFill(key, request, 0);
+    }
+
+    private void endFill(String key, HttpRequest request, long uncacheableUntil) {
+        List<HttpCacheEntry> evicted = new ArrayList<>(0);
+        List<Runnable> waiters;
+        synchronized (this) {
+            Resource resource = resources.get(key);
+            if (resource == null || resource.fill == null || resource.fill.request != request) {
+                return;
+            }
+            waiters = resource.fill.complete();
+            resource.fill = null;
+            if (uncacheableUntil != 0) {
+                resource.uncacheableUntil = uncacheableUntil;
+            }
+            // The resource may have been kept beyond the maximum size while it was fetched.
+            evict(evicted);
+        }
+        release(evicted);
+        run(waiters);
+    }
+
+    private Resource resource(String key) {
+        Resource resource = resources.get(key);
+        if (resource == null) {
+            resources.put(key, resource = new Resource(key));
+            size += resource.size;
+        }
+        return resource;
+    }
+
+    private void resize(Resource resource, int size, int entries) {
+        resource.size += size;
+        this.size += size;
+        this.entryCount += entries;
+    }
+
+    /**
+     * Evicts the least recently used resources until the cache fits, except the ones being fetched.
+     */
+    private void evict(List<HttpCacheEntry> evicted) {
+        for (Iterator<Resource> iterator = resources.values().iterator(); size > maximumSize && iterator.hasNext(); ) {
+            Resource resource = iterator.next();
+            if (resource.fill == null) {
+                iterator.remove();
+                size -= resource.size;
+                entryCount -= resource.entries.size();
+                evicted.addAll(resource.entries);
+            }
+        }
+    }
+
+    private static void release(List<HttpCacheEntry> entries) {
+        for (HttpCacheEntry entry : entries) {
+            entry.release();
+        }
+    }
+
+    private static void run(List<Runnable> waiters) {
+        if (waiters != null) {
+            for (Runnable waiter : waiters) {
+                waiter.run();
+            }
+        }
+    }
+
+    public void clear() {
+        List<HttpCacheEntry> evicted = new ArrayList<>();
+        synchronized (this) {
+            for (Resource resource : resources.values()) {
+                evicted.addAll(resource.entries);
+                resource.entries.clear();
+                resource.size = RESOURCE_OVERHEAD + resource.key.length() * 2;
+            }
+            resources.values().removeIf(resource -> resource.fill == null);
+            size = 0;
+            for (Resource resource : resources.values()) {
+                size += resource.size;
+            }
+            entryCount = 0;
+        }
+        release(evicted);
+    }
+
+    /**
+     * The key of the request, its absolute URI with the scheme and the host in lower case and without the
+     * default port. {@code null} if the request has none.
+     * <p>
+     * A decrypted request goes to the server of its tunnel whatever host it names, so it has no key if the
+     * host is another one. Its response would otherwise be served to the clients of that host.
+     */
+    static String key(HttpRequest request, boolean ssl, InetSocketAddress serverAddress) {
+        String uri = request.uri();
+        String key;
+        if (!uri.startsWith("/")) {
+            key = absoluteKey(uri);
+        } else {
+            String authority = request.headers().get(HttpHeaderNames.HOST);
+            if (authority == null) {
+                if (serverAddress == null) {
+                    return null;
+                }
+                authority = authority(serverAddress);
+            }
+            key = key(ssl ? "https" : "http", authority, uri);
+        }
+        if (key != null && ssl && serverAddress != null
+            && !origin(key).equals(origin(key("https", authority(serverAddress), "/")))) {
+            return null;
+        }
+        return key;
+    }
+
+    private static String authority(InetSocketAddress address) {
+        String host = address.getHostString();
+        return (host.indexOf(':') >= 0 ? '[' + host + ']' : host) + ':' + address.getPort();
+    }
+
+    private static String absoluteKey(String uri) {
+        int index = uri.indexOf("://");
+        if (index <= 0) {
+            return null;
+        }
+        int start = index + 3;
+        int end = start;
+        while (end < uri.length() && "/?#".indexOf(uri.charAt(end)) == -1) {
+            end++;
+        }
+        String path = end < uri.length() && uri.charAt(end) == '/' ? uri.substring(end) : '/' + uri.substring(end);
+        return key(uri.substring(0, index), uri.substring(start, end), path);
+    }
+
+    private static String key(String scheme, String authority, String path) {
+        scheme = scheme.toLowerCase(Locale.ROOT);
+        authority = authority.toLowerCase(Locale.ROOT);
+        if ("http".equals(scheme) && authority.endsWith(":80")) {
+            authority = authority.substring(0, authority.length() - 3);
+        } else if ("https".equals(scheme) && authority.endsWith(":443")) {
+            authority = authority.substring(0, authority.length() - 4);
+        }
+        return scheme + "://" + authority + path;
+    }
+
+    /**
+     * The key of a URI reference of a response, such as its Location, {@code null} if it is on another origin.
+     */
+    static String resolve(String key, String reference) {
+        if (reference.startsWith("/") && !reference.startsWith("//")) {
+            return origin(key) + reference;
+        }
+        String resolved = absoluteKey(reference);
+        return resolved != null && origin(resolved).equals(origin(key)) ? resolved : null;
+    }
+
+    private static String origin(String key) {
+        return key.substring(0, key.indexOf('/', key.indexOf("://") + 3));
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * The bytes of the contents, the headers and the index together.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    public int getMaximumEntrySize() {
+        return maximumEntrySize;
+    }
+
+    /**
+     * The responses with a longer content are not stored.
+     */
+    public HttpCache setMaximumEntrySize(int maximumEntrySize) {
+        this.maximumEntrySize = (int) Math.min(maximumEntrySize, maximumSize);
+        return this;
+    }
+
+    public long getCollapseTimeoutMillis() {
+        return collapseTimeoutMillis;
+    }
+
+    /**
+     * How long the requests wait for the response to another request for the same resource before going to
+     * the server themselves.
+     */
+    public HttpCache setCollapseTimeoutMillis(long collapseTimeoutMillis) {
+        this.collapseTimeoutMillis = collapseTimeoutMillis;
+        return this;
+    }
+
+    public long getUncacheableMillis() {
+        return uncacheableMillis;
+    }
+
+    /**
+     * How long the requests for a resource whose response was not storable go straight to the server, rather
+     * than waiting for each other.
+     */
+    public HttpCache setUncacheableMillis(long uncacheableMillis) {
+        this.uncacheableMillis = uncacheableMillis;
+        return this;
+    }
+
+    public ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * The allocator of the direct buffers that hold the contents.
+     */
+    public HttpCache setAllocator(ByteBufAllocator allocator) {
+        this.allocator = Objects.requireNonNull(allocator);
+        return this;
+    }
+
+    /**
+     * The stored variants of a URI, and the request that fetches it if any.
+     */
+    static final class Resource {
+
+        final String key;
+        final List<HttpCacheEntry> entries = new ArrayList<>(1);
+        int size;
+        Fill fill;
+        long uncacheableUntil;
+
+        Resource(String key) {
+            this.key = key;
+            this.size = RESOURCE_OVERHEAD + key.length() * 2;
+        }
+    }
+
+    /**
+     * A request fetching a resource, and the requests waiting for its response.
+     */
+    static final class Fill {
+
+        final HttpRequest request;
+        final long startTime;
+        List<Runnable> waiters = new ArrayList<>(2);
+
+        Fill(HttpRequest request, long startTime) {
+            this.request = request;
+            this.startTime = startTime;
+        }
+
+        List<Runnable> complete() {
+            List<Runnable> waiters = this.waiters;
+            this.waiters = null;
+            return waiters;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.AsciiString;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stored response, with its content off the heap. The cache holds a reference to it, so does whoever
+ * looked it up until it is done with it.
+ *
+ * @author aomsweet
+ */
+final class HttpCacheEntry extends AbstractReferenceCounted {
+
+    static final long MAXIMUM_HEURISTIC_FRESHNESS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * The fields about the connection, RFC 9111 section 3.1, and the ones set again when the response is served.
+     */
+    static final Set<AsciiString> UNSTORED_HEADERS = new HashSet<>(Arrays.asList(
+        HttpHeaderNames.CONNECTION, AsciiString.cached("keep-alive"), AsciiString.cached("proxy-connection"),
+        HttpHeaderNames.PROXY_AUTHENTICATE, HttpHeaderNames.PROXY_AUTHORIZATION, HttpHeaderNames.TE,
+        HttpHeaderNames.TRAILER, HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderNames.UPGRADE,
+        HttpHeaderNames.CONTENT_LENGTH, HttpHeaderNames.AGE));
+
+    /**
+     * The fields that a 304 Not Modified response carries over from the response it validates, RFC 9110
+     * section 15.4.5.
+     */
+    static final AsciiString[] NOT_MODIFIED_HEADERS = {HttpHeaderNames.CACHE_CONTROL, HttpHeaderNames.CONTENT_LOCATION,
+        HttpHeaderNames.DATE, HttpHeaderNames.ETAG, HttpHeaderNames.EXPIRES, HttpHeaderNames.VARY};
+
+    final String key;
+    final HttpResponseStatus status;
+    final HttpHeaders headers;
+    final ByteBuf content;
+    final String[] varyNames;
+    final String[] varyValues;
+    final long responseTime;
+    final long correctedInitialAge;
+    final long freshnessLifetime;
+    final boolean noCache;
+    final boolean mustRevalidate;
+    final String etag;
+    final long lastModified;
+    final int size;
+
+    /**
+     * @param ageValue the Age of the response, which is not among the stored headers
+     */
+    private HttpCacheEntry(String key, HttpResponseStatus status, HttpHeaders headers, ByteBuf content,
+                           String[] varyNames, String[] varyValues, long responseTime, long ageValue) {
+        this.key = key;
+        this.status = status;
+        this.headers = headers;
+        this.content = content;
+        this.varyNames = varyNames;
+        this.varyValues = varyValues;
+        this.responseTime = responseTime;
+
+        CacheControl cacheControl = CacheControl.ofResponse(headers);
+        long date = dateValue(headers, responseTime);
+        // The request time is not known to the response interceptors, so the delay of the response is left out.
+        this.correctedInitialAge = Math.max(Math.max(0, responseTime - date), ageValue);
+        this.freshnessLifetime = freshnessLifetime(status.code(), headers, cacheControl, date);
+        this.noCache = cacheControl.noCache;
+        this.mustRevalidate = cacheControl.mustRevalidate;
+        this.etag = headers.get(HttpHeaderNames.ETAG);
+        this.lastModified = dateValue(headers.get(HttpHeaderNames.LAST_MODIFIED));
+
+        int size = 128 + key.length() * 2 + content.capacity();
+        for (Map.Entry<String, String> header : headers) {
+            size += 32 + (header.getKey().length() + header.getValue().length()) * 2;
+        }
+        this.size = size;
+    }
+
+    /**
+     * Stores a response with the given content, which then belongs to the entry.
+     */
+    static HttpCacheEntry of(String key, HttpRequest request, HttpResponse response, ByteBuf content, long responseTime) {
+        HttpHeaders headers = new DefaultHttpHeaders(false);
+        HttpHeaders responseHeaders = response.headers();
+        for (Map.Entry<String, String> header : responseHeaders) {
+            if (isStored(header.getKey(), responseHeaders)) {
+                headers.add(header.getKey(), header.getValue());
+            }
+        }
+        if (!headers.contains(HttpHeaderNames.DATE)) {
+            headers.set(HttpHeaderNames.DATE, DateFormatter.format(new Date(responseTime)));
+        }
+        String[] varyNames = varyNames(responseHeaders);
+        String[] varyValues = new String[varyNames.length];
+        for (int i = 0; i < varyNames.length; i++) {
+            varyValues[i] = varyValue(request.headers(), varyNames[i]);
+        }
+        return new HttpCacheEntry(key, response.status(), headers, content, varyNames, varyValues, responseTime,
+            ageValue(responseHeaders));
+    }
+
+    /**
+     * The entry updated with the fields of a 304 Not Modified response that validated it, RFC 9111 section 3.2.
+     */
+    HttpCacheEntry freshen(HttpResponse notModified, long responseTime) {
+        HttpHeaders headers = this.headers.copy();
+        HttpHeaders notModifiedHeaders = notModified.headers();
+        for (String name : notModifiedHeaders.names()) {
+            if (isStored(name, notModifiedHeaders)) {
+                headers.set(name, notModifiedHeaders.getAll(name));
+            }
+        }
+        if (!notModifiedHeaders.contains(HttpHeaderNames.DATE)) {
+            headers.set(HttpHeaderNames.DATE, DateFormatter.format(new Date(responseTime)));
+        }
+        return new HttpCacheEntry(key, status, headers, content.retain(), varyNames, varyValues, responseTime,
+            ageValue(notModifiedHeaders));
+    }
+
+    private static boolean isStored(String name, HttpHeaders headers) {
+        AsciiString lowerCase = AsciiString.of(name).toLowerCase();
+        return !UNSTORED_HEADERS.contains(lowerCase)
+            && !headers.containsValue(HttpHeaderNames.CONNECTION, lowerCase, true);
+    }
+
+    /**
+     * Whether the response may be stored, RFC 9111 section 3. Responses that set cookies are left out, though
+     * the RFC doesn't require it.
+     */
+    static boolean isStorable(HttpRequest request, HttpResponse response, CacheControl requestCacheControl,
+                              CacheControl responseCacheControl, long now) {
+        if (requestCacheControl.noStore || responseCacheControl.noStore || responseCacheControl.isPrivate) {
+            return false;
+        }
+        int code = response.status().code();
+        HttpHeaders headers = response.headers();
+        if (!isUnderstood(code) || headers.contains(HttpHeaderNames.SET_COOKIE)
+            || headers.containsValue(HttpHeaderNames.VARY, "*", false)) {
+            return false;
+        }
+        if (request.headers().contains(HttpHeaderNames.AUTHORIZATION) && !responseCacheControl.isPublic
+            && !responseCacheControl.mustRevalidate) {
+            return false;
+        }
+        // Not worth it if it is stale right away and can't be validated.
+        return freshnessLifetime(code, headers, responseCacheControl, dateValue(headers, now)) > 0
+            || headers.contains(HttpHeaderNames.ETAG) || headers.contains(HttpHeaderNames.LAST_MODIFIED);
+    }
+
+    static boolean isUnderstood(int code) {
+        return isHeuristicallyCacheable(code) || code == 302 || code == 307;
+    }
+
+    /**
+     * RFC 9110 section 15.1.
+     */
+    static boolean isHeuristicallyCacheable(int code) {
+        switch (code) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+            case 308:
+            case 404:
+            case 405:
+            case 410:
+            case 414:
+            case 501:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * RFC 9111 section 4.2.1, the heuristic one is a tenth of the time since the last modification.
+     */
+    static long freshnessLifetime(int code, HttpHeaders headers, CacheControl cacheControl, long date) {
+        if (cacheControl.sMaxAge != CacheControl.UNSET) {
+            return TimeUnit.SECONDS.toMillis(cacheControl.sMaxAge);
+        } else if (cacheControl.maxAge != CacheControl.UNSET) {
+            return TimeUnit.SECONDS.toMillis(cacheControl.maxAge);
+        } else if (headers.contains(HttpHeaderNames.EXPIRES)) {
+            long expires = dateValue(headers.get(HttpHeaderNames.EXPIRES));
+            return expires == -1 ? 0 : Math.max(0, expires - date);
+        } else if (isHeuristicallyCacheable(code) || cacheControl.isPublic) {
+            long lastModified = dateValue(headers.get(HttpHeaderNames.LAST_MODIFIED));
+            if (lastModified != -1) {
+                return Math.min(Math.max(0, date - lastModified) / 10, MAXIMUM_HEURISTIC_FRESHNESS);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * RFC 9111 section 4.2.3.
+     */
+    long currentAge(long now) {
+        return correctedInitialAge + Math.max(0, now - responseTime);
+    }
+
+    /**
+     * Whether the entry can be served without asking the server, RFC 9111 section 4.2 and the directives
+     * of the request.
+     */
+    boolean isServable(CacheControl requestCacheControl, long now) {
+        if (noCache || requestCacheControl.noCache) {
+            return false;
+        }
+        long currentAge = currentAge(now);
+        if (requestCacheControl.maxAge != CacheControl.UNSET
+            && currentAge > TimeUnit.SECONDS.toMillis(requestCacheControl.maxAge)) {
+            return false;
+        }
+        long freshness = freshnessLifetime - currentAge;
+        if (requestCacheControl.minFresh != CacheControl.UNSET) {
+            return freshness >= TimeUnit.SECONDS.toMillis(requestCacheControl.minFresh);
+        } else if (freshness > 0) {
+            return true;
+        }
+        return !mustRevalidate && requestCacheControl.maxStale != CacheControl.UNSET
+            && -freshness <= TimeUnit.SECONDS.toMillis(Math.min(requestCacheControl.maxStale, 1L << 31));
+    }
+
+    boolean hasValidator() {
+        return etag != null || lastModified != -1;
+    }
+
+    /**
+     * Asks the server whether the entry is still valid, RFC 9111 section 4.3.1.
+     */
+    void addConditions(HttpHeaders requestHeaders) {
+        if (etag != null) {
+            requestHeaders.set(HttpHeaderNames.IF_NONE_MATCH, etag);
+        }
+        if (lastModified != -1) {
+            requestHeaders.set(HttpHeaderNames.IF_MODIFIED_SINCE, headers.get(HttpHeaderNames.LAST_MODIFIED));
+        }
+    }
+
+    /**
+     * Whether a 304 Not Modified response is about this entry, RFC 9111 section 4.3.4.
+     */
+    boolean isValidatedBy(HttpResponse notModified) {
+        String etag = notModified.headers().get(HttpHeaderNames.ETAG);
+        if (etag != null) {
+            return this.etag != null && opaqueTag(etag).equals(opaqueTag(this.etag));
+        }
+        long lastModified = dateValue(notModified.headers().get(HttpHeaderNames.LAST_MODIFIED));
+        return lastModified == -1 || lastModified == this.lastModified;
+    }
+
+    /**
+     * The response to the request, a 304 Not Modified one if the request is conditional and the entry
+     * satisfies it.
+     */
+    FullHttpResponse newResponse(HttpRequest request, long now) {
+        if (isNotModified(request.headers())) {
+            HttpHeaders headers = new DefaultHttpHeaders(false);
+            for (AsciiString name : NOT_MODIFIED_HEADERS) {
+                List<String> values = this.headers.getAll(name);
+                if (!values.isEmpty()) {
+                    headers.set(name, values);
+                }
+            }
+            writeAge(headers, now);
+            return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED,
+                Unpooled.EMPTY_BUFFER, headers, EmptyHttpHeaders.INSTANCE);
+        }
+        ByteBuf content = HttpMethod.HEAD.equals(request.method()) ? Unpooled.EMPTY_BUFFER : this.content.retainedDuplicate();
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content,
+            headers.copy(), EmptyHttpHeaders.INSTANCE);
+        writeHeaders(response.headers(), now);
+        return response;
+    }
+
+    /**
+     * Sets the length of the content and the age of the response in the headers of a response served from
+     * the entry.
+     */
+    void writeHeaders(HttpHeaders headers, long now) {
+        if (status.code() != HttpResponseStatus.NO_CONTENT.code()) {
+            headers.setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        }
+        writeAge(headers, now);
+    }
+
+    private void writeAge(HttpHeaders headers, long now) {
+        headers.set(HttpHeaderNames.AGE, TimeUnit.MILLISECONDS.toSeconds(currentAge(now)));
+    }
+
+    /**
+     * RFC 9110 section 13.2.2, only a successful response satisfies the conditions.
+     */
+    private boolean isNotModified(HttpHeaders requestHeaders) {
+        if (status.code() != HttpResponseStatus.OK.code()) {
+            return false;
+        }
+        List<String> ifNoneMatch = requestHeaders.getAll(HttpHeaderNames.IF_NONE_MATCH);
+        if (!ifNoneMatch.isEmpty()) {
+            if (etag == null) {
+                return false;
+            }
+            String opaqueTag = opaqueTag(etag);
+            for (String value : ifNoneMatch) {
+                for (String tag : value.split(",")) {
+                    tag = tag.trim();
+                    if ("*".equals(tag) || opaqueTag.equals(opaqueTag(tag))) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = dateValue(requestHeaders.get(HttpHeaderNames.IF_MODIFIED_SINCE));
+        return ifModifiedSince != -1 && lastModified != -1 && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * The entity tag without its weakness indicator, which If-None-Match does not compare.
+     */
+    private static String opaqueTag(String etag) {
+        etag = etag.trim();
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    boolean matches(HttpHeaders requestHeaders) {
+        for (int i = 0; i < varyNames.length; i++) {
+            if (!Objects.equals(varyValues[i], varyValue(requestHeaders, varyNames[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isSameVariant(HttpCacheEntry other) {
+        return Arrays.equals(varyNames, other.varyNames) && Arrays.equals(varyValues, other.varyValues);
+    }
+
+    private static String[] varyNames(HttpHeaders headers) {
+        List<String> names = new ArrayList<>(2);
+        for (String value : headers.getAll(HttpHeaderNames.VARY)) {
+            for (String name : value.split(",")) {
+                name = name.trim().toLowerCase(Locale.ROOT);
+                if (!name.isEmpty() && !names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * The values of the field in the request, with the whitespace around their commas removed, RFC 9111
+     * section 4.1. {@code null} if the request has none.
+     */
+    private static String varyValue(HttpHeaders requestHeaders, String name) {
+        List<String> values = requestHeaders.getAll(name);
+        if (values.isEmpty()) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            for (String element : value.split(",")) {
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                builder.append(element.trim());
+            }
+        }
+        return builder.toString();
+    }
+
+    private static long ageValue(HttpHeaders headers) {
+        return TimeUnit.SECONDS.toMillis(CacheControl.deltaSeconds(headers.get(HttpHeaderNames.AGE), 0));
+    }
+
+    private static long dateValue(HttpHeaders headers, long defaultValue) {
+        long date = dateValue(headers.get(HttpHeaderNames.DATE));
+        return date == -1 ? defaultValue : date;
+    }
+
+    private static long dateValue(String value) {
+        Date date = value == null ? null : DateFormatter.parseHttpDate(value);
+        return date == null ? -1 : date.getTime();
+    }
+
+    @Override
+    protected void deallocate() {
+        content.release();
+    }
+
+    @Override
+    public HttpCacheEntry retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public HttpCacheEntry touch(Object hint) {
+        return this;
+    }
+}
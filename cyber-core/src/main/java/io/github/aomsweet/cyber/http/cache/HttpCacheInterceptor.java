@@ -0,0 +1,409 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http.cache;
+
+import io.github.aomsweet.cyber.RelayHandler;
+import io.github.aomsweet.cyber.http.HttpChannelContext;
+import io.github.aomsweet.cyber.http.HttpExchangeContext;
+import io.github.aomsweet.cyber.http.HttpExchangeListener;
+import io.github.aomsweet.cyber.http.interceptor.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.*;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shared HTTP cache as specified by RFC 9111, with its responses stored in a {@link HttpCache}.
+ * <p>
+ * A fresh stored response is served from the event loop of the client, no relay channel is acquired for
+ * the request. A stale one is validated with its ETag or Last-Modified, and served in full once the server
+ * answers 304 Not Modified, unless the client sent conditions of its own. The GET requests that miss wait for
+ * the response of the first one for the same resource. The responses to the unsafe methods invalidate what is
+ * stored for their URI.
+ * <p>
+ * Only the requests relayed with a {@link HttpExchangeContext} are answered from the cache, the others are
+ * left alone.
+ * <p>
+ * The responses are stored as they come from the server, through the interceptors before this one. The ones
+ * served from the cache don't go through the response interceptors.
+ *
+ * @author aomsweet
+ */
+public class HttpCacheInterceptor implements HttpInterceptor {
+
+    final HttpCache cache;
+    final HttpRequestInterceptor requestInterceptor = new CacheRequestInterceptor();
+    final HttpResponseInterceptor responseInterceptor = new CacheResponseInterceptor();
+
+    public HttpCacheInterceptor() {
+        this(new HttpCache());
+    }
+
+    public HttpCacheInterceptor(HttpCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public HttpRequestInterceptor requestInterceptor() {
+        return requestInterceptor;
+    }
+
+    @Override
+    public HttpResponseInterceptor responseInterceptor() {
+        return responseInterceptor;
+    }
+
+    public HttpCache getCache() {
+        return cache;
+    }
+
+    static boolean isCacheable(HttpRequest httpRequest) {
+        HttpMethod method = httpRequest.method();
+        return (HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method))
+            && !httpRequest.headers().contains(HttpHeaderNames.RANGE);
+    }
+
+    /**
+     * Whether the response to the request could be stored for the other requests, which may then wait for it.
+     */
+    static boolean canFill(HttpRequest httpRequest, CacheControl cacheControl) {
+        HttpHeaders headers = httpRequest.headers();
+        return HttpMethod.GET.equals(httpRequest.method()) && !cacheControl.noStore && !cacheControl.noCache
+            && !headers.contains(HttpHeaderNames.AUTHORIZATION) && !isConditional(headers);
+    }
+
+    static boolean isConditional(HttpHeaders headers) {
+        return headers.contains(HttpHeaderNames.IF_NONE_MATCH) || headers.contains(HttpHeaderNames.IF_MODIFIED_SINCE);
+    }
+
+    class CacheRequestInterceptor implements HttpRequestInterceptor {
+
+        @Override
+        public boolean preHandle(HttpRequest httpRequest, HttpChannelContext channelContext) {
+            String key;
+            if (!(channelContext instanceof HttpExchangeContext) || !isCacheable(httpRequest)
+                || (key = HttpCache.key(httpRequest, channelContext.isSsl(), channelContext.getServerAddress())) == null) {
+                return true;
+            }
+            HttpExchangeContext context = (HttpExchangeContext) channelContext;
+            HttpHeaders headers = httpRequest.headers();
+            CacheControl cacheControl = CacheControl.ofRequest(headers);
+            long now = System.currentTimeMillis();
+            HttpCacheEntry entry = cache.lookup(key, headers);
+            if (entry != null) {
+                try {
+                    if (entry.isServable(cacheControl, now)) {
+                        context.respond(entry.newResponse(httpRequest, now));
+                        return false;
+                    } else if (entry.hasValidator()) {
+                        // The conditions of the client are kept, the 304 Not Modified then answers them.
+                        boolean conditional = isConditional(headers);
+                        if (!conditional) {
+                            entry.addConditions(headers);
+                        }
+                        context.addExchangeListener(new Revalidation(entry.retain(), conditional));
+                        return true;
+                    }
+                } finally {
+                    entry.release();
+                }
+            }
+            if (cacheControl.onlyIfCached) {
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.GATEWAY_TIMEOUT);
+                HttpUtil.setContentLength(response, 0);
+                context.respond(response);
+                return false;
+            }
+            if (canFill(httpRequest, cacheControl)) {
+                if (new Waiter(key, httpRequest, cacheControl, context).await(now)) {
+                    context.suspendRequest();
+                    return false;
+                }
+                // The request may now be the one the others wait for, they must not outlive its exchange.
+                context.addExchangeListener(() -> cache.fillAbandoned(key, httpRequest));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A request that waits for the response to another request for the same resource.
+     */
+    class Waiter implements Runnable {
+
+        final String key;
+        final HttpRequest httpRequest;
+        final CacheControl cacheControl;
+        final HttpExchangeContext context;
+        HttpCache.Fill fill;
+        ScheduledFuture<?> timeout;
+        boolean resumed;
+
+        Waiter(String key, HttpRequest httpRequest, CacheControl cacheControl, HttpExchangeContext context) {
+            this.key = key;
+            this.httpRequest = httpRequest;
+            this.cacheControl = cacheControl;
+            this.context = context;
+        }
+
+        boolean await(long now) {
+            fill = cache.await(key, httpRequest, this, now);
+            if (fill == null) {
+                return false;
+            }
+            timeout = context.getChannelHandlerContext().executor().schedule(() -> {
+                if (cache.cancel(fill, this)) {
+                    resume();
+                }
+            }, cache.collapseTimeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        /**
+         * Run once the response to the other request is stored or turned out not to be storable.
+         */
+        @Override
+        public void run() {
+            context.getChannelHandlerContext().executor().execute(this::resume);
+        }
+
+        /**
+         * Serves the stored response if any, or lets the request go to the server.
+         */
+        void resume() {
+            if (resumed) {
+                return;
+            }
+            resumed = true;
+            timeout.cancel(false);
+            if (context.getState() == RelayHandler.State.CLOSED) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            HttpCacheEntry entry = cache.lookup(key, httpRequest.headers());
+            if (entry != null) {
+                try {
+                    if (entry.isServable(cacheControl, now)) {
+                        context.respond(entry.newResponse(httpRequest, now));
+                    }
+                } finally {
+                    entry.release();
+                }
+            }
+            context.resumeRequest();
+        }
+    }
+
+    class CacheResponseInterceptor extends StreamingHttpResponseInterceptor {
+
+        @Override
+        public boolean preHandle(HttpRequest httpRequest, HttpResponse httpResponse, HttpContentStream stream,
+                                 HttpChannelContext context) {
+            // Only the content of a response being stored, or replacing a 304 Not Modified, is streamed.
+            if (!intercept(httpRequest, httpResponse, stream, context)) {
+                stream.abort();
+            }
+            return true;
+        }
+
+        private boolean intercept(HttpRequest httpRequest, HttpResponse httpResponse, HttpContentStream stream,
+                                  HttpChannelContext context) {
+            String key = HttpCache.key(httpRequest, context.isSsl(), context.getServerAddress());
+            if (key == null) {
+                return false;
+            }
+            int code = httpResponse.status().code();
+            long now = System.currentTimeMillis();
+            if (!isCacheable(httpRequest)) {
+                if (isUnsafe(httpRequest.method()) && code >= 200 && code < 400) {
+                    invalidate(key, httpResponse);
+                }
+                return false;
+            } else if (code == HttpResponseStatus.NOT_MODIFIED.code()) {
+                Revalidation revalidation = context instanceof HttpExchangeContext
+                    ? ((HttpExchangeContext) context).getExchangeListener(Revalidation.class) : null;
+                if (revalidation == null) {
+                    // It answers the conditions of the client.
+                    return false;
+                }
+                HttpCacheEntry entry = revalidation.entry;
+                if (revalidation.conditional) {
+                    if (httpResponse.headers().contains(HttpHeaderNames.ETAG) && entry.isValidatedBy(httpResponse)) {
+                        cache.store(entry.freshen(httpResponse, now));
+                    }
+                    return false;
+                }
+                if (entry.isValidatedBy(httpResponse)) {
+                    entry = entry.freshen(httpResponse, now);
+                    cache.store(entry.retain());
+                } else {
+                    // The server vouched for the validators of the entry, the only ones sent, but describes
+                    // another response. The entry is served as it is stored rather than the 304.
+                    entry.retain();
+                }
+                return served(httpRequest, httpResponse, stream, entry, now);
+            } else if (HttpMethod.HEAD.equals(httpRequest.method())) {
+                return false;
+            }
+            long contentLength = HttpUtil.getContentLength(httpResponse, -1L);
+            if (contentLength > cache.maximumEntrySize || !HttpCacheEntry.isStorable(httpRequest, httpResponse,
+                CacheControl.ofRequest(httpRequest.headers()), CacheControl.ofResponse(httpResponse.headers()), now)) {
+                cache.fillFailed(key, httpRequest, now);
+                return false;
+            }
+            int initialCapacity = contentLength == -1 ? Math.min(8192, cache.maximumEntrySize) : (int) contentLength;
+            ByteBuf content = cache.allocator.directBuffer(initialCapacity, cache.maximumEntrySize);
+            stream.setData(new Filling(key, httpRequest, content));
+            return true;
+        }
+
+        /**
+         * Serves the entry to the client in place of the 304 Not Modified response, {@code true} if its content
+         * is to be streamed. The entry is released once streamed.
+         */
+        private boolean served(HttpRequest httpRequest, HttpResponse httpResponse, HttpContentStream stream,
+                               HttpCacheEntry entry, long now) {
+            boolean keepAlive = HttpUtil.isKeepAlive(httpResponse);
+            httpResponse.setStatus(entry.status);
+            entry.writeHeaders(httpResponse.headers().set(entry.headers), now);
+            HttpUtil.setKeepAlive(httpResponse, keepAlive);
+            if (HttpMethod.HEAD.equals(httpRequest.method())) {
+                entry.release();
+                return false;
+            }
+            stream.setData(entry);
+            return true;
+        }
+
+        @Override
+        public HttpContent handleContent(HttpContent httpContent, HttpContentStream stream) {
+            Object data = stream.getData();
+            if (data instanceof HttpCacheEntry) {
+                httpContent.release();
+                return httpContent instanceof LastHttpContent
+                    ? new DefaultLastHttpContent(((HttpCacheEntry) data).content.retainedDuplicate()) : null;
+            }
+            Filling filling = (Filling) data;
+            ByteBuf content = httpContent.content();
+            if (filling.content.readableBytes() + content.readableBytes() > cache.maximumEntrySize) {
+                stream.abort();
+                discard(stream);
+                return httpContent;
+            }
+            filling.content.writeBytes(content, content.readerIndex(), content.readableBytes());
+            if (httpContent instanceof LastHttpContent) {
+                stream.setData(null);
+                cache.store(HttpCacheEntry.of(filling.key, filling.httpRequest, (HttpResponse) stream.getMessage(),
+                    filling.trimmedContent(), System.currentTimeMillis()));
+            }
+            return httpContent;
+        }
+
+        @Override
+        public void streamEnded(HttpContentStream stream) {
+            discard(stream);
+        }
+
+        private void discard(HttpContentStream stream) {
+            Object data = stream.getData();
+            stream.setData(null);
+            if (data instanceof Filling) {
+                Filling filling = (Filling) data;
+                filling.content.release();
+                cache.fillFailed(filling.key, filling.httpRequest, System.currentTimeMillis());
+            } else if (data instanceof HttpCacheEntry) {
+                ((HttpCacheEntry) data).release();
+            }
+        }
+
+        /**
+         * RFC 9111 section 4.4, the Location and the Content-Location are invalidated as well if they are on
+         * the same origin.
+         */
+        private void invalidate(String key, HttpResponse httpResponse) {
+            cache.invalidate(key);
+            HttpHeaders headers = httpResponse.headers();
+            for (String reference : new String[]{headers.get(HttpHeaderNames.LOCATION),
+                headers.get(HttpHeaderNames.CONTENT_LOCATION)}) {
+                String resolved;
+                if (reference != null && (resolved = HttpCache.resolve(key, reference.trim())) != null) {
+                    cache.invalidate(resolved);
+                }
+            }
+        }
+    }
+
+    /**
+     * RFC 9110 section 9.2.1.
+     */
+    static boolean isUnsafe(HttpMethod method) {
+        return !(HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method)
+            || HttpMethod.OPTIONS.equals(method) || HttpMethod.TRACE.equals(method));
+    }
+
+    /**
+     * A stale entry being validated by a request, held until the end of its exchange so that the 304 Not
+     * Modified is applied to it even if it is evicted meanwhile.
+     */
+    static final class Revalidation implements HttpExchangeListener {
+
+        final HttpCacheEntry entry;
+        /**
+         * Whether the client sent conditions of its own, that the request was sent with.
+         */
+        final boolean conditional;
+
+        Revalidation(HttpCacheEntry entry, boolean conditional) {
+            this.entry = entry;
+            this.conditional = conditional;
+        }
+
+        @Override
+        public void exchangeEnded() {
+            entry.release();
+        }
+    }
+
+    /**
+     * The content of a response being stored.
+     */
+    static final class Filling {
+
+        final String key;
+        final HttpRequest httpRequest;
+        final ByteBuf content;
+
+        Filling(String key, HttpRequest httpRequest, ByteBuf content) {
+            this.key = key;
+            this.httpRequest = httpRequest;
+            this.content = content;
+        }
+
+        /**
+         * The content, copied to a buffer of its size if the one it grew in is much bigger.
+         */
+        ByteBuf trimmedContent() {
+            int length = content.readableBytes();
+            if (content.capacity() - length <= length >> 3) {
+                return content;
+            }
+            ByteBuf trimmed = content.alloc().directBuffer(length, length).writeBytes(content);
+            content.release();
+            return trimmed;
+        }
+    }
+}
@@ -2,38 +2,66 @@ package io.github.aomsweet.cyber.http.interceptor;
 
 import io.netty.handler.codec.http.HttpRequest;
 
-import java.util.*;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
 
 /**
+ * Matches the interceptors of its current {@link HttpInterceptorRuleSet}. Every change publishes a new rule set,
+ * compiled by the thread that made the change, so the requests are matched without locking and the connections
+ * keep the rule set they started with. The interceptors added with a {@link HttpRequestMatcher} are indexed, the
+ * others are asked one by one.
+ *
  * @author aomsweet
  */
 public class DefaultHttpInterceptorManager implements HttpInterceptorManager {
 
-    List<HttpInterceptor> httpInterceptors;
+    volatile HttpInterceptorRuleSet ruleSet = HttpInterceptorRuleSet.EMPTY;
 
-    public HttpInterceptorManager addInterceptor(HttpInterceptor interceptor) {
-        Objects.requireNonNull(interceptor);
-        if (httpInterceptors == null) {
-            httpInterceptors = new ArrayList<>();
-        }
-        httpInterceptors.add(interceptor);
+    @Override
+    public DefaultHttpInterceptorManager addInterceptor(HttpInterceptor interceptor) {
+        return addInterceptor(null, interceptor);
+    }
+
+    /**
+     * Adds an interceptor of the requests that the matcher matches, its {@link HttpInterceptor#match} is not
+     * asked. Without a matcher, it is asked for every request.
+     */
+    public synchronized DefaultHttpInterceptorManager addInterceptor(HttpRequestMatcher matcher, HttpInterceptor interceptor) {
+        ruleSet = ruleSet.with(matcher, interceptor).compile();
+        return this;
+    }
+
+    public synchronized DefaultHttpInterceptorManager removeInterceptor(HttpInterceptor interceptor) {
+        ruleSet = ruleSet.without(interceptor).compile();
         return this;
     }
 
     public Queue<HttpInterceptor> matchInterceptor(HttpRequest httpRequest) {
-        if (httpInterceptors == null) {
-            return null;
-        }
-        Queue<HttpInterceptor> queue = null;
-        for (HttpInterceptor httpInterceptor : httpInterceptors) {
-            if (httpInterceptor.match(httpRequest)) {
-                if (queue == null) {
-                    queue = new ArrayDeque<>(2);
-                }
-                queue.offer(httpInterceptor);
-            }
-        }
-        return queue;
+        return ruleSet.matchInterceptor(httpRequest);
+    }
+
+    @Override
+    public List<HttpInterceptor> matchInterceptors(HttpRequest httpRequest) {
+        return ruleSet.matchInterceptors(httpRequest);
+    }
+
+    @Override
+    public HttpInterceptorRuleSet snapshot() {
+        return ruleSet;
+    }
+
+    public HttpInterceptorRuleSet getRuleSet() {
+        return ruleSet;
+    }
+
+    /**
+     * Replaces all the interceptors at once, the index of the rule set is compiled on the calling thread
+     * before it is published.
+     */
+    public synchronized DefaultHttpInterceptorManager setRuleSet(HttpInterceptorRuleSet ruleSet) {
+        this.ruleSet = Objects.requireNonNull(ruleSet).compile();
+        return this;
     }
 
 }
@@ -42,8 +42,11 @@ public abstract class FullHttpRequestInterceptor extends FullHttpMessageIntercep
         ChannelPipeline pipeline = context.getClientChannel().pipeline();
         if (httpRequest instanceof FullHttpRequest) {
             FullHttpRequest fullHttpRequest = (FullHttpRequest) httpRequest;
-            pipeline.remove(HandlerNames.DECOMPRESS);
-            pipeline.remove(HandlerNames.AGGREGATOR);
+            // The stream codec of HTTP/2 already decodes the requests without content as full requests.
+            if (pipeline.get(HandlerNames.AGGREGATOR) != null) {
+                pipeline.remove(HandlerNames.DECOMPRESS);
+                pipeline.remove(HandlerNames.AGGREGATOR);
+            }
             return preHandle(fullHttpRequest, context);
         } else {
             pipeline
@@ -38,8 +38,11 @@ public abstract class FullHttpResponseInterceptor extends FullHttpMessageInterce
     public final boolean preHandle(HttpRequest httpRequest, HttpResponse httpResponse, HttpChannelContext context) throws Exception {
         ChannelPipeline pipeline = context.getServerChannel().pipeline();
         if (httpResponse instanceof FullHttpResponse) {
-            pipeline.remove(HandlerNames.DECOMPRESS);
-            pipeline.remove(HandlerNames.AGGREGATOR);
+            // The stream codec of HTTP/2 already decodes the responses without content as full responses.
+            if (pipeline.get(HandlerNames.AGGREGATOR) != null) {
+                pipeline.remove(HandlerNames.DECOMPRESS);
+                pipeline.remove(HandlerNames.AGGREGATOR);
+            }
             return preHandle(httpRequest, (FullHttpResponse) httpResponse, context);
         } else {
             pipeline
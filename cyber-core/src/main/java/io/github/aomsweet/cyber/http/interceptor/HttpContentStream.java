@@ -0,0 +1,42 @@
+package io.github.aomsweet.cyber.http.interceptor;
+
+import io.netty.handler.codec.http.HttpMessage;
+
+/**
+ * The content of a message as seen by a {@link StreamingHttpMessageInterceptor}, one chunk at a time.
+ *
+ * @author aomsweet
+ */
+public interface HttpContentStream {
+
+    HttpMessage getMessage();
+
+    /**
+     * Decodes the content according to its Content-Encoding before it is passed to the callbacks, and
+     * relays it decoded. The decoder is only created once there are bytes to decode. Must be called before
+     * the message is relayed, that is from {@code preHandle}.
+     *
+     * @return {@code false} if the encoding can't be decoded, in which case the content is left as is.
+     */
+    boolean decompress();
+
+    /**
+     * Relays the message chunked, so that the callbacks may change the length of the content. Must be
+     * called before the message is relayed, that is from {@code preHandle}.
+     */
+    HttpContentStream chunked();
+
+    /**
+     * Stops passing the content to the callbacks, the rest of it is relayed as is, or decoded if asked so.
+     * To drop the message instead, close the {@link io.github.aomsweet.cyber.http.HttpChannelContext}. Aborted
+     * from {@code preHandle}, the stream does not start at all.
+     */
+    void abort();
+
+    boolean isAborted();
+
+    <T> T getData();
+
+    HttpContentStream setData(Object data);
+
+}
@@ -0,0 +1,340 @@
+package io.github.aomsweet.cyber.http.interceptor;
+
+import io.github.aomsweet.cyber.HandlerNames;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.BrotliDecoder;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Passes the content of a message through the {@link StreamingHttpMessageInterceptor}s that asked for it, in
+ * their order, and removes itself at the end of the message. It sits right before the relay handler, so the
+ * head of the message has already gone by.
+ *
+ * @author aomsweet
+ */
+final class HttpContentStreamHandler extends ChannelInboundHandlerAdapter {
+
+    final ChannelPipeline pipeline;
+    final HttpMessage message;
+    final List<Stream> streams = new ArrayList<>(2);
+
+    /**
+     * The Content-Encoding removed from the message once asked to decompress it, see {@link Stream#decompress()}.
+     */
+    String encoding;
+    EmbeddedChannel decoder;
+    boolean added;
+    boolean contentRelayed;
+
+    HttpContentStreamHandler(ChannelPipeline pipeline, HttpMessage message) {
+        this.pipeline = pipeline;
+        this.message = message;
+    }
+
+    /**
+     * The handler of the message if another interceptor already streams it, or a new one.
+     */
+    static HttpContentStreamHandler of(ChannelPipeline pipeline, HttpMessage message) {
+        ChannelHandler handler = pipeline.get(HandlerNames.CONTENT_STREAM);
+        if (handler instanceof HttpContentStreamHandler && ((HttpContentStreamHandler) handler).message == message) {
+            return (HttpContentStreamHandler) handler;
+        }
+        return new HttpContentStreamHandler(pipeline, message);
+    }
+
+    Stream newStream(StreamingHttpMessageInterceptor interceptor) {
+        return new Stream(interceptor);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof FullHttpMessage) {
+            // Aggregated by a FullHttpMessageInterceptor that comes after the streaming ones.
+            handleFullMessage((FullHttpMessage) msg, streams);
+            ctx.pipeline().remove(this);
+            ctx.fireChannelRead(msg);
+        } else if (msg instanceof HttpContent) {
+            handleContent(ctx, (HttpContent) msg);
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    private void handleContent(ChannelHandlerContext ctx, HttpContent httpContent) throws Exception {
+        contentRelayed = true;
+        boolean last = httpContent instanceof LastHttpContent;
+        if (encoding != null) {
+            httpContent = decode(httpContent, last);
+        }
+        HttpContent result = intercept(httpContent, streams);
+        if (result != null) {
+            ctx.fireChannelRead(result);
+        }
+        if (last) {
+            if (!(result instanceof LastHttpContent)) {
+                ctx.fireChannelRead(LastHttpContent.EMPTY_LAST_CONTENT);
+            }
+            if (!ctx.isRemoved()) {
+                ctx.pipeline().remove(this);
+            }
+        } else if (encoding == null && isAborted() && !ctx.isRemoved()) {
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    /**
+     * The content of a full message is intercepted as a single last content and copied back into the message.
+     */
+    private void handleFullMessage(FullHttpMessage fullMessage, List<Stream> streams) throws Exception {
+        contentRelayed = true;
+        ByteBuf content = fullMessage.content();
+        ByteBuf duplicate = content.retainedDuplicate();
+        HttpContent httpContent = new DefaultLastHttpContent(duplicate);
+        if (encoding != null) {
+            httpContent = decode(httpContent, true);
+        }
+        HttpContent result = intercept(httpContent, streams);
+        if (result != null && result.content() == duplicate) {
+            result.release();
+            return;
+        }
+        ByteBuf replaced;
+        if (result == null) {
+            replaced = null;
+        } else {
+            // The result may be a view of the content it replaces.
+            try {
+                replaced = content.alloc().buffer(result.content().readableBytes()).writeBytes(result.content());
+            } finally {
+                result.release();
+            }
+        }
+        content.clear();
+        if (replaced != null) {
+            content.writeBytes(replaced);
+            replaced.release();
+        }
+        HttpUtil.setContentLength(fullMessage, content.readableBytes());
+    }
+
+    private static HttpContent intercept(HttpContent httpContent, List<Stream> streams) throws Exception {
+        for (Stream stream : streams) {
+            if (!stream.aborted) {
+                httpContent = stream.interceptor.handleContent(httpContent, stream);
+                if (httpContent == null) {
+                    break;
+                }
+            }
+        }
+        return httpContent;
+    }
+
+    private HttpContent decode(HttpContent httpContent, boolean last) {
+        ByteBuf content = httpContent.content();
+        CompositeByteBuf decoded = content.alloc().compositeBuffer();
+        try {
+            if (content.isReadable()) {
+                if (decoder == null) {
+                    decoder = newContentDecoder(pipeline.channel(), encoding);
+                }
+                decoder.writeInbound(content.retain());
+                readDecoded(decoded);
+            }
+            if (last && decoder != null) {
+                if (decoder.finish()) {
+                    readDecoded(decoded);
+                }
+                decoder = null;
+            }
+        } catch (RuntimeException e) {
+            decoded.release();
+            throw e;
+        } finally {
+            httpContent.release();
+        }
+        if (last) {
+            LastHttpContent lastContent = new DefaultLastHttpContent(decoded);
+            lastContent.trailingHeaders().set(((LastHttpContent) httpContent).trailingHeaders());
+            return lastContent;
+        }
+        return new DefaultHttpContent(decoded);
+    }
+
+    private void readDecoded(CompositeByteBuf decoded) {
+        for (ByteBuf buf = decoder.readInbound(); buf != null; buf = decoder.readInbound()) {
+            if (buf.isReadable()) {
+                decoded.addComponent(true, buf);
+            } else {
+                buf.release();
+            }
+        }
+    }
+
+    private boolean isAborted() {
+        for (Stream stream : streams) {
+            if (!stream.aborted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (decoder != null) {
+            decoder.finishAndReleaseAll();
+            decoder = null;
+        }
+        for (Stream stream : streams) {
+            stream.interceptor.streamEnded(stream);
+        }
+    }
+
+    static boolean isDecodable(String encoding) {
+        return HttpHeaderValues.GZIP.contentEqualsIgnoreCase(encoding)
+            || HttpHeaderValues.X_GZIP.contentEqualsIgnoreCase(encoding)
+            || HttpHeaderValues.DEFLATE.contentEqualsIgnoreCase(encoding)
+            || HttpHeaderValues.X_DEFLATE.contentEqualsIgnoreCase(encoding)
+            || Brotli.isAvailable() && HttpHeaderValues.BR.contentEqualsIgnoreCase(encoding);
+    }
+
+    /**
+     * The same decoders as {@link HttpContentDecompressor}, which only works on the head of the message.
+     */
+    static EmbeddedChannel newContentDecoder(Channel channel, String encoding) {
+        ChannelHandler decoder;
+        if (HttpHeaderValues.GZIP.contentEqualsIgnoreCase(encoding)
+            || HttpHeaderValues.X_GZIP.contentEqualsIgnoreCase(encoding)) {
+            decoder = ZlibCodecFactory.newZlibDecoder(ZlibWrapper.GZIP);
+        } else if (HttpHeaderValues.DEFLATE.contentEqualsIgnoreCase(encoding)
+            || HttpHeaderValues.X_DEFLATE.contentEqualsIgnoreCase(encoding)) {
+            decoder = ZlibCodecFactory.newZlibDecoder(ZlibWrapper.ZLIB_OR_NONE);
+        } else {
+            decoder = new BrotliDecoder();
+        }
+        return new EmbeddedChannel(channel.id(), channel.metadata().hasDisconnect(), channel.config(), decoder);
+    }
+
+    /**
+     * The stream of one interceptor.
+     */
+    final class Stream implements HttpContentStream {
+
+        final StreamingHttpMessageInterceptor interceptor;
+        boolean aborted;
+        Object data;
+
+        Stream(StreamingHttpMessageInterceptor interceptor) {
+            this.interceptor = interceptor;
+        }
+
+        /**
+         * Called once the interceptor let the head of the message go, the content of a full message is
+         * intercepted right away. A stream aborted before is not started.
+         */
+        void start() throws Exception {
+            if (aborted) {
+                return;
+            }
+            if (message instanceof FullHttpMessage) {
+                try {
+                    handleFullMessage((FullHttpMessage) message, Collections.singletonList(this));
+                } finally {
+                    interceptor.streamEnded(this);
+                }
+            } else {
+                streams.add(this);
+                if (!added) {
+                    HttpContentStreamHandler handler = HttpContentStreamHandler.this;
+                    if (pipeline.get(HandlerNames.CONTENT_STREAM) != null) {
+                        // Left by a message that never ended.
+                        pipeline.replace(HandlerNames.CONTENT_STREAM, HandlerNames.CONTENT_STREAM, handler);
+                    } else {
+                        pipeline.addBefore(HandlerNames.RELAY, HandlerNames.CONTENT_STREAM, handler);
+                    }
+                    added = true;
+                }
+            }
+        }
+
+        private void checkContentNotRelayed() {
+            if (contentRelayed) {
+                throw new IllegalStateException("The content of the message is already relayed.");
+            }
+        }
+
+        @Override
+        public HttpMessage getMessage() {
+            return message;
+        }
+
+        /**
+         * The content is decoded for all the interceptors of the message once one of them asks for it.
+         */
+        @Override
+        public boolean decompress() {
+            if (encoding != null) {
+                return true;
+            }
+            String value = message.headers().get(HttpHeaderNames.CONTENT_ENCODING);
+            if (value == null || HttpHeaderValues.IDENTITY.contentEqualsIgnoreCase(value = value.trim())) {
+                return true;
+            } else if (!isDecodable(value)) {
+                return false;
+            }
+            checkContentNotRelayed();
+            encoding = value;
+            message.headers().remove(HttpHeaderNames.CONTENT_ENCODING);
+            if (!(message instanceof FullHttpMessage)) {
+                HttpUtil.setTransferEncodingChunked(message, true);
+            }
+            return true;
+        }
+
+        @Override
+        public HttpContentStream chunked() {
+            checkContentNotRelayed();
+            // The length of a full message is set once its content is intercepted.
+            if (!(message instanceof FullHttpMessage)) {
+                HttpUtil.setTransferEncodingChunked(message, true);
+            }
+            return this;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+
+        @Override
+        public boolean isAborted() {
+            return aborted;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T getData() {
+            return (T) data;
+        }
+
+        @Override
+        public HttpContentStream setData(Object data) {
+            this.data = data;
+            return this;
+        }
+    }
+}
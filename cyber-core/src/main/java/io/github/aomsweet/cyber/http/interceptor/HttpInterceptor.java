@@ -7,7 +7,13 @@ import io.netty.handler.codec.http.HttpRequest;
  */
 public interface HttpInterceptor {
 
-    boolean match(HttpRequest httpRequest);
+    /**
+     * Not asked for the interceptors added with a {@link HttpRequestMatcher}, see
+     * {@link DefaultHttpInterceptorManager#addInterceptor(HttpRequestMatcher, HttpInterceptor)}.
+     */
+    default boolean match(HttpRequest httpRequest) {
+        return true;
+    }
 
     default HttpRequestInterceptor requestInterceptor() {
         return null;
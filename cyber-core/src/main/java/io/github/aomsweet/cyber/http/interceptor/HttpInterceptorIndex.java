@@ -0,0 +1,473 @@
+package io.github.aomsweet.cyber.http.interceptor;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.*;
+
+/**
+ * The interceptors of a {@link DefaultHttpInterceptorManager} compiled for matching.
+ * <p>
+ * The interceptors added with a {@link HttpRequestMatcher} are found through a trie of the host labels, from
+ * the last one, whose nodes lead to a trie of the path prefixes, whose nodes hold the chains of interceptors
+ * per method. All the chains are computed up front and shared by the requests with the same matches, so
+ * looking them up allocates nothing. The other interceptors are asked one by one and merged into the chain,
+ * in the order they were all added.
+ *
+ * @author aomsweet
+ */
+final class HttpInterceptorIndex {
+
+    final HostNode hostRoot;
+    final HttpInterceptor[] fallbacks;
+    final int[] fallbackOrders;
+
+    HttpInterceptorIndex(List<HttpInterceptor> interceptors, List<HttpRequestMatcher> matchers) {
+        Compiler compiler = new Compiler(interceptors, matchers);
+        this.hostRoot = compiler.compile();
+        int count = 0;
+        for (HttpRequestMatcher matcher : matchers) {
+            if (matcher == null) {
+                count++;
+            }
+        }
+        this.fallbacks = new HttpInterceptor[count];
+        this.fallbackOrders = new int[count];
+        for (int i = 0, j = 0; i < matchers.size(); i++) {
+            if (matchers.get(i) == null) {
+                fallbacks[j] = interceptors.get(i);
+                fallbackOrders[j++] = i;
+            }
+        }
+    }
+
+    /**
+     * The chain of the request, {@code null} if there is none.
+     */
+    List<HttpInterceptor> match(HttpRequest httpRequest) {
+        Chain chain = lookup(httpRequest);
+        HttpInterceptor[] matched = null;
+        int[] matchedOrders = null;
+        int count = 0;
+        for (int i = 0; i < fallbacks.length; i++) {
+            if (fallbacks[i].match(httpRequest)) {
+                if (matched == null) {
+                    matched = new HttpInterceptor[fallbacks.length - i];
+                    matchedOrders = new int[fallbacks.length - i];
+                }
+                matched[count] = fallbacks[i];
+                matchedOrders[count++] = fallbackOrders[i];
+            }
+        }
+        return count == 0 ? chain : Chain.merge(chain, matched, matchedOrders, count);
+    }
+
+    Chain lookup(HttpRequest httpRequest) {
+        String uri = httpRequest.uri();
+        PathNode pathRoot;
+        String host = httpRequest.headers().get(HttpHeaderNames.HOST);
+        if (host != null) {
+            pathRoot = lookupHost(host, 0, host.length());
+        } else {
+            int start = uri.indexOf("://");
+            if (start >= 0) {
+                start += 3;
+            } else if (uri.startsWith("/") || uri.equals("*")) {
+                start = uri.length();
+            } else {
+                // The authority form of CONNECT.
+                start = 0;
+            }
+            int end = start;
+            while (end < uri.length() && "/?#".indexOf(uri.charAt(end)) < 0) {
+                end++;
+            }
+            pathRoot = lookupHost(uri, start, end);
+        }
+        return lookupPath(pathRoot, uri).get(httpRequest.method());
+    }
+
+    private PathNode lookupHost(String host, int start, int end) {
+        int at = host.lastIndexOf('@', end - 1);
+        if (at >= start) {
+            start = at + 1;
+        }
+        if (start < end && host.charAt(start) == '[') {
+            int bracket = host.indexOf(']', start);
+            end = bracket < 0 ? end : bracket + 1;
+        } else {
+            int colon = host.indexOf(':', start);
+            end = colon < 0 || colon > end ? end : colon;
+        }
+        if (end > start && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        HostNode node = hostRoot;
+        if (start >= end) {
+            return node.onMiss;
+        }
+        for (int labelEnd = end; ; ) {
+            int dot = host.lastIndexOf('.', labelEnd - 1);
+            int labelStart = dot < start ? start : dot + 1;
+            HostNode next = node.child(host, labelStart, labelEnd);
+            if (next == null) {
+                return node.onMiss;
+            } else if (labelStart == start) {
+                return next.onEnd;
+            }
+            node = next;
+            labelEnd = dot;
+        }
+    }
+
+    private static MethodChains lookupPath(PathNode root, String uri) {
+        int start;
+        if (uri.startsWith("/") || uri.equals("*")) {
+            start = 0;
+        } else {
+            int scheme = uri.indexOf("://");
+            start = scheme < 0 ? -1 : uri.indexOf('/', scheme + 3);
+            if (start < 0) {
+                // An absolute URI without a path, or the authority form of CONNECT.
+                return scheme < 0 ? root.chains : lookupPath(root, "/");
+            }
+        }
+        MethodChains chains = root.chains;
+        PathNode node = root;
+        for (int i = start; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '?' || c == '#' || (node = node.child(c)) == null) {
+                break;
+            } else if (node.chains != null) {
+                chains = node.chains;
+            }
+        }
+        return chains;
+    }
+
+    static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            h = 31 * h + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A node of the deterministic trie of the host labels. The labels that have no node of their own go to
+     * the wildcard node, if any.
+     */
+    static final class HostNode {
+
+        String[] labels;
+        HostNode[] nodes;
+        HostNode wildcard;
+
+        /**
+         * The path index of the hosts that end with this node, and of the longer hosts that leave the trie here.
+         */
+        PathNode onEnd;
+        PathNode onMiss;
+
+        HostNode child(String host, int start, int end) {
+            if (labels != null) {
+                int length = end - start;
+                int mask = labels.length - 1;
+                for (int i = hash(host, start, end) & mask; labels[i] != null; i = (i + 1) & mask) {
+                    String label = labels[i];
+                    if (label.length() == length && label.regionMatches(true, 0, host, start, length)) {
+                        return nodes[i];
+                    }
+                }
+            }
+            return wildcard;
+        }
+    }
+
+    static final class PathNode {
+
+        char[] keys;
+        PathNode[] nodes;
+
+        /**
+         * The chains of the paths that start with the prefix of this node, {@code null} if no interceptor has
+         * this very prefix.
+         */
+        MethodChains chains;
+
+        PathNode child(char c) {
+            if (keys != null) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] == c) {
+                        return nodes[i];
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    static final class MethodChains {
+
+        final Map<HttpMethod, Chain> chains;
+        final Chain otherChain;
+
+        MethodChains(Map<HttpMethod, Chain> chains, Chain otherChain) {
+            this.chains = chains;
+            this.otherChain = otherChain;
+        }
+
+        Chain get(HttpMethod method) {
+            Chain chain = chains.get(method);
+            return chain == null ? otherChain : chain;
+        }
+    }
+
+    /**
+     * An immutable chain of interceptors with the order in which they were added.
+     */
+    static final class Chain extends AbstractList<HttpInterceptor> implements RandomAccess {
+
+        final HttpInterceptor[] interceptors;
+        final int[] orders;
+
+        Chain(HttpInterceptor[] interceptors, int[] orders) {
+            this.interceptors = interceptors;
+            this.orders = orders;
+        }
+
+        static Chain merge(Chain chain, HttpInterceptor[] others, int[] otherOrders, int count) {
+            int size = (chain == null ? 0 : chain.orders.length) + count;
+            HttpInterceptor[] interceptors = new HttpInterceptor[size];
+            int[] orders = new int[size];
+            for (int i = 0, j = 0, k = 0; k < size; k++) {
+                if (j >= count || chain != null && i < chain.orders.length && chain.orders[i] < otherOrders[j]) {
+                    interceptors[k] = chain.interceptors[i];
+                    orders[k] = chain.orders[i++];
+                } else {
+                    interceptors[k] = others[j];
+                    orders[k] = otherOrders[j++];
+                }
+            }
+            return new Chain(interceptors, orders);
+        }
+
+        @Override
+        public HttpInterceptor get(int index) {
+            return interceptors[index];
+        }
+
+        @Override
+        public int size() {
+            return interceptors.length;
+        }
+    }
+
+    /**
+     * Builds the tries, the rules are the interceptors with a matcher, known by the order they were added in.
+     */
+    static final class Compiler {
+
+        final List<HttpInterceptor> interceptors;
+        final List<HttpRequestMatcher> matchers;
+        final Map<BitSet, PathNode> pathIndexes = new HashMap<>();
+        final Map<BitSet, MethodChains> methodChains = new HashMap<>();
+        final Map<BitSet, Chain> chains = new HashMap<>();
+
+        Compiler(List<HttpInterceptor> interceptors, List<HttpRequestMatcher> matchers) {
+            this.interceptors = interceptors;
+            this.matchers = matchers;
+        }
+
+        HostNode compile() {
+            BitSet anyHost = new BitSet();
+            HostState root = new HostState();
+            for (int rule = 0; rule < matchers.size(); rule++) {
+                HttpRequestMatcher matcher = matchers.get(rule);
+                if (matcher == null) {
+                    continue;
+                } else if (matcher.hosts.isEmpty() && matcher.hostSuffixes.isEmpty()) {
+                    anyHost.set(rule);
+                }
+                for (String host : matcher.hosts) {
+                    root.walk(host).exact.set(rule);
+                }
+                for (String domain : matcher.hostSuffixes) {
+                    root.walk(domain).suffix.set(rule);
+                }
+            }
+            return determinize(Collections.singletonList(root), anyHost);
+        }
+
+        /**
+         * The node of the hosts that reach all the given states, the wildcards of the trie may let a host reach
+         * several of them.
+         */
+        private HostNode determinize(List<HostState> states, BitSet inherited) {
+            BitSet suffix = (BitSet) inherited.clone();
+            BitSet exact = new BitSet();
+            List<HostState> wildcards = new ArrayList<>(1);
+            Set<String> labels = new LinkedHashSet<>();
+            for (HostState state : states) {
+                suffix.or(state.suffix);
+                exact.or(state.exact);
+                if (state.wildcard != null) {
+                    wildcards.add(state.wildcard);
+                }
+                labels.addAll(state.children.keySet());
+            }
+            HostNode node = new HostNode();
+            node.onMiss = pathIndex(suffix);
+            exact.or(suffix);
+            node.onEnd = pathIndex(exact);
+            if (!labels.isEmpty()) {
+                int capacity = Integer.highestOneBit(labels.size() * 2 - 1) << 1;
+                node.labels = new String[capacity];
+                node.nodes = new HostNode[capacity];
+                for (String label : labels) {
+                    List<HostState> next = new ArrayList<>(wildcards);
+                    for (HostState state : states) {
+                        HostState child = state.children.get(label);
+                        if (child != null) {
+                            next.add(child);
+                        }
+                    }
+                    int i = hash(label, 0, label.length()) & (capacity - 1);
+                    while (node.labels[i] != null) {
+                        i = (i + 1) & (capacity - 1);
+                    }
+                    node.labels[i] = label;
+                    node.nodes[i] = determinize(next, suffix);
+                }
+            }
+            if (!wildcards.isEmpty()) {
+                node.wildcard = determinize(wildcards, suffix);
+            }
+            return node;
+        }
+
+        private PathNode pathIndex(BitSet rules) {
+            PathNode pathIndex = pathIndexes.get(rules);
+            if (pathIndex == null) {
+                PathState root = new PathState();
+                for (int rule = rules.nextSetBit(0); rule >= 0; rule = rules.nextSetBit(rule + 1)) {
+                    List<String> prefixes = matchers.get(rule).pathPrefixes;
+                    if (prefixes.isEmpty()) {
+                        root.rules.set(rule);
+                    }
+                    for (String prefix : prefixes) {
+                        root.walk(prefix).rules.set(rule);
+                    }
+                }
+                pathIndex = freeze(root, new BitSet(), true);
+                pathIndexes.put((BitSet) rules.clone(), pathIndex);
+            }
+            return pathIndex;
+        }
+
+        private PathNode freeze(PathState state, BitSet inherited, boolean root) {
+            BitSet rules = (BitSet) inherited.clone();
+            rules.or(state.rules);
+            PathNode node = new PathNode();
+            if (root || !state.rules.isEmpty()) {
+                node.chains = methodChains(rules);
+            }
+            if (!state.children.isEmpty()) {
+                node.keys = new char[state.children.size()];
+                node.nodes = new PathNode[state.children.size()];
+                int i = 0;
+                for (Map.Entry<Character, PathState> entry : state.children.entrySet()) {
+                    node.keys[i] = entry.getKey();
+                    node.nodes[i++] = freeze(entry.getValue(), rules, false);
+                }
+            }
+            return node;
+        }
+
+        private MethodChains methodChains(BitSet rules) {
+            MethodChains result = methodChains.get(rules);
+            if (result == null) {
+                BitSet anyMethod = new BitSet();
+                Map<HttpMethod, BitSet> methodRules = new HashMap<>();
+                for (int rule = rules.nextSetBit(0); rule >= 0; rule = rules.nextSetBit(rule + 1)) {
+                    Set<HttpMethod> methods = matchers.get(rule).methods;
+                    if (methods.isEmpty()) {
+                        anyMethod.set(rule);
+                        for (BitSet bits : methodRules.values()) {
+                            bits.set(rule);
+                        }
+                    }
+                    for (HttpMethod method : methods) {
+                        methodRules.computeIfAbsent(method, m -> (BitSet) anyMethod.clone()).set(rule);
+                    }
+                }
+                Map<HttpMethod, Chain> byMethod = new HashMap<>();
+                for (Map.Entry<HttpMethod, BitSet> entry : methodRules.entrySet()) {
+                    byMethod.put(entry.getKey(), chain(entry.getValue()));
+                }
+                result = new MethodChains(byMethod, chain(anyMethod));
+                methodChains.put((BitSet) rules.clone(), result);
+            }
+            return result;
+        }
+
+        private Chain chain(BitSet rules) {
+            if (rules.isEmpty()) {
+                return null;
+            }
+            Chain chain = chains.get(rules);
+            if (chain == null) {
+                HttpInterceptor[] chainInterceptors = new HttpInterceptor[rules.cardinality()];
+                int[] orders = new int[chainInterceptors.length];
+                for (int rule = rules.nextSetBit(0), i = 0; rule >= 0; rule = rules.nextSetBit(rule + 1), i++) {
+                    chainInterceptors[i] = interceptors.get(rule);
+                    orders[i] = rule;
+                }
+                chain = new Chain(chainInterceptors, orders);
+                chains.put((BitSet) rules.clone(), chain);
+            }
+            return chain;
+        }
+    }
+
+    /**
+     * A node of the host trie as the matchers declare it, {@code *} labels included.
+     */
+    static final class HostState {
+
+        final Map<String, HostState> children = new HashMap<>();
+        HostState wildcard;
+        final BitSet exact = new BitSet();
+        final BitSet suffix = new BitSet();
+
+        HostState walk(String host) {
+            HostState state = this;
+            String[] labels = host.split("\\.");
+            for (int i = labels.length - 1; i >= 0; i--) {
+                String label = labels[i];
+                if ("*".equals(label)) {
+                    state = state.wildcard == null ? state.wildcard = new HostState() : state.wildcard;
+                } else {
+                    state = state.children.computeIfAbsent(label, l -> new HostState());
+                }
+            }
+            return state;
+        }
+    }
+
+    static final class PathState {
+
+        final Map<Character, PathState> children = new TreeMap<>();
+        final BitSet rules = new BitSet();
+
+        PathState walk(String prefix) {
+            PathState state = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                state = state.children.computeIfAbsent(prefix.charAt(i), c -> new PathState());
+            }
+            return state;
+        }
+    }
+}
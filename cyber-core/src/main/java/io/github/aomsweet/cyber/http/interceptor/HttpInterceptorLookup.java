@@ -0,0 +1,27 @@
+package io.github.aomsweet.cyber.http.interceptor;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Matches the interceptors of a request, the read-only side of a {@link HttpInterceptorManager}.
+ *
+ * @author aomsweet
+ */
+public interface HttpInterceptorLookup {
+
+    Queue<HttpInterceptor> matchInterceptor(HttpRequest httpRequest);
+
+    /**
+     * The interceptors of the request in their order, {@code null} if there is none. The list is not modified
+     * by the caller, so it may be shared by the requests.
+     */
+    default List<HttpInterceptor> matchInterceptors(HttpRequest httpRequest) {
+        Queue<HttpInterceptor> interceptors = matchInterceptor(httpRequest);
+        return interceptors == null ? null : new ArrayList<>(interceptors);
+    }
+
+}
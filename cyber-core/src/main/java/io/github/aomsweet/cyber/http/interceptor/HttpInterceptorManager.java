@@ -15,17 +15,19 @@
  */
 package io.github.aomsweet.cyber.http.interceptor;
 
-import io.netty.handler.codec.http.HttpRequest;
-
-import java.util.Queue;
-
 /**
  * @author aomsweet
  */
-public interface HttpInterceptorManager {
+public interface HttpInterceptorManager extends HttpInterceptorLookup {
 
     HttpInterceptorManager addInterceptor(HttpInterceptor interceptor);
 
-    Queue<HttpInterceptor> matchInterceptor(HttpRequest httpRequest);
+    /**
+     * The interceptors as they are now. A connection takes a snapshot when it starts and matches all its
+     * requests against it, even if the interceptors are changed in the meantime.
+     */
+    default HttpInterceptorLookup snapshot() {
+        return this;
+    }
 
 }
@@ -0,0 +1,120 @@
+package io.github.aomsweet.cyber.http.interceptor;
+
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.*;
+
+/**
+ * An immutable set of interceptors, which {@link DefaultHttpInterceptorManager} publishes with a single write.
+ * Interceptors are added to the manager, or to the {@link Builder} of a new rule set.
+ * A connection keeps the rule set it started with, see {@link HttpInterceptorManager#snapshot()}.
+ * <p>
+ * The index of a rule set is compiled once, by {@link Builder#build()} or on its first match.
+ *
+ * @author aomsweet
+ */
+public final class HttpInterceptorRuleSet implements HttpInterceptorLookup {
+
+    public static final HttpInterceptorRuleSet EMPTY = new HttpInterceptorRuleSet(
+        Collections.emptyList(), Collections.emptyList());
+
+    final List<HttpInterceptor> interceptors;
+    final List<HttpRequestMatcher> matchers;
+    volatile HttpInterceptorIndex index;
+
+    HttpInterceptorRuleSet(List<HttpInterceptor> interceptors, List<HttpRequestMatcher> matchers) {
+        this.interceptors = Collections.unmodifiableList(interceptors);
+        this.matchers = Collections.unmodifiableList(matchers);
+    }
+
+    HttpInterceptorRuleSet with(HttpRequestMatcher matcher, HttpInterceptor interceptor) {
+        List<HttpInterceptor> interceptors = new ArrayList<>(this.interceptors);
+        List<HttpRequestMatcher> matchers = new ArrayList<>(this.matchers);
+        interceptors.add(Objects.requireNonNull(interceptor));
+        matchers.add(matcher);
+        return new HttpInterceptorRuleSet(interceptors, matchers);
+    }
+
+    HttpInterceptorRuleSet without(HttpInterceptor interceptor) {
+        List<HttpInterceptor> interceptors = new ArrayList<>(this.interceptors.size());
+        List<HttpRequestMatcher> matchers = new ArrayList<>(this.matchers.size());
+        for (int i = 0; i < this.interceptors.size(); i++) {
+            if (this.interceptors.get(i) != interceptor) {
+                interceptors.add(this.interceptors.get(i));
+                matchers.add(this.matchers.get(i));
+            }
+        }
+        return interceptors.size() == this.interceptors.size() ? this : new HttpInterceptorRuleSet(interceptors, matchers);
+    }
+
+    /**
+     * Compiles the index now rather than on the first match.
+     */
+    public HttpInterceptorRuleSet compile() {
+        getIndex();
+        return this;
+    }
+
+    HttpInterceptorIndex getIndex() {
+        HttpInterceptorIndex index = this.index;
+        if (index == null) {
+            synchronized (this) {
+                if ((index = this.index) == null) {
+                    this.index = index = new HttpInterceptorIndex(interceptors, matchers);
+                }
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public Queue<HttpInterceptor> matchInterceptor(HttpRequest httpRequest) {
+        List<HttpInterceptor> interceptors = matchInterceptors(httpRequest);
+        return interceptors == null ? null : new ArrayDeque<>(interceptors);
+    }
+
+    @Override
+    public List<HttpInterceptor> matchInterceptors(HttpRequest httpRequest) {
+        return getIndex().match(httpRequest);
+    }
+
+    public List<HttpInterceptor> getInterceptors() {
+        return interceptors;
+    }
+
+    public int size() {
+        return interceptors.size();
+    }
+
+    /**
+     * Builder
+     */
+    public static class Builder {
+
+        final List<HttpInterceptor> interceptors = new ArrayList<>();
+        final List<HttpRequestMatcher> matchers = new ArrayList<>();
+
+        /**
+         * An interceptor whose {@link HttpInterceptor#match} is asked for every request.
+         */
+        public Builder withInterceptor(HttpInterceptor interceptor) {
+            return withInterceptor(null, interceptor);
+        }
+
+        /**
+         * An interceptor of the requests that the matcher matches.
+         */
+        public Builder withInterceptor(HttpRequestMatcher matcher, HttpInterceptor interceptor) {
+            interceptors.add(Objects.requireNonNull(interceptor));
+            matchers.add(matcher);
+            return this;
+        }
+
+        /**
+         * Builds the rule set and compiles its index on the calling thread.
+         */
+        public HttpInterceptorRuleSet build() {
+            return new HttpInterceptorRuleSet(new ArrayList<>(interceptors), new ArrayList<>(matchers)).compile();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.aomsweet.cyber.http.interceptor;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+import java.util.*;
+
+/**
+ * Declares the requests of an interceptor, so that {@link DefaultHttpInterceptorManager} can index it instead
+ * of asking {@link HttpInterceptor#match} for every request.
+ * <p>
+ * A request matches if its host matches one of the hosts, its method is one of the methods and its path
+ * starts with one of the path prefixes. A criterion without any value matches all the requests.
+ *
+ * @author aomsweet
+ */
+public final class HttpRequestMatcher {
+
+    final List<String> hosts;
+    final List<String> hostSuffixes;
+    final Set<HttpMethod> methods;
+    final List<String> pathPrefixes;
+
+    HttpRequestMatcher(Builder builder) {
+        this.hosts = Collections.unmodifiableList(new ArrayList<>(builder.hosts));
+        this.hostSuffixes = Collections.unmodifiableList(new ArrayList<>(builder.hostSuffixes));
+        this.methods = Collections.unmodifiableSet(new LinkedHashSet<>(builder.methods));
+        this.pathPrefixes = Collections.unmodifiableList(new ArrayList<>(builder.pathPrefixes));
+    }
+
+    static String normalizeHost(String host) {
+        host = host.trim().toLowerCase(Locale.ROOT);
+        if (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        if (host.isEmpty()) {
+            throw new IllegalArgumentException("Empty host.");
+        }
+        return host;
+    }
+
+    public List<String> getHosts() {
+        return hosts;
+    }
+
+    public List<String> getHostSuffixes() {
+        return hostSuffixes;
+    }
+
+    public Set<HttpMethod> getMethods() {
+        return methods;
+    }
+
+    public List<String> getPathPrefixes() {
+        return pathPrefixes;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpRequestMatcher{" +
+            "hosts=" + hosts +
+            ", hostSuffixes=" + hostSuffixes +
+            ", methods=" + methods +
+            ", pathPrefixes=" + pathPrefixes +
+            '}';
+    }
+
+    public static class Builder {
+
+        final List<String> hosts = new ArrayList<>(2);
+        final List<String> hostSuffixes = new ArrayList<>(2);
+        final Set<HttpMethod> methods = new LinkedHashSet<>(2);
+        final List<String> pathPrefixes = new ArrayList<>(2);
+
+        /**
+         * A host without its port, such as {@code example.com}. A {@code *} label stands for any single label,
+         * {@code *.example.com} matches {@code www.example.com} but neither {@code example.com} nor
+         * {@code a.b.example.com}.
+         */
+        public Builder withHost(String... hosts) {
+            for (String host : hosts) {
+                this.hosts.add(normalizeHost(host));
+            }
+            return this;
+        }
+
+        /**
+         * A domain and all its subdomains, {@code example.com} matches {@code example.com} and
+         * {@code a.b.example.com}.
+         */
+        public Builder withHostSuffix(String... domains) {
+            for (String domain : domains) {
+                domain = normalizeHost(domain);
+                hostSuffixes.add(domain.startsWith(".") ? domain.substring(1) : domain);
+            }
+            return this;
+        }
+
+        public Builder withMethod(HttpMethod... methods) {
+            this.methods.addAll(Arrays.asList(methods));
+            return this;
+        }
+
+        /**
+         * A prefix of the path, which is compared as is, without the query.
+         */
+        public Builder withPathPrefix(String... pathPrefixes) {
+            for (String pathPrefix : pathPrefixes) {
+                this.pathPrefixes.add(Objects.requireNonNull(pathPrefix));
+            }
+            return this;
+        }
+
+        public HttpRequestMatcher build() {
+            return new HttpRequestMatcher(this);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package io.github.aomsweet.cyber.http.interceptor;
+
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMessage;
+
+/**
+ * Intercepts the content of a message chunk by chunk as it is relayed, instead of aggregating it like a
+ * {@link FullHttpMessageInterceptor}.
+ *
+ * @author aomsweet
+ */
+public abstract class StreamingHttpMessageInterceptor {
+
+    /**
+     * Called with every chunk of the content, the last one included.
+     *
+     * @return the content to relay, the given one, another one or {@code null} to drop it. The given content
+     * must be released if it is not returned. The end of the message is relayed even if the last content is
+     * dropped.
+     */
+    public HttpContent handleContent(HttpContent httpContent, HttpContentStream stream) throws Exception {
+        return httpContent;
+    }
+
+    /**
+     * Called once the stream is over, after its last content or once the message is cut short, aborted
+     * streams included. What the data of the stream holds can be released here.
+     */
+    public void streamEnded(HttpContentStream stream) {
+    }
+
+    HttpContentStreamHandler.Stream newStream(ChannelPipeline pipeline, HttpMessage message) {
+        return HttpContentStreamHandler.of(pipeline, message).newStream(this);
+    }
+
+}
@@ -0,0 +1,24 @@
+package io.github.aomsweet.cyber.http.interceptor;
+
+import io.github.aomsweet.cyber.http.HttpChannelContext;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * @author aomsweet
+ */
+public abstract class StreamingHttpRequestInterceptor extends StreamingHttpMessageInterceptor
+    implements HttpRequestInterceptor {
+
+    @Override
+    public final boolean preHandle(HttpRequest httpRequest, HttpChannelContext context) throws Exception {
+        HttpContentStreamHandler.Stream stream = newStream(context.getClientChannel().pipeline(), httpRequest);
+        if (preHandle(httpRequest, stream, context)) {
+            stream.start();
+            return true;
+        }
+        return false;
+    }
+
+    public abstract boolean preHandle(HttpRequest httpRequest, HttpContentStream stream, HttpChannelContext context) throws Exception;
+
+}
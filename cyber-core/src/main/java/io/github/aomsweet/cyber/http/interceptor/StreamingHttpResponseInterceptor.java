@@ -0,0 +1,26 @@
+package io.github.aomsweet.cyber.http.interceptor;
+
+import io.github.aomsweet.cyber.http.HttpChannelContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * @author aomsweet
+ */
+public abstract class StreamingHttpResponseInterceptor extends StreamingHttpMessageInterceptor
+    implements HttpResponseInterceptor {
+
+    @Override
+    public final boolean preHandle(HttpRequest httpRequest, HttpResponse httpResponse, HttpChannelContext context) throws Exception {
+        HttpContentStreamHandler.Stream stream = newStream(context.getServerChannel().pipeline(), httpResponse);
+        if (preHandle(httpRequest, httpResponse, stream, context)) {
+            stream.start();
+            return true;
+        }
+        return false;
+    }
+
+    public abstract boolean preHandle(HttpRequest httpRequest, HttpResponse httpResponse, HttpContentStream stream,
+                                      HttpChannelContext context) throws Exception;
+
+}
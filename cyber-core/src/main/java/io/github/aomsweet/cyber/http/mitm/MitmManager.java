@@ -18,6 +18,7 @@ package io.github.aomsweet.cyber.http.mitm;
 import io.netty.handler.ssl.SslContext;
 
 import java.security.cert.X509Certificate;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author aomsweet
@@ -26,6 +27,21 @@ public interface MitmManager {
 
     SslContext serverSslContext(String host) throws Exception;
 
+    /**
+     * Returns the server SSL context of the host without blocking the event loop. Implementations
+     * that generate certificates should complete it off the caller thread. The default one just
+     * calls {@link #serverSslContext(String)} in place.
+     */
+    default CompletableFuture<SslContext> asyncServerSslContext(String host) {
+        CompletableFuture<SslContext> future = new CompletableFuture<>();
+        try {
+            future.complete(serverSslContext(host));
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
     X509Certificate getIssuerCertificate();
 
 }
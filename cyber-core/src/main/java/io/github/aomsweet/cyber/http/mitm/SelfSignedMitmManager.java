@@ -15,13 +15,15 @@
  */
 package io.github.aomsweet.cyber.http.mitm;
 
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.*;
 
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.security.KeyFactory;
 import java.security.PrivateKey;
+import java.security.SecureRandom;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.EncodedKeySpec;
@@ -35,7 +37,13 @@ public class SelfSignedMitmManager implements MitmManager {
     protected PrivateKey issuerPrivateKey;
     protected X509Certificate issuerCertificate;
 
-    private SslContext defaultServerSslContext;
+    protected SslProvider sslProvider;
+    protected long sessionCacheSize;
+    protected long sessionTimeout;
+    protected OpenSslSessionTicketKey[] ticketKeys;
+    protected boolean http2Enabled;
+
+    private volatile SslContext defaultServerSslContext;
 
     public SelfSignedMitmManager() throws Exception {
         loadRootCertificate();
@@ -50,7 +58,41 @@ public class SelfSignedMitmManager implements MitmManager {
 
     @Override
     public SslContext serverSslContext(String host) throws Exception {
-        return defaultServerSslContext;
+        SslContext sslContext = defaultServerSslContext;
+        if (sslContext == null) {
+            synchronized (this) {
+                if ((sslContext = defaultServerSslContext) == null) {
+                    loadDefaultServerSslContext();
+                    sslContext = defaultServerSslContext;
+                }
+            }
+        }
+        return sslContext;
+    }
+
+    /**
+     * Builds a server context with the configured provider and session settings. All the contexts
+     * share the same ticket keys, so tickets stay valid when a context is rebuilt.
+     */
+    protected SslContext newServerSslContext(PrivateKey key, X509Certificate... keyCertChain) throws SSLException {
+        // Cached contexts are dropped without an owner to release them, so they must not be reference counted.
+        SslProvider provider = sslProvider == SslProvider.OPENSSL_REFCNT ? SslProvider.OPENSSL : sslProvider;
+        SslContextBuilder builder = SslContextBuilder.forServer(key, keyCertChain)
+            .sslProvider(provider)
+            .sessionCacheSize(sessionCacheSize)
+            .sessionTimeout(sessionTimeout);
+        if (http2Enabled) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1));
+        }
+        SslContext sslContext = builder.build();
+        SSLSessionContext sessionContext = sslContext.sessionContext();
+        if (sessionContext instanceof OpenSslSessionContext) {
+            ((OpenSslSessionContext) sessionContext).setTicketKeys(getTicketKeys());
+        }
+        return sslContext;
     }
 
     @Override
@@ -59,16 +101,41 @@ public class SelfSignedMitmManager implements MitmManager {
     }
 
     private void loadDefaultServerSslContext() throws SSLException {
-        this.defaultServerSslContext = SslContextBuilder.forServer(issuerPrivateKey, issuerCertificate).build();
+        this.defaultServerSslContext = newServerSslContext(issuerPrivateKey, issuerCertificate);
+    }
+
+    /**
+     * Called when the provider or the session settings change, the contexts built so far are stale.
+     */
+    protected void serverSslContextSettingsChanged() {
+        this.defaultServerSslContext = null;
+    }
+
+    private synchronized OpenSslSessionTicketKey[] getTicketKeys() {
+        if (ticketKeys == null) {
+            SecureRandom random = new SecureRandom();
+            byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+            byte[] hmacKey = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+            byte[] aesKey = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+            random.nextBytes(name);
+            random.nextBytes(hmacKey);
+            random.nextBytes(aesKey);
+            ticketKeys = new OpenSslSessionTicketKey[]{new OpenSslSessionTicketKey(name, hmacKey, aesKey)};
+        }
+        return ticketKeys;
     }
 
     private void loadRootCertificate(InputStream certInputStream, InputStream keyInputStream) throws Exception {
         CertificateFactory cf = CertificateFactory.getInstance("X.509");
         this.issuerCertificate = (X509Certificate) cf.generateCertificate(certInputStream);
 
-        byte[] bytes = new byte[keyInputStream.available()];
-        keyInputStream.read(bytes);
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+        byte[] buffer = new byte[2048];
+        for (int n = keyInputStream.read(buffer); n != -1; n = keyInputStream.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        byte[] bytes = out.toByteArray();
+        KeyFactory keyFactory = KeyFactory.getInstance(issuerCertificate.getPublicKey().getAlgorithm());
         EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(bytes);
         this.issuerPrivateKey = keyFactory.generatePrivate(privateKeySpec);
     }
@@ -81,4 +148,71 @@ public class SelfSignedMitmManager implements MitmManager {
         }
     }
 
+    /*
+    #####################################################################################
+    ################################## Getter | Setter ##################################
+    #####################################################################################
+     */
+
+    public SslProvider getSslProvider() {
+        return sslProvider;
+    }
+
+    /**
+     * The provider of the server contexts, {@code null} for the Netty default.
+     * {@link SslProvider#OPENSSL_REFCNT} is used as {@link SslProvider#OPENSSL}.
+     */
+    public SelfSignedMitmManager setSslProvider(SslProvider sslProvider) {
+        this.sslProvider = sslProvider;
+        serverSslContextSettingsChanged();
+        return this;
+    }
+
+    public long getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * The session cache size of each server context, {@code 0} for the provider default.
+     */
+    public SelfSignedMitmManager setSessionCacheSize(long sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+        serverSslContextSettingsChanged();
+        return this;
+    }
+
+    public long getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * The session timeout of each server context in seconds, {@code 0} for the provider default.
+     */
+    public SelfSignedMitmManager setSessionTimeout(long sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+        serverSslContextSettingsChanged();
+        return this;
+    }
+
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    /**
+     * Offers h2 before http/1.1 over ALPN, the clients that do not use ALPN keep speaking HTTP/1.1.
+     */
+    public SelfSignedMitmManager setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+        serverSslContextSettingsChanged();
+        return this;
+    }
+
+    /**
+     * Shares the session ticket keys with other instances, only used by the OpenSSL provider.
+     */
+    public synchronized SelfSignedMitmManager setTicketKeys(OpenSslSessionTicketKey... ticketKeys) {
+        this.ticketKeys = ticketKeys;
+        serverSslContextSettingsChanged();
+        return this;
+    }
 }
@@ -0,0 +1,200 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http.mitm;
+
+import io.netty.handler.ssl.SslContext;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of the generated server SSL contexts, evicting the least recently used entry
+ * once the maximum size is reached and any entry older than the expiry.
+ *
+ * @author aomsweet
+ */
+public class SslContextCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 4096;
+    public static final long DEFAULT_EXPIRE_AFTER_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    final int maximumSize;
+    final long expireAfterMillis;
+    final LinkedHashMap<String, Entry> entries;
+
+    long hitCount;
+    long missCount;
+    long evictionCount;
+
+    public SslContextCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_MILLIS);
+    }
+
+    /**
+     * @param maximumSize       the maximum number of hosts to keep
+     * @param expireAfterMillis the lifetime of an entry since its certificate was created, {@code 0} to never expire
+     */
+    public SslContextCache(int maximumSize, long expireAfterMillis) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize: " + maximumSize + " (expected: > 0)");
+        }
+        this.maximumSize = maximumSize;
+        this.expireAfterMillis = expireAfterMillis;
+        this.entries = new LinkedHashMap<String, Entry>(Math.min(maximumSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > SslContextCache.this.maximumSize) {
+                    evictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized Entry get(String host) {
+        Entry entry = entries.get(host);
+        if (entry == null) {
+            missCount++;
+        } else if (isExpired(entry, System.currentTimeMillis())) {
+            entries.remove(host);
+            evictionCount++;
+            missCount++;
+            entry = null;
+        } else {
+            hitCount++;
+        }
+        return entry;
+    }
+
+    public synchronized void put(String host, Entry entry) {
+        entries.put(host, entry);
+    }
+
+    public synchronized void invalidate(String host) {
+        entries.remove(host);
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Removes the expired entries.
+     */
+    public synchronized void cleanUp() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            if (isExpired(iterator.next(), now)) {
+                iterator.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the live entries, from the least to the most recently used.
+     */
+    public synchronized Map<String, Entry> snapshot() {
+        Map<String, Entry> snapshot = new LinkedHashMap<>(entries.size());
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (!isExpired(entry.getValue(), now)) {
+                snapshot.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return snapshot;
+    }
+
+    public boolean isExpired(Entry entry, long now) {
+        return isExpired(entry.creationTime, now);
+    }
+
+    public boolean isExpired(long creationTime, long now) {
+        return expireAfterMillis > 0 && now - creationTime >= expireAfterMillis;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getExpireAfterMillis() {
+        return expireAfterMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SslContextCache{" +
+            "size=" + entries.size() +
+            ", maximumSize=" + maximumSize +
+            ", hitCount=" + hitCount +
+            ", missCount=" + missCount +
+            ", evictionCount=" + evictionCount +
+            '}';
+    }
+
+    /**
+     * The server SSL context of a host together with the key material it was built from.
+     */
+    public static final class Entry {
+
+        final SslContext sslContext;
+        final PrivateKey privateKey;
+        final X509Certificate certificate;
+        final long creationTime;
+
+        public Entry(SslContext sslContext, PrivateKey privateKey, X509Certificate certificate, long creationTime) {
+            this.sslContext = Objects.requireNonNull(sslContext, "sslContext");
+            this.privateKey = privateKey;
+            this.certificate = certificate;
+            this.creationTime = creationTime;
+        }
+
+        public SslContext getSslContext() {
+            return sslContext;
+        }
+
+        public PrivateKey getPrivateKey() {
+            return privateKey;
+        }
+
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        public long getCreationTime() {
+            return creationTime;
+        }
+    }
+}
@@ -60,4 +60,8 @@ public final class Socks4ClientRelayHandler extends ClientRelayHandler<Socks4Com
         }
     }
 
+    @Override
+    protected boolean isSpliceable() {
+        return true;
+    }
 }
@@ -96,4 +96,8 @@ public final class Socks5ClientRelayHandler extends ClientRelayHandler<Socks5Com
         }
     }
 
+    @Override
+    protected boolean isSpliceable() {
+        return true;
+    }
 }
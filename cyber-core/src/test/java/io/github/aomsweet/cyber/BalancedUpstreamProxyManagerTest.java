@@ -0,0 +1,93 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.github.aomsweet.cyber.BalancedUpstreamProxyManager.CircuitState;
+import io.github.aomsweet.cyber.BalancedUpstreamProxyManager.ProxyHealth;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author aomsweet
+ */
+public class BalancedUpstreamProxyManagerTest {
+
+    BalancedUpstreamProxyManager manager;
+    ServerSocket serverSocket;
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (manager != null) {
+            manager.close();
+        }
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+    }
+
+    @Test
+    public void isolatedProbeFailuresDoNotOpenTheCircuit() {
+        manager = new BalancedUpstreamProxyManager.Builder()
+            .withProxy(proxy(InetSocketAddress.createUnresolved("proxy.test", 8080)))
+            .withProbeIntervalMillis(0)
+            .build();
+        ProxyHealth proxy = manager.getProxies().get(0);
+        for (int i = 0; i < 3; i++) {
+            proxy.probeFailed();
+            proxy.probeFailed();
+            proxy.probeSucceeded();
+        }
+        assertEquals(CircuitState.CLOSED, proxy.getCircuitState());
+        proxy.probeFailed();
+        proxy.probeFailed();
+        proxy.probeFailed();
+        assertEquals(CircuitState.OPEN, proxy.getCircuitState());
+    }
+
+    @Test
+    public void probeResolvesTheProxiesGivenByName() throws Exception {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        ServerSocket closed = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        closed.close();
+        manager = new BalancedUpstreamProxyManager.Builder()
+            .withProxy(proxy(InetSocketAddress.createUnresolved("localhost", serverSocket.getLocalPort())))
+            .withProxy(proxy(new InetSocketAddress(InetAddress.getLoopbackAddress(), closed.getLocalPort())))
+            .withFailureThreshold(1)
+            .withProbeIntervalMillis(50)
+            .build();
+        ProxyHealth reachable = manager.getProxies().get(0);
+        ProxyHealth unreachable = manager.getProxies().get(1);
+        for (int i = 0; i < 100 && unreachable.getCircuitState() != CircuitState.OPEN; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(CircuitState.OPEN, unreachable.getCircuitState());
+        // The probes of the round before the refused one are done as well.
+        Thread.sleep(200);
+        assertEquals(CircuitState.CLOSED, reachable.getCircuitState());
+        assertEquals(0, reachable.getFailureCount());
+    }
+
+    static UpstreamProxy proxy(InetSocketAddress socketAddress) {
+        return new UpstreamProxy(UpstreamProxy.Protocol.HTTP, socketAddress);
+    }
+}
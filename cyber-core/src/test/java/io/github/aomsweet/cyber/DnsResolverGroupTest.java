@@ -0,0 +1,159 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.*;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.ResolvedAddressTypes;
+import io.netty.util.NetUtil;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Resolves against a stand-in DNS server on the loopback interface, which knows a single name.
+ *
+ * @author aomsweet
+ */
+public class DnsResolverGroupTest {
+
+    static final String KNOWN_NAME = "cyber.test.";
+    static final byte[] KNOWN_ADDRESS = {10, 1, 2, 3};
+
+    EventLoopGroup eventLoopGroup;
+    Channel dnsServerChannel;
+    AtomicInteger queries = new AtomicInteger();
+    DnsResolverGroup resolverGroup;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        eventLoopGroup = new NioEventLoopGroup(1);
+        dnsServerChannel = new Bootstrap()
+            .group(eventLoopGroup)
+            .channel(NioDatagramChannel.class)
+            .handler(new ChannelInitializer<DatagramChannel>() {
+                @Override
+                protected void initChannel(DatagramChannel ch) {
+                    ch.pipeline().addLast(new DatagramDnsQueryDecoder(), new DatagramDnsResponseEncoder(),
+                        new StandInDnsServerHandler());
+                }
+            })
+            .bind(NetUtil.LOCALHOST4, 0).sync().channel();
+        resolverGroup = new DnsResolverGroup.Builder(Transport.NIO)
+            .withNameServers((InetSocketAddress) dnsServerChannel.localAddress())
+            .withResolvedAddressTypes(ResolvedAddressTypes.IPV4_ONLY)
+            .withQueryTimeoutMillis(2000)
+            .build();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        resolverGroup.close();
+        dnsServerChannel.close().sync();
+        eventLoopGroup.shutdownGracefully(0, 0, TimeUnit.SECONDS).sync();
+    }
+
+    @Test
+    public void resolvesAndCachesTheAnswer() throws Exception {
+        assertArrayEquals(KNOWN_ADDRESS, resolve("cyber.test").getAddress().getAddress());
+        assertArrayEquals(KNOWN_ADDRESS, resolve("cyber.test").getAddress().getAddress());
+        assertEquals(1, queries.get());
+
+        resolverGroup.clearCache();
+        assertArrayEquals(KNOWN_ADDRESS, resolve("cyber.test").getAddress().getAddress());
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void cachesTheFailures() throws Exception {
+        Future<InetSocketAddress> future = resolveAsync("unknown.test");
+        assertTrue(future.await(5, TimeUnit.SECONDS));
+        assertInstanceOf(UnknownHostException.class, future.cause());
+        int count = queries.get();
+        assertTrue(count > 0);
+
+        future = resolveAsync("unknown.test");
+        assertTrue(future.await(5, TimeUnit.SECONDS));
+        assertInstanceOf(UnknownHostException.class, future.cause());
+        assertEquals(count, queries.get());
+    }
+
+    @Test
+    public void leavesResolvedAddressesAlone() throws Exception {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByAddress(KNOWN_ADDRESS), 80);
+        assertSame(address, resolveAsync(address).sync().getNow());
+        assertEquals(0, queries.get());
+    }
+
+    InetSocketAddress resolve(String host) throws Exception {
+        InetSocketAddress address = resolveAsync(host).get(5, TimeUnit.SECONDS);
+        assertEquals(80, address.getPort());
+        return address;
+    }
+
+    Future<InetSocketAddress> resolveAsync(String host) {
+        return resolveAsync(InetSocketAddress.createUnresolved(host, 80));
+    }
+
+    Future<InetSocketAddress> resolveAsync(InetSocketAddress address) {
+        EventLoop eventLoop = eventLoopGroup.next();
+        AddressResolver<InetSocketAddress> resolver = resolverGroup.getResolver(eventLoop);
+        return resolver.resolve(address);
+    }
+
+    /**
+     * Answers the A query of {@link #KNOWN_NAME}, every other name does not exist.
+     */
+    class StandInDnsServerHandler extends SimpleChannelInboundHandler<DatagramDnsQuery> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramDnsQuery query) {
+            queries.incrementAndGet();
+            DnsQuestion question = query.recordAt(DnsSection.QUESTION);
+            DatagramDnsResponse response = new DatagramDnsResponse(query.recipient(), query.sender(), query.id());
+            response.setRecursionDesired(query.isRecursionDesired());
+            response.setRecursionAvailable(true);
+            response.addRecord(DnsSection.QUESTION, question);
+            if (KNOWN_NAME.equalsIgnoreCase(question.name()) && question.type() == DnsRecordType.A) {
+                response.addRecord(DnsSection.ANSWER, new DefaultDnsRawRecord(question.name(), DnsRecordType.A,
+                    60, Unpooled.wrappedBuffer(KNOWN_ADDRESS)));
+            } else {
+                response.setCode(DnsResponseCode.NXDOMAIN);
+            }
+            ctx.writeAndFlush(response);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.proxy.ProxyConnectException;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author aomsweet
+ */
+public class UpstreamTunnelHandlerTest {
+
+    static final InetSocketAddress PROXY_ADDRESS = InetSocketAddress.createUnresolved("proxy.test", 1080);
+    static final InetSocketAddress SERVER_ADDRESS = InetSocketAddress.createUnresolved("smtp.test", 25);
+
+    EmbeddedChannel channel;
+
+    @AfterEach
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void httpTunnelKeepsTheBytesSentWithTheReply() {
+        UpstreamTunnelHandler handler = warmUp(UpstreamProxy.Protocol.HTTP);
+        assertTrue(handler.warmFuture().isSuccess());
+
+        CompleteChannelPromise promise = tunnel(handler);
+        assertTrue(readOutbound().startsWith("CONNECT smtp.test:25 HTTP/1.1\r\n"));
+        assertFalse(promise.isDone());
+
+        channel.writeInbound(buffer("HTTP/1.1 200 Connection established\r\n\r\n220 smtp.test ESMTP\r\n"));
+        assertTrue(promise.isSuccess());
+        assertEquals("220 smtp.test ESMTP\r\n", dockRelay());
+    }
+
+    @Test
+    public void httpTunnelFailsOnAnErrorStatus() {
+        UpstreamTunnelHandler handler = warmUp(UpstreamProxy.Protocol.HTTP);
+        CompleteChannelPromise promise = tunnel(handler);
+        readOutbound();
+
+        channel.writeInbound(buffer("HTTP/1.1 407 Proxy Authentication Required\r\nContent-Length: 0\r\n\r\n"));
+        assertInstanceOf(ProxyConnectException.class, promise.cause());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void socks5TunnelKeepsTheBytesSentWithTheReply() {
+        UpstreamTunnelHandler handler = warmUp(UpstreamProxy.Protocol.SOCKS5);
+        assertArrayEquals(new byte[]{5, 1, 0}, readOutboundBytes());
+        assertFalse(handler.warmFuture().isDone());
+
+        channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{5, 0}));
+        assertTrue(handler.warmFuture().isSuccess());
+
+        CompleteChannelPromise promise = tunnel(handler);
+        byte[] request = readOutboundBytes();
+        assertEquals(5, request[0]);
+        assertEquals(1, request[1]);
+        assertFalse(promise.isDone());
+
+        ByteBuf reply = Unpooled.buffer();
+        reply.writeBytes(new byte[]{5, 0, 0, 1, 127, 0, 0, 1, 0, 25});
+        reply.writeCharSequence("SSH-2.0-OpenSSH_8.9\r\n", CharsetUtil.US_ASCII);
+        channel.writeInbound(reply);
+        assertTrue(promise.isSuccess());
+        assertEquals("SSH-2.0-OpenSSH_8.9\r\n", dockRelay());
+    }
+
+    @Test
+    public void readyTunnelIsClosedIfTheProxySpeaksFirst() {
+        UpstreamTunnelHandler handler = warmUp(UpstreamProxy.Protocol.HTTP);
+        assertTrue(handler.warmFuture().isSuccess());
+
+        channel.writeInbound(buffer("HTTP/1.1 408 Request Timeout\r\n\r\n"));
+        assertFalse(channel.isOpen());
+    }
+
+    UpstreamTunnelHandler warmUp(UpstreamProxy.Protocol protocol) {
+        channel = new EmbeddedChannel();
+        UpstreamTunnelHandler handler = UpstreamTunnelHandler.newInstance(new UpstreamProxy(protocol, PROXY_ADDRESS),
+            channel.eventLoop(), 0);
+        channel.pipeline().addLast(handler);
+        // The channel was already active when the handler was added.
+        channel.pipeline().fireChannelActive();
+        return handler;
+    }
+
+    CompleteChannelPromise tunnel(UpstreamTunnelHandler handler) {
+        CompleteChannelPromise promise = new CompleteChannelPromise(channel.eventLoop());
+        handler.tunnel(SERVER_ADDRESS, promise);
+        return promise;
+    }
+
+    /**
+     * Does what docking the relay does to the pipeline, returns what the relay received.
+     */
+    String dockRelay() {
+        assertNotNull(channel.pipeline().get(HandlerNames.TUNNEL));
+        assertNull(channel.pipeline().get(UpstreamTunnelHandler.class));
+        // Nothing gets past the tunnel handler before the relay is there.
+        assertNull(channel.readInbound());
+
+        List<ByteBuf> received = new ArrayList<>();
+        channel.pipeline().addLast(HandlerNames.RELAY, new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                received.add((ByteBuf) msg);
+            }
+        });
+        channel.pipeline().remove(HandlerNames.TUNNEL);
+
+        StringBuilder builder = new StringBuilder();
+        for (ByteBuf buf : received) {
+            builder.append(buf.toString(CharsetUtil.US_ASCII));
+            buf.release();
+        }
+        return builder.toString();
+    }
+
+    String readOutbound() {
+        ByteBuf buf = channel.readOutbound();
+        try {
+            return buf.toString(CharsetUtil.US_ASCII);
+        } finally {
+            buf.release();
+        }
+    }
+
+    byte[] readOutboundBytes() {
+        ByteBuf buf = channel.readOutbound();
+        try {
+            byte[] bytes = new byte[buf.readableBytes()];
+            buf.readBytes(bytes);
+            return bytes;
+        } finally {
+            buf.release();
+        }
+    }
+
+    static ByteBuf buffer(String s) {
+        return Unpooled.copiedBuffer(s, CharsetUtil.US_ASCII);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http;
+
+import io.github.aomsweet.cyber.ChannelManager;
+import io.github.aomsweet.cyber.CyberServer;
+import io.github.aomsweet.cyber.HandlerNames;
+import io.github.aomsweet.cyber.UpstreamProxy;
+import io.github.aomsweet.cyber.http.cache.HttpCacheInterceptor;
+import io.github.aomsweet.cyber.http.interceptor.DefaultHttpInterceptorManager;
+import io.github.aomsweet.cyber.http.interceptor.HttpInterceptor;
+import io.github.aomsweet.cyber.http.interceptor.HttpRequestInterceptor;
+import io.github.aomsweet.cyber.http.interceptor.HttpResponseInterceptor;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Relays between an embedded client channel and an embedded channel per origin server, to follow the
+ * exchanges of pipelined requests.
+ *
+ * @author aomsweet
+ */
+public class HttpClientRelayHandlerTest {
+
+    final Map<String, EmbeddedChannel> servers = new HashMap<>();
+    final Map<Channel, Boolean> released = new LinkedHashMap<>();
+    final List<String> intercepted = new ArrayList<>();
+    EmbeddedChannel client;
+
+    @AfterEach
+    public void tearDown() {
+        client.finishAndReleaseAll();
+        for (EmbeddedChannel server : servers.values()) {
+            server.finishAndReleaseAll();
+        }
+    }
+
+    @Test
+    public void responsesArePairedWithTheirRequestsInOrder() {
+        connect(16);
+        client.writeInbound(request("a.test", "/one"), request("a.test", "/two"));
+        EmbeddedChannel server = servers.get("a.test");
+        assertEquals(Arrays.asList("GET /one", "GET /two"), readRequestLines(server));
+
+        server.writeInbound(response("one"));
+        assertEquals(Collections.singletonList("/one 200"), intercepted);
+        server.writeInbound(response("two"));
+        assertEquals(Arrays.asList("/one 200", "/two 200"), intercepted);
+        assertEquals(Arrays.asList("one", "two"), readResponseContents());
+    }
+
+    @Test
+    public void answeredResponseWaitsForTheResponsesBeforeIt() {
+        connect(16);
+        client.writeInbound(request("a.test", "/one"), request("a.test", "/answered"));
+        EmbeddedChannel server = servers.get("a.test");
+        assertEquals(Collections.singletonList("GET /one"), readRequestLines(server));
+        assertTrue(readResponseContents().isEmpty());
+
+        server.writeInbound(response("one"));
+        assertEquals(Arrays.asList("one", "answered"), readResponseContents());
+        assertEquals(Collections.singletonList("/one 200"), intercepted);
+    }
+
+    @Test
+    public void requestToAnotherOriginWaitsForThePendingResponses() {
+        connect(16);
+        client.writeInbound(request("a.test", "/one"), request("b.test", "/two"));
+        EmbeddedChannel serverA = servers.get("a.test");
+        assertEquals(Collections.singletonList("GET /one"), readRequestLines(serverA));
+        assertFalse(servers.containsKey("b.test"));
+        assertFalse(client.config().isAutoRead());
+
+        serverA.writeInbound(response("one"));
+        client.runPendingTasks();
+        assertEquals(Collections.singletonMap(serverA, true), released);
+        EmbeddedChannel serverB = servers.get("b.test");
+        assertEquals(Collections.singletonList("GET /two"), readRequestLines(serverB));
+
+        serverB.writeInbound(response("two"));
+        assertEquals(Arrays.asList("one", "two"), readResponseContents());
+        assertEquals(Arrays.asList("/one 200", "/two 200"), intercepted);
+        assertTrue(client.config().isAutoRead());
+    }
+
+    @Test
+    public void readingPausesAtThePipeliningDepth() {
+        connect(2);
+        client.writeInbound(request("a.test", "/one"));
+        assertTrue(client.config().isAutoRead());
+        client.writeInbound(request("a.test", "/two"));
+        assertFalse(client.config().isAutoRead());
+
+        EmbeddedChannel server = servers.get("a.test");
+        server.writeInbound(response("one"));
+        assertTrue(client.config().isAutoRead());
+        server.writeInbound(response("two"));
+        assertEquals(Arrays.asList("one", "two"), readResponseContents());
+    }
+
+    @Test
+    public void revalidatedEntryIsServedEvenIfEvictedMeanwhile() {
+        HttpCacheInterceptor cacheInterceptor = new HttpCacheInterceptor();
+        connect(16, cacheInterceptor);
+        EmbeddedChannel server = store(cacheInterceptor);
+
+        client.writeInbound(request("a.test", "/one"));
+        assertTrue(readRequests(server).contains("if-none-match: \"1\""));
+        cacheInterceptor.getCache().clear();
+        server.writeInbound(notModified("\"1\""));
+        assertEquals(Collections.singletonList("200 one"), readResponses());
+    }
+
+    @Test
+    public void notModifiedAnswersTheConditionsOfTheClient() {
+        HttpCacheInterceptor cacheInterceptor = new HttpCacheInterceptor();
+        connect(16, cacheInterceptor);
+        EmbeddedChannel server = store(cacheInterceptor);
+
+        FullHttpRequest conditional = request("a.test", "/one");
+        conditional.headers().set(HttpHeaderNames.IF_NONE_MATCH, "\"0\"");
+        client.writeInbound(conditional);
+        String sent = readRequests(server);
+        assertTrue(sent.contains("if-none-match: \"0\""));
+        assertFalse(sent.contains("\"1\""));
+        server.writeInbound(notModified("\"0\""));
+        assertEquals(Collections.singletonList("304 "), readResponses());
+    }
+
+    /**
+     * Has the cache store a response to {@code /one} that is stale at once.
+     */
+    EmbeddedChannel store(HttpCacheInterceptor cacheInterceptor) {
+        client.writeInbound(request("a.test", "/one"));
+        EmbeddedChannel server = servers.get("a.test");
+        readRequests(server);
+        server.writeInbound(Unpooled.copiedBuffer("HTTP/1.1 200 OK\r\nCache-Control: max-age=0\r\nETag: \"1\"\r\n"
+            + "Content-Length: 3\r\n\r\none", CharsetUtil.US_ASCII));
+        assertEquals(Collections.singletonList("200 one"), readResponses());
+        return server;
+    }
+
+    void connect(int pipeliningDepth, HttpInterceptor... interceptors) {
+        DefaultHttpInterceptorManager interceptorManager = new DefaultHttpInterceptorManager()
+            .addInterceptor(new RecordingInterceptor());
+        for (HttpInterceptor interceptor : interceptors) {
+            interceptorManager.addInterceptor(interceptor);
+        }
+        CyberServer cyber = new CyberServer.Builder()
+            .withChannelManager(new EmbeddedChannelManager())
+            .withHttpInterceptorManager(interceptorManager)
+            .withHttpPipeliningDepth(pipeliningDepth)
+            .build();
+        client = new EmbeddedChannel();
+        client.pipeline().addLast(HandlerNames.RELAY, new HttpClientRelayHandler(cyber));
+    }
+
+    String readRequests(EmbeddedChannel server) {
+        StringBuilder builder = new StringBuilder();
+        for (ByteBuf buf = server.readOutbound(); buf != null; buf = server.readOutbound()) {
+            builder.append(buf.toString(CharsetUtil.US_ASCII));
+            buf.release();
+        }
+        return builder.toString();
+    }
+
+    List<String> readRequestLines(EmbeddedChannel server) {
+        List<String> lines = new ArrayList<>();
+        for (String line : readRequests(server).split("\r\n")) {
+            if (line.startsWith("GET ")) {
+                lines.add(line.substring(0, line.indexOf(' ', 4)));
+            }
+        }
+        return lines;
+    }
+
+    List<String> readResponseContents() {
+        List<String> contents = new ArrayList<>();
+        for (String response : readResponses()) {
+            contents.add(response.substring(response.indexOf(' ') + 1));
+        }
+        return contents;
+    }
+
+    /**
+     * The status codes and the contents of the responses the client received, decoded again.
+     */
+    List<String> readResponses() {
+        EmbeddedChannel decoder = new EmbeddedChannel(new HttpResponseDecoder(), new HttpObjectAggregator(1024));
+        for (ByteBuf buf = client.readOutbound(); buf != null; buf = client.readOutbound()) {
+            decoder.writeInbound(buf);
+        }
+        List<String> contents = new ArrayList<>();
+        for (FullHttpResponse response = decoder.readInbound(); response != null; response = decoder.readInbound()) {
+            contents.add(response.status().code() + " " + response.content().toString(CharsetUtil.US_ASCII));
+            response.release();
+        }
+        decoder.finishAndReleaseAll();
+        return contents;
+    }
+
+    static FullHttpRequest request(String host, String uri) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        request.headers().set(HttpHeaderNames.HOST, host);
+        return request;
+    }
+
+    static ByteBuf notModified(String etag) {
+        return Unpooled.copiedBuffer("HTTP/1.1 304 Not Modified\r\nETag: " + etag + "\r\n\r\n", CharsetUtil.US_ASCII);
+    }
+
+    static ByteBuf response(String content) {
+        return Unpooled.copiedBuffer("HTTP/1.1 200 OK\r\nContent-Length: " + content.length() + "\r\n\r\n"
+            + content, CharsetUtil.US_ASCII);
+    }
+
+    /**
+     * Records the responses with the requests they were paired with, and answers {@code /answered} itself.
+     */
+    class RecordingInterceptor implements HttpInterceptor, HttpRequestInterceptor, HttpResponseInterceptor {
+
+        @Override
+        public boolean preHandle(HttpRequest httpRequest, HttpChannelContext context) {
+            if ("/answered".equals(httpRequest.uri())) {
+                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                    Unpooled.copiedBuffer("answered", CharsetUtil.US_ASCII));
+                HttpUtil.setContentLength(response, response.content().readableBytes());
+                ((HttpExchangeContext) context).respond(response);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean preHandle(HttpRequest httpRequest, HttpResponse httpResponse, HttpChannelContext context) {
+            intercepted.add(httpRequest.uri() + ' ' + httpResponse.status().code());
+            return true;
+        }
+
+        @Override
+        public HttpRequestInterceptor requestInterceptor() {
+            return this;
+        }
+
+        @Override
+        public HttpResponseInterceptor responseInterceptor() {
+            return this;
+        }
+    }
+
+    /**
+     * Hands out an embedded channel per origin, and records whether it is released as reusable.
+     */
+    class EmbeddedChannelManager implements ChannelManager {
+
+        @Override
+        public ChannelFuture acquire(InetSocketAddress serverAddress, ChannelHandlerContext ctx) {
+            EmbeddedChannel server = new EmbeddedChannel();
+            assertNull(servers.put(serverAddress.getHostString(), server));
+            return server.newSucceededFuture();
+        }
+
+        @Override
+        public ChannelFuture acquire(InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, ChannelHandlerContext ctx) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void release(Channel channel, InetSocketAddress serverAddress) {
+            released.put(channel, false);
+        }
+
+        @Override
+        public void release(Channel channel, InetSocketAddress serverAddress, UpstreamProxy upstreamProxy) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void release(Channel channel, InetSocketAddress serverAddress, UpstreamProxy upstreamProxy, boolean reusable) {
+            assertNull(upstreamProxy);
+            released.put(channel, reusable);
+        }
+    }
+}
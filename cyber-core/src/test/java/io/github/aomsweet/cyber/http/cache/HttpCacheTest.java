@@ -0,0 +1,386 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The times are given to the cache, so that the tests don't depend on the clock.
+ *
+ * @author aomsweet
+ */
+public class HttpCacheTest {
+
+    static final String KEY = "http://example.com/index.html";
+    static final long NOW = 1_700_000_000_000L;
+    static final CacheControl NO_DIRECTIVES = CacheControl.ofRequest(EmptyHttpHeaders.INSTANCE);
+
+    List<HttpCacheEntry> entries = new ArrayList<>();
+    HttpCache cache = new HttpCache();
+
+    @AfterEach
+    public void tearDown() {
+        cache.clear();
+        for (HttpCacheEntry entry : entries) {
+            assertEquals(1, entry.refCnt());
+            entry.release();
+        }
+    }
+
+    @Test
+    public void maxAgeGivesTheFreshness() {
+        HttpCacheEntry entry = entry(response("max-age=60"), NOW);
+        assertTrue(entry.isServable(NO_DIRECTIVES, NOW + seconds(59)));
+        assertFalse(entry.isServable(NO_DIRECTIVES, NOW + seconds(61)));
+    }
+
+    @Test
+    public void sMaxAgeTakesPrecedence() {
+        HttpCacheEntry entry = entry(response("max-age=600, s-maxage=10"), NOW);
+        assertTrue(entry.isServable(NO_DIRECTIVES, NOW + seconds(9)));
+        assertFalse(entry.isServable(NO_DIRECTIVES, NOW + seconds(11)));
+    }
+
+    @Test
+    public void ageIsCountedIn() {
+        HttpResponse response = response("max-age=60");
+        response.headers().set(HttpHeaderNames.AGE, 50);
+        HttpCacheEntry entry = entry(response, NOW);
+        assertTrue(entry.isServable(NO_DIRECTIVES, NOW + seconds(9)));
+        assertFalse(entry.isServable(NO_DIRECTIVES, NOW + seconds(11)));
+
+        FullHttpResponse served = entry.newResponse(request(), NOW + seconds(5));
+        assertEquals("55", served.headers().get(HttpHeaderNames.AGE));
+        served.release();
+    }
+
+    @Test
+    public void expiresIsRelativeToTheDate() {
+        HttpResponse response = response(null);
+        response.headers().set(HttpHeaderNames.DATE, date(NOW - seconds(100)));
+        response.headers().set(HttpHeaderNames.EXPIRES, date(NOW - seconds(40)));
+        HttpCacheEntry entry = entry(response, NOW - seconds(100));
+        assertTrue(entry.isServable(NO_DIRECTIVES, NOW - seconds(41)));
+        assertFalse(entry.isServable(NO_DIRECTIVES, NOW - seconds(39)));
+    }
+
+    @Test
+    public void lastModifiedGivesAHeuristicFreshness() {
+        HttpResponse response = response(null);
+        response.headers().set(HttpHeaderNames.LAST_MODIFIED, date(NOW - seconds(1000)));
+        HttpCacheEntry entry = entry(response, NOW);
+        assertEquals(seconds(100), entry.freshnessLifetime);
+
+        response.setStatus(HttpResponseStatus.FOUND);
+        assertEquals(0, entry(response, NOW).freshnessLifetime);
+
+        response.headers().set(HttpHeaderNames.LAST_MODIFIED, date(NOW - TimeUnit.DAYS.toMillis(100)));
+        response.setStatus(HttpResponseStatus.OK);
+        assertEquals(HttpCacheEntry.MAXIMUM_HEURISTIC_FRESHNESS, entry(response, NOW).freshnessLifetime);
+    }
+
+    @Test
+    public void requestDirectivesNarrowTheFreshness() {
+        HttpCacheEntry entry = entry(response("max-age=60"), NOW);
+        assertFalse(entry.isServable(requestCacheControl("no-cache"), NOW));
+        assertFalse(entry.isServable(requestCacheControl("max-age=10"), NOW + seconds(11)));
+        assertTrue(entry.isServable(requestCacheControl("max-age=10"), NOW + seconds(9)));
+        assertFalse(entry.isServable(requestCacheControl("min-fresh=30"), NOW + seconds(31)));
+        assertTrue(entry.isServable(requestCacheControl("min-fresh=30"), NOW + seconds(29)));
+    }
+
+    @Test
+    public void maxStaleServesStaleEntriesUnlessTheyMustBeRevalidated() {
+        HttpCacheEntry entry = entry(response("max-age=60"), NOW);
+        assertTrue(entry.isServable(requestCacheControl("max-stale"), NOW + seconds(3600)));
+        assertTrue(entry.isServable(requestCacheControl("max-stale=30"), NOW + seconds(89)));
+        assertFalse(entry.isServable(requestCacheControl("max-stale=30"), NOW + seconds(91)));
+
+        entry = entry(response("max-age=60, must-revalidate"), NOW);
+        assertFalse(entry.isServable(requestCacheControl("max-stale"), NOW + seconds(61)));
+    }
+
+    @Test
+    public void noCacheEntriesAreAlwaysRevalidated() {
+        HttpResponse response = response("no-cache, max-age=60");
+        response.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+        HttpCacheEntry entry = entry(response, NOW);
+        assertFalse(entry.isServable(NO_DIRECTIVES, NOW));
+        assertTrue(entry.hasValidator());
+    }
+
+    @Test
+    public void storabilityNeedsFreshnessOrAValidator() {
+        HttpRequest request = request();
+        assertTrue(isStorable(request, response("max-age=60")));
+        assertFalse(isStorable(request, response(null)));
+        assertFalse(isStorable(request, response("no-store, max-age=60")));
+        assertFalse(isStorable(request, response("private, max-age=60")));
+
+        HttpResponse response = response(null);
+        response.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+        assertTrue(isStorable(request, response));
+
+        response.headers().set(HttpHeaderNames.VARY, "*");
+        assertFalse(isStorable(request, response));
+
+        request.headers().set(HttpHeaderNames.AUTHORIZATION, "Basic dXNlcjpwYXNz");
+        assertFalse(isStorable(request, response("max-age=60")));
+        assertTrue(isStorable(request, response("public, max-age=60")));
+    }
+
+    @Test
+    public void staleEntryIsRevalidatedWithItsValidators() {
+        HttpResponse response = response("max-age=60");
+        response.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+        response.headers().set(HttpHeaderNames.LAST_MODIFIED, date(NOW - seconds(3600)));
+        HttpCacheEntry entry = entry(response, NOW);
+
+        HttpHeaders conditions = new DefaultHttpHeaders();
+        entry.addConditions(conditions);
+        assertEquals("\"v1\"", conditions.get(HttpHeaderNames.IF_NONE_MATCH));
+        assertEquals(date(NOW - seconds(3600)), conditions.get(HttpHeaderNames.IF_MODIFIED_SINCE));
+
+        assertTrue(entry.isValidatedBy(notModified("W/\"v1\"")));
+        assertFalse(entry.isValidatedBy(notModified("\"v2\"")));
+
+        HttpResponse notModified = notModified("\"v1\"");
+        notModified.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=120");
+        notModified.headers().set(HttpHeaderNames.CONNECTION, "close");
+        HttpCacheEntry freshened = track(entry.freshen(notModified, NOW + seconds(100)));
+        assertTrue(freshened.isServable(NO_DIRECTIVES, NOW + seconds(219)));
+        assertFalse(freshened.isServable(NO_DIRECTIVES, NOW + seconds(221)));
+        assertFalse(freshened.headers.contains(HttpHeaderNames.CONNECTION));
+        assertEquals(date(NOW - seconds(3600)), freshened.headers.get(HttpHeaderNames.LAST_MODIFIED));
+        assertSame(entry.content, freshened.content);
+        assertEquals(2, entry.content.refCnt());
+    }
+
+    @Test
+    public void conditionalRequestsAreAnsweredFromTheEntry() {
+        HttpResponse response = response("max-age=60");
+        response.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+        HttpCacheEntry entry = entry(response, NOW);
+
+        HttpRequest request = request();
+        request.headers().set(HttpHeaderNames.IF_NONE_MATCH, "\"v0\", W/\"v1\"");
+        FullHttpResponse served = entry.newResponse(request, NOW);
+        assertEquals(HttpResponseStatus.NOT_MODIFIED, served.status());
+        assertEquals("\"v1\"", served.headers().get(HttpHeaderNames.ETAG));
+        assertEquals(0, served.content().readableBytes());
+        served.release();
+
+        request.headers().set(HttpHeaderNames.IF_NONE_MATCH, "\"v2\"");
+        served = entry.newResponse(request, NOW);
+        assertEquals(HttpResponseStatus.OK, served.status());
+        assertEquals("hello", served.content().toString(CharsetUtil.US_ASCII));
+        assertEquals("5", served.headers().get(HttpHeaderNames.CONTENT_LENGTH));
+        served.release();
+    }
+
+    @Test
+    public void storesOneEntryPerVariant() {
+        HttpResponse response = response("max-age=60");
+        response.headers().set(HttpHeaderNames.VARY, "Accept-Encoding");
+        HttpRequest gzip = request();
+        gzip.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip,  br");
+        HttpRequest identity = request();
+
+        cache.store(HttpCacheEntry.of(KEY, gzip, response, content(), NOW));
+        cache.store(HttpCacheEntry.of(KEY, identity, response, content(), NOW));
+        cache.store(HttpCacheEntry.of(KEY, gzip, response, content(), NOW + seconds(1)));
+        assertEquals(2, cache.getEntryCount());
+
+        HttpHeaders headers = new DefaultHttpHeaders().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip, br");
+        HttpCacheEntry entry = cache.lookup(KEY, headers);
+        assertEquals(NOW + seconds(1), entry.responseTime);
+        entry.release();
+        assertNull(cache.lookup(KEY, new DefaultHttpHeaders().set(HttpHeaderNames.ACCEPT_ENCODING, "br")));
+
+        cache.invalidate(KEY);
+        assertEquals(0, cache.getEntryCount());
+        assertNull(cache.lookup(KEY, headers));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedResources() {
+        HttpCacheEntry first = HttpCacheEntry.of(KEY, request(), response("max-age=60"), content(), NOW);
+        // Room for two resources with slightly longer keys, not for three.
+        cache = new HttpCache(2 * (first.size + 8 + HttpCache.RESOURCE_OVERHEAD + (KEY.length() + 2) * 2));
+        cache.store(first);
+        cache.store(HttpCacheEntry.of(KEY + "?2", request(), response("max-age=60"), content(), NOW));
+        cache.lookup(KEY, EmptyHttpHeaders.INSTANCE).release();
+        cache.store(HttpCacheEntry.of(KEY + "?3", request(), response("max-age=60"), content(), NOW));
+
+        assertEquals(2, cache.getEntryCount());
+        assertTrue(cache.getSize() <= cache.getMaximumSize());
+        HttpCacheEntry entry = cache.lookup(KEY, EmptyHttpHeaders.INSTANCE);
+        assertNotNull(entry);
+        entry.release();
+        assertNull(cache.lookup(KEY + "?2", EmptyHttpHeaders.INSTANCE));
+    }
+
+    @Test
+    public void requestsWaitForTheOneFetchingTheResource() {
+        AtomicInteger runs = new AtomicInteger();
+        HttpRequest fetching = request();
+        assertNull(cache.await(KEY, fetching, runs::incrementAndGet, NOW));
+        HttpCache.Fill fill = cache.await(KEY, request(), runs::incrementAndGet, NOW);
+        assertNotNull(fill);
+        assertNotNull(cache.await(KEY, request(), runs::incrementAndGet, NOW));
+
+        cache.store(HttpCacheEntry.of(KEY, fetching, response("max-age=60"), content(), NOW));
+        assertEquals(2, runs.get());
+        assertFalse(cache.cancel(fill, runs::incrementAndGet));
+    }
+
+    @Test
+    public void unstorableResponseLetsTheRequestsGoToTheServer() {
+        AtomicInteger runs = new AtomicInteger();
+        HttpRequest fetching = request();
+        assertNull(cache.await(KEY, fetching, runs::incrementAndGet, NOW));
+        assertNotNull(cache.await(KEY, request(), runs::incrementAndGet, NOW));
+
+        // Only the request that fetches the resource ends the wait.
+        cache.fillFailed(KEY, request(), NOW);
+        assertEquals(0, runs.get());
+        cache.fillFailed(KEY, fetching, NOW);
+        assertEquals(1, runs.get());
+
+        assertNull(cache.await(KEY, request(), runs::incrementAndGet, NOW + cache.getUncacheableMillis() - 1));
+        assertNull(cache.await(KEY, request(), runs::incrementAndGet, NOW + cache.getUncacheableMillis() + 1));
+        assertNotNull(cache.await(KEY, request(), runs::incrementAndGet, NOW + cache.getUncacheableMillis() + 2));
+    }
+
+    @Test
+    public void fetchEndedWithoutAResponseLetsTheRequestsGoOn() {
+        AtomicInteger runs = new AtomicInteger();
+        HttpRequest fetching = request();
+        assertNull(cache.await(KEY, fetching, runs::incrementAndGet, NOW));
+        assertNotNull(cache.await(KEY, request(), runs::incrementAndGet, NOW));
+
+        cache.fillAbandoned(KEY, fetching);
+        assertEquals(1, runs.get());
+        // The resource is not taken for uncacheable, the next request fetches it.
+        HttpRequest next = request();
+        assertNull(cache.await(KEY, next, runs::incrementAndGet, NOW));
+        assertNotNull(cache.await(KEY, request(), runs::incrementAndGet, NOW));
+        cache.fillAbandoned(KEY, fetching);
+        assertEquals(1, runs.get());
+        cache.fillAbandoned(KEY, next);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void abandonedFetchIsTakenOver() {
+        assertNull(cache.await(KEY, request(), () -> { }, NOW));
+        assertNotNull(cache.await(KEY, request(), () -> { }, NOW + cache.getCollapseTimeoutMillis()));
+        assertNull(cache.await(KEY, request(), () -> { }, NOW + cache.getCollapseTimeoutMillis() + 1));
+    }
+
+    @Test
+    public void keysAreAbsoluteUris() {
+        HttpRequest request = request();
+        request.headers().set(HttpHeaderNames.HOST, "Example.COM:80");
+        assertEquals(KEY, HttpCache.key(request, false, null));
+        request.headers().set(HttpHeaderNames.HOST, "example.com:443");
+        assertEquals("https://example.com/index.html", HttpCache.key(request, true, null));
+        assertEquals(KEY, HttpCache.key(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+            "HTTP://example.com:80/index.html"), false, null));
+        assertEquals("http://example.com/a", HttpCache.resolve(KEY, "/a"));
+        assertEquals("https://[::1]:8443/index.html", HttpCache.key(new DefaultHttpRequest(HttpVersion.HTTP_1_1,
+            HttpMethod.GET, "/index.html"), true, InetSocketAddress.createUnresolved("::1", 8443)));
+    }
+
+    @Test
+    public void decryptedRequestsAreKeyedByTheirTunnel() {
+        HttpRequest request = request();
+        request.headers().set(HttpHeaderNames.HOST, "bank.example");
+        assertNull(HttpCache.key(request, true, InetSocketAddress.createUnresolved("evil.example", 443)));
+        assertNull(HttpCache.key(request, true, InetSocketAddress.createUnresolved("bank.example", 8443)));
+        assertEquals("https://bank.example/index.html",
+            HttpCache.key(request, true, InetSocketAddress.createUnresolved("Bank.Example", 443)));
+        request.headers().set(HttpHeaderNames.HOST, "bank.example:8443");
+        assertEquals("https://bank.example:8443/index.html",
+            HttpCache.key(request, true, InetSocketAddress.createUnresolved("bank.example", 8443)));
+        assertNull(HttpCache.key(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+            "https://bank.example/index.html"), true, InetSocketAddress.createUnresolved("evil.example", 443)));
+        assertNull(HttpCache.resolve(KEY, "http://example.org/a"));
+    }
+
+    HttpCacheEntry entry(HttpResponse response, long responseTime) {
+        return track(HttpCacheEntry.of(KEY, request(), response, content(), responseTime));
+    }
+
+    HttpCacheEntry track(HttpCacheEntry entry) {
+        entries.add(entry);
+        return entry;
+    }
+
+    static boolean isStorable(HttpRequest request, HttpResponse response) {
+        return HttpCacheEntry.isStorable(request, response, CacheControl.ofRequest(request.headers()),
+            CacheControl.ofResponse(response.headers()), NOW);
+    }
+
+    static CacheControl requestCacheControl(String value) {
+        return CacheControl.ofRequest(new DefaultHttpHeaders().set(HttpHeaderNames.CACHE_CONTROL, value));
+    }
+
+    static HttpRequest request() {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/index.html");
+    }
+
+    static HttpResponse response(String cacheControl) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        if (cacheControl != null) {
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+        }
+        return response;
+    }
+
+    static HttpResponse notModified(String etag) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+        response.headers().set(HttpHeaderNames.ETAG, etag);
+        return response;
+    }
+
+    static ByteBuf content() {
+        return Unpooled.copiedBuffer("hello", CharsetUtil.US_ASCII);
+    }
+
+    static String date(long time) {
+        return DateFormatter.format(new Date(time));
+    }
+
+    static long seconds(long seconds) {
+        return TimeUnit.SECONDS.toMillis(seconds);
+    }
+}
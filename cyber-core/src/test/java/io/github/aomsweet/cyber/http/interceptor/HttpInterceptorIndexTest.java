@@ -0,0 +1,233 @@
+/*
+  Copyright 2021 The Cyber Project
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package io.github.aomsweet.cyber.http.interceptor;
+
+import io.netty.handler.codec.http.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author aomsweet
+ */
+public class HttpInterceptorIndexTest {
+
+    @Test
+    public void matchesExactHosts() {
+        HttpInterceptor a = new NamedInterceptor("a");
+        HttpInterceptorRuleSet ruleSet = new HttpInterceptorRuleSet.Builder()
+            .withInterceptor(new HttpRequestMatcher.Builder().withHost("Example.COM.").build(), a)
+            .build();
+
+        assertEquals(chain(a), match(ruleSet, "example.com"));
+        assertEquals(chain(a), match(ruleSet, "EXAMPLE.com:8080"));
+        assertEquals(chain(a), match(ruleSet, "example.com."));
+        assertNull(match(ruleSet, "www.example.com"));
+        assertNull(match(ruleSet, "example.org"));
+        assertNull(match(ruleSet, "com"));
+    }
+
+    @Test
+    public void wildcardLabelMatchesOneLabel() {
+        HttpInterceptor a = new NamedInterceptor("a");
+        HttpInterceptor b = new NamedInterceptor("b");
+        HttpInterceptorRuleSet ruleSet = new HttpInterceptorRuleSet.Builder()
+            .withInterceptor(new HttpRequestMatcher.Builder().withHost("*.example.com").build(), a)
+            .withInterceptor(new HttpRequestMatcher.Builder().withHost("api.*.example.com").build(), b)
+            .build();
+
+        assertEquals(chain(a), match(ruleSet, "www.example.com"));
+        assertEquals(chain(a), match(ruleSet, "api.example.com"));
+        assertEquals(chain(b), match(ruleSet, "api.eu.example.com"));
+        assertNull(match(ruleSet, "example.com"));
+        assertNull(match(ruleSet, "a.b.example.com"));
+        assertNull(match(ruleSet, "www.example.org"));
+    }
+
+    @Test
+    public void suffixMatchesTheDomainAndItsSubdomains() {
+        HttpInterceptor a = new NamedInterceptor("a");
+        HttpInterceptor b = new NamedInterceptor("b");
+        HttpInterceptorRuleSet ruleSet = new HttpInterceptorRuleSet.Builder()
+            .withInterceptor(new HttpRequestMatcher.Builder().withHostSuffix(".example.com").build(), a)
+            .withInterceptor(new HttpRequestMatcher.Builder().withHost("www.example.com").build(), b)
+            .build();
+
+        assertEquals(chain(a), match(ruleSet, "example.com"));
+        assertEquals(chain(a), match(ruleSet, "a.b.example.com"));
+        assertEquals(chain(a, b), match(ruleSet, "www.example.com"));
+        assertNull(match(ruleSet, "badexample.com"));
+        assertNull(match(ruleSet, "example.com.org"));
+    }
+
+    @Test
+    public void takesTheHostFromTheUriWithoutAHostHeader() {
+        HttpInterceptor a = new NamedInterceptor("a");
+        HttpInterceptorRuleSet ruleSet = new HttpInterceptorRuleSet.Builder()
+            .withInterceptor(new HttpRequestMatcher.Builder().withHost("example.com").withPathPrefix("/api").build(), a)
+            .build();
+
+        assertEquals(chain(a), ruleSet.matchInterceptors(request(HttpMethod.GET, "http://user@example.com:80/api/v1")));
+        assertNull(ruleSet.matchInterceptors(request(HttpMethod.GET, "http://example.com/")));
+        assertNull(ruleSet.matchInterceptors(request(HttpMethod.GET, "http://example.com")));
+        assertNull(ruleSet.matchInterceptors(request(HttpMethod.GET, "/api")));
+    }
+
+    @Test
+    public void connectMatchesTheHostWithoutPathPrefixes() {
+        HttpInterceptor a = new NamedInterceptor("a");
+        HttpInterceptor b = new NamedInterceptor("b");
+        HttpInterceptorRuleSet ruleSet = new HttpInterceptorRuleSet.Builder()
+            .withInterceptor(new HttpRequestMatcher.Builder().withHost("example.com").build(), a)
+            .withInterceptor(new HttpRequestMatcher.Builder().withHost("example.com").withPathPrefix("/").build(), b)
+            .build();
+
+        assertEquals(chain(a), ruleSet.matchInterceptors(request(HttpMethod.CONNECT, "example.com:443")));
+    }
+
+    @Test
+    public void pathPrefixesAccumulate() {
+        HttpInterceptor a = new NamedInterceptor("a");
+        HttpInterceptor b = new NamedInterceptor("b");
+        HttpInterceptor c = new NamedInterceptor("c");
+        HttpInterceptorRuleSet ruleSet = new HttpInterceptorRuleSet.Builder()
+            .withInterceptor(new HttpRequestMatcher.Builder().withPathPrefix("/api/v1").build(), b)
+            .withInterceptor(new HttpRequestMatcher.Builder().withPathPrefix("/api").build(), a)
+            .withInterceptor(new HttpRequestMatcher.Builder().withPathPrefix("/static", "/img").build(), c)
+            .build();
+
+        assertEquals(chain(a), match(ruleSet, HttpMethod.GET, "/api"));
+        assertEquals(chain(a), match(ruleSet, HttpMethod.GET, "/api/v2"));
+        assertEquals(chain(b, a), match(ruleSet, HttpMethod.GET, "/api/v1/users"));
+        assertEquals(chain(a), match(ruleSet, HttpMethod.GET, "/api?path=/api/v1"));
+        assertEquals(chain(c), match(ruleSet, HttpMethod.GET, "/img/logo.png"));
+        assertNull(match(ruleSet, HttpMethod.GET, "/ap"));
+        assertNull(match(ruleSet, HttpMethod.GET, "/"));
+    }
+
+    @Test
+    public void methodsNarrowTheChain() {
+        HttpInterceptor a = new NamedInterceptor("a");
+        HttpInterceptor b = new NamedInterceptor("b");
+        HttpInterceptor c = new NamedInterceptor("c");
+        HttpInterceptorRuleSet ruleSet = new HttpInterceptorRuleSet.Builder()
+            .withInterceptor(new HttpRequestMatcher.Builder().withMethod(HttpMethod.POST, HttpMethod.PUT).build(), a)
+            .withInterceptor(new HttpRequestMatcher.Builder().build(), b)
+            .withInterceptor(new HttpRequestMatcher.Builder().withMethod(HttpMethod.POST).build(), c)
+            .build();
+
+        assertEquals(chain(a, b, c), match(ruleSet, HttpMethod.POST, "/"));
+        assertEquals(chain(a, b), match(ruleSet, HttpMethod.PUT, "/"));
+        assertEquals(chain(b), match(ruleSet, HttpMethod.GET, "/"));
+        assertEquals(chain(b), match(ruleSet, HttpMethod.valueOf("PURGE"), "/"));
+    }
+
+    @Test
+    public void fallbacksAreMergedInTheOrderTheyWereAdded() {
+        HttpInterceptor a = new NamedInterceptor("a");
+        HttpInterceptor b = new NamedInterceptor("b", request -> request.uri().startsWith("/b"));
+        HttpInterceptor c = new NamedInterceptor("c");
+        HttpInterceptor d = new NamedInterceptor("d", request -> true);
+        HttpInterceptor e = new NamedInterceptor("e");
+        HttpInterceptorRuleSet ruleSet = new HttpInterceptorRuleSet.Builder()
+            .withInterceptor(new HttpRequestMatcher.Builder().withHost("example.com").build(), a)
+            .withInterceptor(b)
+            .withInterceptor(new HttpRequestMatcher.Builder().withHostSuffix("example.com").build(), c)
+            .withInterceptor(d)
+            .withInterceptor(new HttpRequestMatcher.Builder().withPathPrefix("/b").build(), e)
+            .build();
+
+        assertEquals(chain(a, b, c, d, e), match(ruleSet, "example.com", HttpMethod.GET, "/b"));
+        assertEquals(chain(a, c, d), match(ruleSet, "example.com", HttpMethod.GET, "/"));
+        assertEquals(chain(b, d, e), match(ruleSet, "example.org", HttpMethod.GET, "/b"));
+        assertEquals(chain(d), match(ruleSet, "example.org", HttpMethod.GET, "/"));
+    }
+
+    @Test
+    public void managerPublishesACompiledSnapshot() {
+        HttpInterceptor a = new NamedInterceptor("a");
+        HttpInterceptor b = new NamedInterceptor("b", request -> true);
+        DefaultHttpInterceptorManager manager = new DefaultHttpInterceptorManager()
+            .addInterceptor(new HttpRequestMatcher.Builder().withHost("example.com").build(), a);
+        HttpInterceptorLookup snapshot = manager.snapshot();
+        assertNotNull(((HttpInterceptorRuleSet) snapshot).index);
+
+        manager.addInterceptor(b);
+        assertEquals(chain(a), snapshot.matchInterceptors(request("example.com", HttpMethod.GET, "/")));
+        assertEquals(chain(a, b), manager.matchInterceptors(request("example.com", HttpMethod.GET, "/")));
+
+        manager.removeInterceptor(a);
+        assertEquals(chain(b), manager.matchInterceptors(request("example.com", HttpMethod.GET, "/")));
+        assertNotNull(((HttpInterceptorRuleSet) manager.snapshot()).index);
+    }
+
+    static List<HttpInterceptor> chain(HttpInterceptor... interceptors) {
+        return Arrays.asList(interceptors);
+    }
+
+    static List<HttpInterceptor> match(HttpInterceptorLookup lookup, String host) {
+        return match(lookup, host, HttpMethod.GET, "/");
+    }
+
+    static List<HttpInterceptor> match(HttpInterceptorLookup lookup, HttpMethod method, String uri) {
+        return match(lookup, "example.com", method, uri);
+    }
+
+    static List<HttpInterceptor> match(HttpInterceptorLookup lookup, String host, HttpMethod method, String uri) {
+        return lookup.matchInterceptors(request(host, method, uri));
+    }
+
+    static HttpRequest request(String host, HttpMethod method, String uri) {
+        HttpRequest request = request(method, uri);
+        request.headers().set(HttpHeaderNames.HOST, host);
+        return request;
+    }
+
+    static HttpRequest request(HttpMethod method, String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, uri);
+    }
+
+    static final class NamedInterceptor implements HttpInterceptor {
+
+        final String name;
+        final Predicate<HttpRequest> predicate;
+
+        NamedInterceptor(String name) {
+            this(name, request -> {
+                throw new AssertionError("An indexed interceptor was asked to match.");
+            });
+        }
+
+        NamedInterceptor(String name, Predicate<HttpRequest> predicate) {
+            this.name = name;
+            this.predicate = predicate;
+        }
+
+        @Override
+        public boolean match(HttpRequest httpRequest) {
+            return predicate.test(httpRequest);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}